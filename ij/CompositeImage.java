@@ -35,6 +35,11 @@ public class CompositeImage extends ImagePlus {
 	byte[][] channelLuts;
 	boolean customLuts;
 	boolean syncChannels;
+	ChannelCompositor compositor = new ChannelCompositor();
+	boolean compositePending;
+	int[] displayPixels;
+	BufferedImage displayImage;
+	Rectangle displayRect;
 
 	public CompositeImage(ImagePlus imp) {
 		this(imp, COLOR);
@@ -99,11 +104,51 @@ public class CompositeImage extends ImagePlus {
 	public Image getImage() {
 		if (img==null)
 			updateImage();
+		if (compositePending)
+			composite();
 		return img;
 	}
-	
+
+	/** Creates the composite image of all active channels in COMPOSITE mode,
+		if it is not up to date. */
+	synchronized void composite() {
+		if (!compositePending || cip==null || rgbPixels==null)
+			return;
+		compositor.composite(cip, active, rgbPixels);
+		compositePending = false;
+	}
+
+	/** Returns the area 'srcRect' of the composite image, scaled to
+		'dstWidth' x 'dstHeight' pixels (nearest neighbor), or null if not in
+		COMPOSITE mode or if the composite image of the full size is up to date.
+		Only the pixels needed for display are calculated, thus a large image
+		that is shown zoomed out, or a small part of it, can be displayed
+		faster than with getImage. At full size, null is returned; getImage
+		is as fast in this case and keeps the channels that have not changed. */
+	@Override
+	public synchronized Image getDisplayImage(Rectangle srcRect, int dstWidth, int dstHeight) {
+		if (img==null)
+			updateImage();
+		if (!compositePending || cip==null || rgbPixels==null || dstWidth<1 || dstHeight<1
+				|| (dstWidth==width && dstHeight==height))
+			return null;
+		if (displayImage!=null && srcRect.equals(displayRect) && displayImage.getWidth()==dstWidth
+				&& displayImage.getHeight()==dstHeight)
+			return displayImage;
+		if (displayImage==null || displayImage.getWidth()!=dstWidth || displayImage.getHeight()!=dstHeight) {
+			displayPixels = new int[dstWidth*dstHeight];
+			DirectColorModel cm = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+			SampleModel sm = cm.createCompatibleWritableRaster(1, 1).getSampleModel().createCompatibleSampleModel(dstWidth, dstHeight);
+			WritableRaster raster = Raster.createWritableRaster(sm, new DataBufferInt(displayPixels, dstWidth*dstHeight, 0), null);
+			displayImage = new BufferedImage(cm, raster, false, null);
+		}
+		compositor.composite(cip, active, srcRect, displayPixels, dstWidth, dstHeight);
+		displayRect = new Rectangle(srcRect);
+		return displayImage;
+	}
+
 	public void updateChannelAndDraw() {
-		if (!customLuts) singleChannel = true;
+		singleChannel = true;
 		updateAndDraw();
 	}
 	
@@ -277,33 +322,25 @@ public class CompositeImage extends ImagePlus {
 			rgbImage = null;
 		}
 		cip[currentChannel].setMinAndMax(ip.getMin(),ip.getMax());
-		if (singleChannel && nChannels<=3) {
-			switch (currentChannel) {
-				case 0: cip[0].updateComposite(rgbPixels, 1); break;
-				case 1: cip[1].updateComposite(rgbPixels, 2); break;
-				case 2: cip[2].updateComposite(rgbPixels, 3); break;
+		if (syncChannels) {
+			ImageProcessor ip2 = getProcessor();
+			double min=ip2.getMin(), max=ip2.getMax();
+			for (int i=0; i<nChannels; i++) {
+				cip[i].setMinAndMax(min, max);
+				lut[i].min = min;
+				lut[i].max = max;
 			}
-		} else {
-			if (cip==null) return;
-			if (syncChannels) {
-				ImageProcessor ip2 = getProcessor();
-				double min=ip2.getMin(), max=ip2.getMax();
-				for (int i=0; i<nChannels; i++) {
-					cip[i].setMinAndMax(min, max);
-					lut[i].min = min;
-					lut[i].max = max;
-				}
-				syncChannels = false;
-			}
-			if (active[0])
-				cip[0].updateComposite(rgbPixels, 4);
-			else
-				{for (int i=1; i<imageSize; i++) rgbPixels[i] = 0;}
-			if (cip==null || nChannels>cip.length)
-				return;
-			for (int i=1; i<nChannels; i++)
-				if (active[i]) cip[i].updateComposite(rgbPixels, 5);
+			syncChannels = false;
 		}
+		if (nChannels>cip.length)
+			return;
+		// the pixels of the other channels are unchanged after updateChannelAndDraw
+		if (singleChannel)
+			compositor.invalidate(currentChannel);
+		else
+			compositor.invalidate();
+		compositePending = true;    // the composite is created when needed (getImage, getDisplayImage)
+		displayRect = null;
 		createBufferedImage();
 		if (img==null && awtImage!=null)
 			img = awtImage;
@@ -619,6 +656,9 @@ public class CompositeImage extends ImagePlus {
 	public void close() {
 		super.close();
 		rgbPixels = null;
+		displayPixels = null;
+		displayImage = null;
+		compositor = new ChannelCompositor();
 		imageSource = null;
 		awtImage = null;
 		rgbRaster = null;
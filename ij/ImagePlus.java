@@ -52,6 +52,11 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 
 	protected Image img;
 	protected ImageProcessor ip;
+	private Image displayImage;               // see getDisplayImage
+	private ImageProcessor displayProcessor;
+	private Object displayPixels;
+	private double displayMin, displayMax;
+	private Rectangle displayRect;
 	protected ImageWindow win;
 	protected Roi roi;
 	protected int currentSlice; // current stack index (one-based)
@@ -374,7 +379,7 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 				b = true;
 			active[i] = b;
 		}
-		updateAndDraw();
+		updateChannelAndDraw();  // the pixels are unchanged
 		Channels.updateChannels();
 	}
 
@@ -416,6 +421,8 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 		the image (dimension, type, size) to be updated. */
 	public void repaintWindow() {
 		if (win!=null) {
+			if (Prefs.backgroundRendering)
+				win.getCanvas().setImageUpdated();  // the image may have been replaced
 			draw();
 			win.repaint();
 		}
@@ -439,7 +446,10 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			img = null;
 			return;
 		}
-		if (ip!=null)
+		displayImage = null;
+		if (ip instanceof ShortProcessor || ip instanceof FloatProcessor)
+			img = null;  // converted to 8 bits when needed, see getImage and getDisplayImage
+		else if (ip!=null)
 			img = ip.createImage();
 	}
 
@@ -561,6 +571,30 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			img = ip.createImage();
 		return img;
 	}
+
+	/** Returns the area 'srcRect' of this image as displayed, sampled with
+		'dstWidth' x 'dstHeight' pixels (nearest neighbor), or null if the
+		image of the full size is up to date (see getImage) or if the image
+		type does not need a conversion for display. With 16 and 32-bit images,
+		only the visible pixels are converted, thus a small part of a large
+		image is displayed faster. The result is kept until the pixels,
+		the display range or the srcRect change or updateImage is called. */
+	public synchronized Image getDisplayImage(Rectangle srcRect, int dstWidth, int dstHeight) {
+		ImageProcessor ip2 = ip;
+		if (img!=null || ip2==null || dstWidth<1 || dstHeight<1)
+			return null;
+		if (displayImage!=null && ip2==displayProcessor && ip2.getPixels()==displayPixels
+				&& ip2.getMin()==displayMin && ip2.getMax()==displayMax && srcRect.equals(displayRect)
+				&& displayImage.getWidth(null)==dstWidth && displayImage.getHeight(null)==dstHeight)
+			return displayImage;
+		displayImage = ip2.createImage(srcRect, dstWidth, dstHeight);
+		displayProcessor = ip2;
+		displayPixels = ip2.getPixels();
+		displayMin = ip2.getMin();
+		displayMax = ip2.getMax();
+		displayRect = new Rectangle(srcRect);
+		return displayImage;
+	}
 	
 	/** Returns a copy of this image as an 8-bit or RGB BufferedImage.
 	 * @see ij.process.ShortProcessor#get16BitBufferedImage
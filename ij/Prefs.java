@@ -58,7 +58,7 @@ public class Prefs {
 		REVERSE_NEXT_PREVIOUS_ORDER=1<<5, AUTO_RUN_EXAMPLES=1<<6, SHOW_ALL_POINTS=1<<7,
 		DO_NOT_SAVE_WINDOW_LOCS=1<<8, JFILE_CHOOSER_CHANGED=1<<9,
 		CANCEL_BUTTON_ON_RIGHT=1<<10, IGNORE_RESCALE_SLOPE=1<<11,
-		NON_BLOCKING_DIALOGS=1<<12, MODERN_MODE=1<<13;
+		NON_BLOCKING_DIALOGS=1<<12, MODERN_MODE=1<<13, BACKGROUND_RENDERING=1<<14;
 	public static final String OPTIONS2 = "prefs.options2";
     
 	/** file.separator system property */
@@ -155,6 +155,8 @@ public class Prefs {
 	public static boolean keepArrowSelections;
 	/** Aways paint images using double buffering */
 	public static boolean paintDoubleBuffered;
+	/** Convert and scale images for display in a background thread */
+	public static boolean backgroundRendering;
 	/** Do not display dialog when opening .raw files */
 	public static boolean skipRawDialog;
 	/** Reverse channel-slice-frame priority used by Next Slice and Previous Slice commands. */
@@ -554,6 +556,7 @@ public class Prefs {
 		ignoreRescaleSlope = (options2&IGNORE_RESCALE_SLOPE)!=0;
 		nonBlockingFilterDialogs = (options2&NON_BLOCKING_DIALOGS)!=0;
 		modernMode = (options2&MODERN_MODE)!=0;
+		backgroundRendering = (options2&BACKGROUND_RENDERING)!=0;
 	}
 
 	static void saveOptions(Properties prefs) {
@@ -585,7 +588,8 @@ public class Prefs {
 			+ (dialogCancelButtonOnRight?CANCEL_BUTTON_ON_RIGHT:0)
 			+ (ignoreRescaleSlope?IGNORE_RESCALE_SLOPE:0)
 			+ (nonBlockingFilterDialogs?NON_BLOCKING_DIALOGS:0)
-			+ (modernMode?MODERN_MODE:0);
+			+ (modernMode?MODERN_MODE:0)
+			+ (backgroundRendering?BACKGROUND_RENDERING:0);
 		prefs.put(OPTIONS2, Integer.toString(options2));
 	}
 
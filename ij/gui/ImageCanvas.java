@@ -55,6 +55,8 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
     private int mousePressedX, mousePressedY;
     private long mousePressedTime;
     private boolean overOverlayLabel;
+    private ImageRenderer renderer;
+    private int renderGeneration;
 
     /** If the mouse moves less than this in screen pixels, successive zoom operations are on the same image pixel */
 	protected final static int MAX_MOUSEMOVE_ZOOM = 10;
@@ -219,7 +221,8 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		painted = true;
 		Roi roi = imp.getRoi();
 		Overlay overlay = imp.getOverlay();
-		if (roi!=null || overlay!=null || showAllOverlay!=null || Prefs.paintDoubleBuffered || (IJ.isLinux() && magnification<0.25)) {
+		if (roi!=null || overlay!=null || showAllOverlay!=null || Prefs.paintDoubleBuffered || renderInBackground()
+		|| (IJ.isLinux() && magnification<0.25)) {
 			// Use double buffering to avoid flickering of ROIs and to work around
 			// a Linux problem with large images not showing at low magnification.
 			if (roi!=null)
@@ -235,11 +238,7 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 				imageUpdated = false;
 				imp.updateImage();
 			}
-			setInterpolation(g, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
-			if (img!=null)
- 				g.drawImage(img, 0, 0, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5),
-				srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+			drawImage(g, srcRect, magnification, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5));
 			if (overlay!=null)
 				drawOverlay(overlay, g);
 			if (showAllOverlay!=null)
@@ -252,7 +251,35 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		setPaintPending(false);
     }
     
+	/** Draws the part 'srcRect' of the image, scaled to dstWidth x dstHeight.
+		Where the image needs a conversion for display (composite, 16 and 32-bit
+		images), only the visible part is converted, with twice the screen
+		resolution when zoomed out, which leaves enough pixels for smooth scaling. */
+	void drawImage(Graphics g, Rectangle srcRect, double magnification, int dstWidth, int dstHeight) {
+		setInterpolation(g, magnification, Prefs.interpolateScaledImages);
+		int width2 = Math.min(2*dstWidth, srcRect.width);
+		int height2 = Math.min(2*dstHeight, srcRect.height);
+		Image img = imp.getDisplayImage(srcRect, width2, height2);
+		if (img!=null) {
+			g.drawImage(img, 0, 0, dstWidth, dstHeight, 0, 0, width2, height2, null);
+			return;
+		}
+		img = imp.getImage();
+		if (img!=null)
+			g.drawImage(img, 0, 0, dstWidth, dstHeight,
+				srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+	}
+
+	/** Whether the image is converted and scaled in a background thread, see ImageRenderer */
+	private boolean renderInBackground() {
+		return Prefs.backgroundRendering && imageWidth!=0 && isShowing();
+	}
+
 	private void setInterpolation(Graphics g, boolean interpolate) {
+		setInterpolation(g, magnification, interpolate);
+	}
+
+	private static void setInterpolation(Graphics g, double magnification, boolean interpolate) {
 		if (magnification==1)
 			return;
 		else if (magnification<1.0 || interpolate) {
@@ -334,8 +361,11 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		}
 		Roi activeRoi = imp.getRoi();
 		boolean roiManagerShowAllMode = overlay==showAllOverlay && !Prefs.showAllSliceOnly;
-		for (int i=0; i<n; i++) {
+		int[] indexes = getVisibleIndexes(overlay, drawLabels);
+		int n2 = indexes!=null?indexes.length:n;
+		for (int k=0; k<n2; k++) {
 			if (overlay==null) break;
+			int i = indexes!=null?indexes[k]:k;
 			Roi roi = overlay.get(i);
 			if (roi==null) break;
 			if (hyperstack) {
@@ -372,6 +402,22 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		drawOverlay(imp.getOverlay(), g);
 	}
 
+	/** Returns the indexes of the overlay elements that may be visible, or null
+		if all elements should be drawn. Markers of point selections and labels
+		may extend beyond the bounds of the ROIs, names even more. */
+	private int[] getVisibleIndexes(Overlay overlay, boolean drawLabels) {
+		if (drawNames || flattening || (srcRect.width>=imageWidth && srcRect.height>=imageHeight))
+			return null;
+		int margin = 32;      // screen pixels
+		if (drawLabels) {
+			int digits = String.valueOf(overlay.size()).length();
+			margin += (font!=null?font.getSize():12)*digits;
+		}
+		margin = (int)Math.ceil(margin/magnification);
+		Rectangle r = new Rectangle(srcRect.x-margin, srcRect.y-margin, srcRect.width+2*margin, srcRect.height+2*margin);
+		return overlay.getIndexes(r);
+	}
+
     private void initGraphics(Overlay overlay, Graphics g, Color textColor, Color defaultColor) {
 		if (smallFont==null) {
 			smallFont = new Font("SansSerif", Font.PLAIN, 9);
@@ -537,16 +583,24 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		}
 		Roi roi = imp.getRoi();
 		try {
-			if (imageUpdated) {
-				imageUpdated = false;
-				imp.updateImage();
-			}
 			Graphics offScreenGraphics = offScreenImage.getGraphics();
-			setInterpolation(offScreenGraphics, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
-			if (img!=null)
-				offScreenGraphics.drawImage(img, 0, 0, srcRectWidthMag, srcRectHeightMag,
-					srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+			if (renderInBackground()) {
+				if (imageUpdated) {
+					imageUpdated = false;
+					imp.updateImage();  // on this thread: may change LUTs and the ContrastAdjuster
+					renderGeneration++;
+				}
+				if (renderer==null)
+					renderer = new ImageRenderer(this);
+				setInterpolation(offScreenGraphics, Prefs.interpolateScaledImages);
+				renderer.draw(offScreenGraphics, srcRect, magnification, srcRectWidthMag, srcRectHeightMag, renderGeneration);
+			} else {
+				if (imageUpdated) {
+					imageUpdated = false;
+					imp.updateImage();
+				}
+				drawImage(offScreenGraphics, srcRect, magnification, srcRectWidthMag, srcRectHeightMag);
+			}
 			Overlay overlay = imp.getOverlay();
 			if (overlay!=null)
 				drawOverlay(overlay, offScreenGraphics);
@@ -1655,17 +1709,24 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		boolean labels = o.getDrawLabels();
 		int sx = screenX(ox);
 		int sy = screenY(oy);
+		double grabLineWidth = 1.1 + 5./magnification;
+		int margin = (int)Math.ceil(grabLineWidth/2) + 1;
+		int[] indexes = o.getIndexes(new Rectangle(ox-margin, oy-margin, 2*margin+1, 2*margin+1));
 		for (int i=o.size()-1; i>=0; i--) {
+			boolean candidate = indexes==null || Arrays.binarySearch(indexes, i)>=0;
+			if (!candidate && !(labels&&labelRects!=null&&i<labelRects.length&&labelRects[i]!=null))
+				continue;
 			Roi roi = o.get(i);
 			if (roi==null)
 				continue;
 			//IJ.log(".isAltDown: "+roi.contains(ox, oy));
 			boolean containsMousePoint = false;
-			if (roi instanceof Line) {	//grab line roi near its center
-				double grabLineWidth = 1.1 + 5./magnification;
-				containsMousePoint = (((Line)roi).getFloatPolygon(grabLineWidth)).contains(ox, oy);
-			} else
-				containsMousePoint = roi.contains(ox, oy);
+			if (candidate) {
+				if (roi instanceof Line)	//grab line roi near its center
+					containsMousePoint = (((Line)roi).getFloatPolygon(grabLineWidth)).contains(ox, oy);
+				else
+					containsMousePoint = roi.contains(ox, oy);
+			}
 			if (containsMousePoint || (labels&&labelRects!=null&&labelRects[i]!=null&&labelRects[i].contains(sx,sy))) {
 				if (hyperstack && roi.getPosition()==0) {
 					int c = roi.getCPosition();
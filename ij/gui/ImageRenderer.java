@@ -0,0 +1,132 @@
+package ij.gui;
+import ij.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Renders the visible part of the image of an ImageCanvas in a background
+	thread (see Prefs.backgroundRendering), so that converting the pixels for
+	display (16 and 32-bit images, composites) does not block the event
+	dispatch thread. paint only draws the latest completed frame; if it
+	does not fit the current srcRect and magnification, it is drawn at its
+	position in the current view and a new frame is requested. A request
+	that is superseded by a newer one (e.g. while panning or zooming) is
+	not started, or its result is discarded.
+	The canvas calls imp.updateImage on the event dispatch thread before it
+	requests a frame of a new generation, since updating the image may set
+	LUTs and the channel processors of composite images and update the
+	ContrastAdjuster. The renderer only converts the pixels for display.
+	Overlay and selection are drawn by paint, since they are edited on the
+	event dispatch thread.
+*/
+class ImageRenderer {
+	/** One thread, shared by all canvases */
+	private static ExecutorService executor;
+	private ImageCanvas ic;
+	private volatile Frame frame;            // the latest completed frame
+	private AtomicReference<Frame> request = new AtomicReference<Frame>();
+
+	/** A rendered image of srcRect at the given magnification, or a request for it */
+	private static class Frame {
+		Rectangle srcRect;
+		double magnification;
+		int width, height;
+		int generation;
+		BufferedImage image;
+
+		Frame(Rectangle srcRect, double magnification, int width, int height, int generation) {
+			this.srcRect = new Rectangle(srcRect);
+			this.magnification = magnification;
+			this.width = width;
+			this.height = height;
+			this.generation = generation;
+		}
+
+		boolean matches(Rectangle srcRect, double magnification, int width, int height, int generation) {
+			return srcRect.equals(this.srcRect) && magnification==this.magnification
+				&& width==this.width && height==this.height && generation==this.generation;
+		}
+	}
+
+	ImageRenderer(ImageCanvas ic) {
+		this.ic = ic;
+	}
+
+	/** Draws the image with 'width' x 'height' pixels, as far as rendered.
+		'generation' is incremented by the canvas whenever the image has been
+		updated (ImagePlus.updateImage). */
+	void draw(Graphics g, Rectangle srcRect, double magnification, int width, int height, int generation) {
+		Frame f = frame;
+		if (f!=null && f.matches(srcRect, magnification, width, height, generation)) {
+			g.drawImage(f.image, 0, 0, null);
+			return;
+		}
+		g.setColor(ic.getBackground());
+		g.fillRect(0, 0, width, height);
+		if (f!=null) {       // the previous frame where it is in the current view
+			int x = (int)Math.round((f.srcRect.x-srcRect.x)*magnification);
+			int y = (int)Math.round((f.srcRect.y-srcRect.y)*magnification);
+			int w = (int)Math.round(f.srcRect.width*magnification);
+			int h = (int)Math.round(f.srcRect.height*magnification);
+			g.drawImage(f.image, x, y, w, h, null);
+		}
+		Frame r = request.get();
+		if (r==null || !r.matches(srcRect, magnification, width, height, generation))
+			submit(new Frame(srcRect, magnification, width, height, generation));
+	}
+
+	/** Discards the frame, e.g. when the canvas is no longer used */
+	void reset() {
+		frame = null;
+		request.set(null);
+	}
+
+	private void submit(final Frame f) {
+		request.set(f);
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				if (request.get()!=f)
+					return;              // superseded
+				try {
+					render(f);
+				} catch (Throwable e) {
+					request.compareAndSet(f, null);
+					if (e instanceof OutOfMemoryError)
+						IJ.outOfMemory("Render");
+					else
+						IJ.handleException(e);
+					return;
+				}
+				if (request.get()!=f)
+					return;
+				frame = f;
+				ic.repaint();
+			}
+		});
+	}
+
+	private void render(Frame f) {
+		BufferedImage image = new BufferedImage(f.width, f.height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(ic.getBackground());
+		g.fillRect(0, 0, f.width, f.height);
+		ic.drawImage(g, f.srcRect, f.magnification, f.width, f.height);
+		g.dispose();
+		f.image = image;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor==null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Image-Renderer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+}
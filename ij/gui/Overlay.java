@@ -21,7 +21,10 @@ public class Overlay implements Iterable<Roi> {
     private boolean isCalibrationBar;
     private boolean selectable = true;
     private boolean draggable = true;
-    
+    private OverlayIndex index;
+    /** Smaller overlays are searched without an index */
+    private static final int MIN_INDEXED_SIZE = 200;
+
     /** Constructs an empty Overlay. */
     public Overlay() {
     	list = new Vector<Roi>();
@@ -83,6 +86,7 @@ public class Overlay implements Iterable<Roi> {
    /** Removes all the ROIs in this Overlay. */
     public void clear() {
     	list.clear();
+    	index = null;
     }
 
     /** Returns the ROI with the specified index or null if the index is invalid. */
@@ -117,6 +121,14 @@ public class Overlay implements Iterable<Roi> {
     /** Returns the index of the last ROI that contains the point (x,y)
     	or null if no ROI contains the point. */
     public int indexAt(int x, int y) {
+    	int[] indexes = getIndexes(new Rectangle(x-6, y-6, 13, 13));
+    	if (indexes!=null) {
+			for (int k=indexes.length-1; k>=0; k--) {
+				if (contains(get(indexes[k]),x,y))
+					return indexes[k];
+			}
+			return -1;
+    	}
      	Roi[] rois = toArray();
 		for (int i=rois.length-1; i>=0; i--) {
 			if (contains(rois[i],x,y))
@@ -135,9 +147,31 @@ public class Overlay implements Iterable<Roi> {
 	
     /** Returns 'true' if this Overlay contains the specified ROI. */
     public boolean contains(Roi roi) {
+    	int[] indexes = roi!=null ? getIndexes(roi.getBounds()) : null;
+    	if (indexes!=null) {    // equal ROIs have the same bounds
+    		for (int k=0; k<indexes.length; k++) {
+    			if (roi.equals(get(indexes[k])))
+    				return true;
+    		}
+    		return false;
+    	}
     	return list.contains(roi);
     }
 
+    /** Returns the indexes, in ascending order, of the ROIs whose bounds,
+    	enlarged by the line width, intersect 'r', or null if the overlay is
+    	too small for this to be faster than testing all ROIs. A spatial index
+    	is created with the first call and updated with the following ones. */
+    synchronized int[] getIndexes(Rectangle r) {
+    	if (size()<MIN_INDEXED_SIZE) {
+    		index = null;
+    		return null;
+    	}
+    	if (index==null)
+    		index = new OverlayIndex();
+    	return index.getIndexes(this, r.x, r.y, r.x+r.width, r.y+r.height);
+    }
+
     /** Returns the number of ROIs in this Overlay. */
     public int size() {
     	return list.size();
@@ -468,7 +502,7 @@ public class Overlay implements Iterable<Roi> {
 		imp.updateAndDraw();
     }
 
-    void setVector(Vector<Roi> v) {list = v;}
+    void setVector(Vector<Roi> v) {list = v; index = null;}
         
     Vector<Roi> getVector() {return list;}
     
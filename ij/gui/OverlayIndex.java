@@ -0,0 +1,232 @@
+package ij.gui;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Vector;
+
+/** A grid of the bounds of the ROIs of an Overlay, for finding the ROIs in
+	the visible area or under the cursor without testing all of them. Each
+	cell lists the ROIs whose bounds (enlarged by the line width) overlap it;
+	ROIs that would cover many cells are kept in a separate list.
+	<p>
+	ROIs can be modified without the Overlay being notified (e.g., moved by
+	dragging, or via getVector), so each query first compares the bounds of
+	all ROIs with those in the index, which is much faster than drawing or
+	testing them. ROIs that have been added or changed since the grid was
+	built are kept in the separate list until there are enough of them to
+	rebuild the grid.
+*/
+class OverlayIndex {
+	/** ROIs covering more cells are not entered in the grid */
+	private static final int MAX_CELLS_PER_ROI = 64;
+	private int n;                           // number of ROIs indexed
+	private Roi[] rois;
+	private int[] roiX, roiY, roiWidth, roiHeight;   // the bounds of the ROIs when indexed
+	private float[] strokeWidths;
+	private int[] x1, y1, x2, y2;            // extent (inclusive) of each ROI
+	private boolean[] inGrid;                // otherwise in 'others'
+	private int gridX, gridY, cellSize, nx, ny;
+	private int[] cellStart, cellRois;       // the ROIs of cell c are cellRois[cellStart[c]] ... cellRois[cellStart[c+1]-1]
+	private int[] others = new int[16];      // large ROIs and ROIs added or changed since the grid was built
+	private int nOthers, nLarge;
+	private int[] seen;                      // the query where the ROI was found last
+	private int query;
+	private Object[] elements = new Object[0];   // buffer for the elements of the overlay
+
+	/** Returns the indexes of the ROIs of 'overlay' whose bounds, enlarged by
+		the line width, intersect the rectangle from (xmin, ymin) to (xmax, ymax),
+		inclusive, in ascending order. */
+	synchronized int[] getIndexes(Overlay overlay, int xmin, int ymin, int xmax, int ymax) {
+		update(overlay);
+		if (++query==Integer.MAX_VALUE) {
+			Arrays.fill(seen, 0);
+			query = 1;
+		}
+		int[] indexes = new int[64];
+		int count = 0;
+		if (nx>0) {
+			int cx1=cellX(xmin), cx2=cellX(xmax), cy1=cellY(ymin), cy2=cellY(ymax);
+			for (int cy=cy1; cy<=cy2; cy++) {
+				for (int c=cy*nx+cx1; c<=cy*nx+cx2; c++) {
+					for (int j=cellStart[c]; j<cellStart[c+1]; j++) {
+						int i = cellRois[j];
+						if (!inGrid[i] || seen[i]==query)
+							continue;
+						seen[i] = query;
+						if (x1[i]<=xmax && x2[i]>=xmin && y1[i]<=ymax && y2[i]>=ymin) {
+							if (count==indexes.length)
+								indexes = Arrays.copyOf(indexes, 2*count);
+							indexes[count++] = i;
+						}
+					}
+				}
+			}
+		}
+		for (int j=0; j<nOthers; j++) {
+			int i = others[j];
+			if (rois[i]!=null && x1[i]<=xmax && x2[i]>=xmin && y1[i]<=ymax && y2[i]>=ymin) {
+				if (count==indexes.length)
+					indexes = Arrays.copyOf(indexes, 2*count);
+				indexes[count++] = i;
+			}
+		}
+		indexes = Arrays.copyOf(indexes, count);
+		Arrays.sort(indexes);
+		return indexes;
+	}
+
+	/** Brings the index up to date with the ROIs of 'overlay' */
+	private void update(Overlay overlay) {
+		int size = getElements(overlay);
+		if (rois==null || size<n) {    // ROIs removed: the indexes have shifted
+			build(size);
+			return;
+		}
+		ensureCapacity(size);
+		for (int i=0; i<size; i++) {
+			Roi roi = getRoi(i);
+			if (i<n && roi==rois[i] && (roi==null || roi.x==roiX[i] && roi.y==roiY[i]
+			&& roi.width==roiWidth[i] && roi.height==roiHeight[i] && roi.getStrokeWidth()==strokeWidths[i]))
+				continue;
+			if (i>=n || inGrid[i]) {
+				if (nOthers==others.length)
+					others = Arrays.copyOf(others, 2*nOthers);
+				others[nOthers++] = i;
+			}
+			setRoi(i, roi);     // no longer in the grid
+		}
+		n = size;
+		if (nOthers-nLarge>n/8+256)
+			build(size);
+	}
+
+	/** Builds the grid from the first 'size' elements */
+	private void build(int size) {
+		n = size;
+		ensureCapacity(n);
+		int xmin=Integer.MAX_VALUE, ymin=Integer.MAX_VALUE, xmax=Integer.MIN_VALUE, ymax=Integer.MIN_VALUE;
+		for (int i=0; i<n; i++) {
+			Roi roi = getRoi(i);
+			setRoi(i, roi);
+			if (roi==null)
+				continue;
+			xmin = Math.min(xmin, x1[i]);
+			ymin = Math.min(ymin, y1[i]);
+			xmax = Math.max(xmax, x2[i]);
+			ymax = Math.max(ymax, y2[i]);
+		}
+		nOthers = nLarge = 0;
+		nx = ny = 0;
+		if (xmin>xmax)
+			return;
+		double area = ((double)xmax-xmin+1)*((double)ymax-ymin+1);
+		cellSize = (int)Math.max(4, Math.ceil(Math.sqrt(2.0*area/n)));
+		gridX = xmin;
+		gridY = ymin;
+		nx = (int)(((long)xmax-xmin)/cellSize) + 1;
+		ny = (int)(((long)ymax-ymin)/cellSize) + 1;
+		cellStart = new int[nx*ny+1];
+		for (int pass=0; pass<2; pass++) {
+			for (int i=0; i<n; i++) {
+				if (rois[i]==null)
+					continue;
+				int cx1=cellX(x1[i]), cx2=cellX(x2[i]), cy1=cellY(y1[i]), cy2=cellY(y2[i]);
+				if ((cx2-cx1+1)*(cy2-cy1+1)>MAX_CELLS_PER_ROI) {
+					if (pass==0) {
+						if (nOthers==others.length)
+							others = Arrays.copyOf(others, 2*nOthers);
+						others[nOthers++] = i;
+					}
+					continue;
+				}
+				inGrid[i] = true;
+				for (int cy=cy1; cy<=cy2; cy++) {
+					for (int c=cy*nx+cx1; c<=cy*nx+cx2; c++) {
+						if (pass==0)
+							cellStart[c+1]++;
+						else
+							cellRois[--cellStart[c+1]] = i;
+					}
+				}
+			}
+			if (pass==0) {          // cellStart[c+1] = end of cell c; filled backwards in pass 1
+				for (int c=1; c<cellStart.length; c++)
+					cellStart[c] += cellStart[c-1];
+				cellRois = new int[cellStart[cellStart.length-1]];
+			}
+		}
+		nLarge = nOthers;
+		// after pass 1, cellStart[c+1] has been decremented to the start of cell c
+		System.arraycopy(cellStart, 1, cellStart, 0, cellStart.length-1);
+		cellStart[cellStart.length-1] = cellRois.length;
+	}
+
+	/** Copies the elements of the overlay to 'elements' (in one step, which
+		is much faster than Overlay.get) and returns their number. */
+	private int getElements(Overlay overlay) {
+		Vector<Roi> list = overlay.getVector();
+		synchronized(list) {
+			int size = list.size();
+			if (elements.length<size)
+				elements = new Object[Math.max(size, 2*elements.length)];
+			list.toArray(elements);
+			return size;
+		}
+	}
+
+	private Roi getRoi(int i) {
+		Object element = elements[i];
+		return element instanceof Roi ? (Roi)element : null;
+	}
+
+	/** Records the bounds and extent of ROI 'i' */
+	private void setRoi(int i, Roi roi) {
+		rois[i] = roi;
+		inGrid[i] = false;
+		if (roi==null)
+			return;
+		roiX[i] = roi.x;
+		roiY[i] = roi.y;
+		roiWidth[i] = roi.width;
+		roiHeight[i] = roi.height;
+		strokeWidths[i] = roi.getStrokeWidth();
+		Rectangle r = roi.getBounds();   // may differ from x, y, width, height (e.g. arrows)
+		int margin = (int)Math.ceil(strokeWidths[i]) + 1;
+		x1[i] = r.x - margin;
+		y1[i] = r.y - margin;
+		x2[i] = r.x + r.width + margin;
+		y2[i] = r.y + r.height + margin;
+	}
+
+	private void ensureCapacity(int size) {
+		if (rois!=null && rois.length>=size)
+			return;
+		int capacity = rois!=null ? Math.max(size, 2*rois.length) : Math.max(size, 16);
+		rois = rois!=null ? Arrays.copyOf(rois, capacity) : new Roi[capacity];
+		roiX = grow(roiX, capacity);
+		roiY = grow(roiY, capacity);
+		roiWidth = grow(roiWidth, capacity);
+		roiHeight = grow(roiHeight, capacity);
+		strokeWidths = strokeWidths!=null ? Arrays.copyOf(strokeWidths, capacity) : new float[capacity];
+		x1 = grow(x1, capacity);
+		y1 = grow(y1, capacity);
+		x2 = grow(x2, capacity);
+		y2 = grow(y2, capacity);
+		inGrid = inGrid!=null ? Arrays.copyOf(inGrid, capacity) : new boolean[capacity];
+		seen = grow(seen, capacity);
+	}
+
+	private static int[] grow(int[] a, int capacity) {
+		return a!=null ? Arrays.copyOf(a, capacity) : new int[capacity];
+	}
+
+	private int cellX(int x) {
+		int cx = (int)(((long)x-gridX)/cellSize);
+		return cx<0 ? 0 : (cx>=nx ? nx-1 : cx);
+	}
+
+	private int cellY(int y) {
+		int cy = (int)(((long)y-gridY)/cellSize);
+		return cy<0 ? 0 : (cy>=ny ? ny-1 : cy);
+	}
+
+}
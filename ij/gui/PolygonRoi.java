@@ -21,6 +21,9 @@ public class PolygonRoi extends Roi {
 	protected float[] xSpline,ySpline; // relative image coordinates
 	protected int splinePoints = 200;
 	Rectangle clip;
+	/** At magnifications of 1 or more, outlines with fewer points are drawn without
+		removing redundant screen points */
+	private static final int MIN_SIMPLIFIED_POINTS = 100;
 
 	private double angle1, degrees=Double.NaN;
 	private int xClipMin, yClipMin, xClipMax, yClipMax;
@@ -222,23 +225,34 @@ public class PolygonRoi extends Roi {
 				}
 			} else
 				drawSpline(g, xSpline, ySpline, splinePoints, true, fill, isActiveOverlayRoi);
+		} else if (state==NORMAL && width*mag<1.0 && height*mag<1.0 && getStrokeWidth()*mag<=1.0) {
+			g.fillRect(screenXD(x+width/2.0), screenYD(y+height/2.0), 1, 1);   // zoomed out: one or two screen pixels
 		} else {
+			int[] xs=xp2, ys=yp2;
+			int n = nPoints;
+			Stroke gStroke = g2d.getStroke();
+			boolean thinStroke = gStroke instanceof BasicStroke && ((BasicStroke)gStroke).getLineWidth()<=1f;
+			if ((nPoints>=MIN_SIMPLIFIED_POINTS || mag<1.0) && state==NORMAL && thinStroke) {
+				xs = new int[nPoints];
+				ys = new int[nPoints];
+				n = removeRedundantPoints(xp2, yp2, nPoints, xs, ys);
+			}
 			if (type==POLYLINE || type==FREELINE || type==ANGLE || state==CONSTRUCTING) {
-				g.drawPolyline(xp2, yp2, nPoints);
+				g.drawPolyline(xs, ys, n);
 				if (wideLine && !overlay) {
 					g2d.setStroke(onePixelWide);
 					g.setColor(getColor());
-					g.drawPolyline(xp2, yp2, nPoints);
+					g.drawPolyline(xs, ys, n);
 				}
 			} else {
 				if (fill) {
 					if (isActiveOverlayRoi) {
 						g.setColor(Color.cyan);
-						g.drawPolygon(xp2, yp2, nPoints);
+						g.drawPolygon(xs, ys, n);
 					} else
-						g.fillPolygon(xp2, yp2, nPoints);
+						g.fillPolygon(xs, ys, n);
 				} else
-					g.drawPolygon(xp2, yp2, nPoints);
+					g.drawPolygon(xs, ys, n);
 			 }
 			if (state==CONSTRUCTING && type!=FREEROI && type!=FREELINE)
 				drawStartBox(g);
@@ -261,6 +275,44 @@ public class PolygonRoi extends Roi {
 		}
 	}
 
+	/** Copies the screen points 'xs', 'ys' to 'xd', 'yd', without the points
+		that do not change the path: points at the same position as the
+		previous one, and points where the path continues in the same
+		direction. When zoomed out, many consecutive points are in the same
+		screen pixel, so that the number of points drawn does not exceed the
+		length of the outline in screen pixels by much. With a line width of
+		at most one pixel and without antialiasing, the result is drawn exactly
+		as the original points; with antialiasing, the line joins at the removed
+		points may differ slightly. Wider lines are not drawn exactly the same,
+		because removing a point changes the line join. Returns the number of
+		points copied (at least two if n>1). */
+	static int removeRedundantPoints(int[] xs, int[] ys, int n, int[] xd, int[] yd) {
+		int m = 0;
+		for (int i=0; i<n; i++) {
+			int x=xs[i], y=ys[i];
+			if (m>0 && x==xd[m-1] && y==yd[m-1])
+				continue;
+			if (m>1) {
+				long dx1=xd[m-1]-xd[m-2], dy1=yd[m-1]-yd[m-2];
+				long dx2=x-xd[m-1], dy2=y-yd[m-1];
+				if (dx1*dy2==dy1*dx2 && dx1*dx2+dy1*dy2>0) {   // extends the last segment
+					xd[m-1] = x;
+					yd[m-1] = y;
+					continue;
+				}
+			}
+			xd[m] = x;
+			yd[m] = y;
+			m++;
+		}
+		if (m==1 && n>1) {           // all in one pixel
+			xd[1] = xd[0];
+			yd[1] = yd[0];
+			m = 2;
+		}
+		return m;
+	}
+
 	private void drawSpline(Graphics g, float[] xpoints, float[] ypoints, int npoints, boolean closed, boolean fill, boolean isActiveOverlayRoi) {
 		if (xpoints==null || xpoints.length==0)
 			return;
@@ -81,6 +81,12 @@ public class ShapeRoi extends Roi {
 	private Vector savedRois; //not really used any more
 	private static Stroke defaultStroke = new BasicStroke();
 
+	/** Shapes with fewer segments are drawn without simplification */
+	private static final int MIN_SIMPLIFIED_SEGMENTS = 100;
+	private Shape screenShape;                // simplified 'shape' in screen coordinates (cache)
+	private Shape screenShapeSource;          // the shape and transform it was created for
+	private AffineTransform screenTransform;
+
 
 	/** Constructs a ShapeRoi from an Roi. */
 	public ShapeRoi(Roi r) {
@@ -953,14 +959,16 @@ public class ShapeRoi extends Roi {
 		}
 		aTx.setTransform(mag, 0.0, 0.0, mag, -basex*mag, -basey*mag);
 		aTx.translate(getXBase(), getYBase());
-		if (fillColor!=null) {
+		if (state==NORMAL && width*mag<1.0 && height*mag<1.0 && getStrokeWidth()*mag<=1.0)
+			g2d.fillRect(screenXD(x+width/2.0), screenYD(y+height/2.0), 1, 1);   // zoomed out: one or two screen pixels
+		else if (fillColor!=null) {
 			if (isActiveOverlayRoi) {
 				g2d.setColor(Color.cyan);
-				g2d.draw(aTx.createTransformedShape(shape));
+				g2d.draw(getScreenShape(aTx));
 			} else
-				g2d.fill(aTx.createTransformedShape(shape));
+				g2d.fill(getScreenShape(aTx));
 		} else
-			g2d.draw(aTx.createTransformedShape(shape));
+			g2d.draw(getScreenShape(aTx));
 		if (stroke!=null) g2d.setStroke(defaultStroke);
 		if (Toolbar.getToolId()==Toolbar.OVAL)
 			drawRoiBrush(g);
@@ -970,6 +978,74 @@ public class ShapeRoi extends Roi {
 			{updateFullWindow = false; imp.draw();}
 	}
 
+	/** Returns the shape transformed to screen coordinates with 'aTx'. Shapes
+		with many segments are simplified for drawing: line segments that end
+		less than half a screen pixel (in x and y) from the previous point are
+		omitted, so that a zoomed-out outline with many vertices is drawn with
+		about as many segments as it has screen pixels. The simplified shape is
+		kept until the shape, magnification or position change. */
+	private synchronized Shape getScreenShape(AffineTransform aTx) {
+		Shape cachedShape = screenShape;
+		if (screenShapeSource==shape) {
+			if (cachedShape==null)           // few segments
+				return aTx.createTransformedShape(shape);
+			if (aTx.equals(screenTransform))
+				return cachedShape;
+		}
+		Shape s = aTx.createTransformedShape(shape);
+		PathIterator pi = s.getPathIterator(null);
+		GeneralPath path = new GeneralPath(pi.getWindingRule());
+		double[] c = new double[6];
+		double lastX=0, lastY=0;         // the last point added
+		double pendingX=0, pendingY=0;   // the last point omitted, if 'pending'
+		boolean pending = false;
+		int nSegments = 0;
+		for (; !pi.isDone(); pi.next()) {
+			int segment = pi.currentSegment(c);
+			nSegments++;
+			if (segment==PathIterator.SEG_LINETO && Math.abs(c[0]-lastX)<0.5 && Math.abs(c[1]-lastY)<0.5) {
+				pendingX = c[0];
+				pendingY = c[1];
+				pending = true;
+				continue;
+			}
+			if (pending && segment!=PathIterator.SEG_LINETO)   // keep the end points of curves and subpaths
+				path.lineTo(pendingX, pendingY);
+			pending = false;
+			switch (segment) {
+				case PathIterator.SEG_MOVETO:
+					path.moveTo(c[0], c[1]);
+					lastX=c[0]; lastY=c[1];
+					break;
+				case PathIterator.SEG_LINETO:
+					path.lineTo(c[0], c[1]);
+					lastX=c[0]; lastY=c[1];
+					break;
+				case PathIterator.SEG_QUADTO:
+					path.quadTo(c[0], c[1], c[2], c[3]);
+					lastX=c[2]; lastY=c[3];
+					break;
+				case PathIterator.SEG_CUBICTO:
+					path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]);
+					lastX=c[4]; lastY=c[5];
+					break;
+				case PathIterator.SEG_CLOSE:
+					path.closePath();
+					Point2D p = path.getCurrentPoint();
+					if (p!=null) {
+						lastX=p.getX(); lastY=p.getY();
+					}
+					break;
+			}
+		}
+		if (pending)
+			path.lineTo(pendingX, pendingY);
+		screenShapeSource = shape;
+		screenTransform = new AffineTransform(aTx);
+		screenShape = nSegments>=MIN_SIMPLIFIED_SEGMENTS ? path : null;
+		return nSegments>=MIN_SIMPLIFIED_SEGMENTS ? path : s;
+	}
+
 	public void drawRoiBrush(Graphics g) {
 		g.setColor(ROIColor);
 		int size = Toolbar.getBrushSize();
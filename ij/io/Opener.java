@@ -1303,8 +1303,8 @@ public class Opener {
 		if ((b0=='o' && b1=='j' && b2=='j' && b3==0) || name.endsWith(".ojj") )
 			return OJJ;
 
-		// Results table (tab-delimited or comma-separated tabular text)
-		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv")) 
+		// Results table (tab-delimited or comma-separated tabular text, or binary table)
+		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".rtb")) 
 			return TABLE;
 
 		// AVI
@@ -4646,6 +4646,8 @@ public class Functions implements MacroConstants, Measurements {
 			getImage().setOpenAsHyperStack(true);
 		else if (arg1.startsWith("black"))
 			Prefs.blackBackground = state;
+		else if (arg1.equals("backgroundrendering"))
+			Prefs.backgroundRendering = state;
 		else if (arg1.startsWith("display lab"))
 			Analyzer.setMeasurement(LABELS, state);
 		else if (arg1.startsWith("limit to"))
@@ -0,0 +1,476 @@
+package ij.measure;
+import ij.util.Tools;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+/** Reads and writes ResultsTables in a compact binary columnar format
+	(".rtb" files). Each column is stored as a separate block, so a single
+	column can be read without reading the rest of the file. Numeric columns
+	are stored using the narrowest type that represents all values exactly
+	(byte, short, int, float or double). String columns and row labels are
+	dictionary encoded. Blocks are optionally Deflate compressed.
+	<p>
+	File layout (big-endian):
+	<pre>
+	 0  "IJTB" magic number
+	 4  version (short)
+	 6  flags (short), bit 0 = Deflate, bit 1 = show row numbers
+	 8  number of rows (int)
+	12  number of columns (int)
+	16  directory size in bytes (int)
+	20  directory, one entry per column:
+	      type (byte), column flags (byte, bit 0 = row labels),
+	      decimal places (short), heading (modified UTF-8),
+	      block offset relative to end of directory (long),
+	      stored block size (int), uncompressed block size (int)
+	    column blocks
+	</pre>
+	A numeric block holds one value per row. A dictionary block holds the
+	number of distinct strings (int), the strings (modified UTF-8) and then
+	one index per row, stored as bytes, shorts or ints depending on the
+	dictionary size; index -1 is a null string.
+	@see ResultsTable#open
+	@see ResultsTable#saveAs
+*/
+public class BinaryTable {
+	/** File extension used by binary tables. */
+	public static final String EXTENSION = ".rtb";
+	static final int MAGIC = 0x494A5442; // "IJTB"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 20;
+	static final int DEFLATE=1, ROW_NUMBERS=2;  // file flags
+	static final int LABELS=1;  // column flags
+	static final int BYTE=1, SHORT=2, INT=3, FLOAT=4, DOUBLE=5, STRINGS=6; // column types
+	private static boolean compress = true;
+
+	private String path;
+	private int flags;
+	private int rows;
+	private Column[] directory;
+	private long dataStart;
+
+	private static class Column {
+		int type, flags, decimalPlaces;
+		String heading;
+		long offset;
+		int storedSize, rawSize;
+	}
+
+	private BinaryTable(String path) {
+		this.path = path;
+	}
+
+	/** Returns 'true' if 'path' ends with ".rtb". */
+	public static boolean isBinaryTable(String path) {
+		return path!=null && path.toLowerCase(Locale.US).endsWith(EXTENSION);
+	}
+
+	/** Sets whether column blocks are Deflate compressed
+		by save(ResultsTable,String). The default is 'true'. */
+	public static void setCompression(boolean deflate) {
+		compress = deflate;
+	}
+
+	/** Returns 'true' if column blocks are Deflate compressed. */
+	public static boolean getCompression() {
+		return compress;
+	}
+
+	/** Saves a ResultsTable using the current compression setting. */
+	public static void save(ResultsTable rt, String path) throws IOException {
+		save(rt, path, compress);
+	}
+
+	/** Saves a ResultsTable, Deflate compressing the column
+		blocks if 'deflate' is true. */
+	public static void save(ResultsTable rt, String path, boolean deflate) throws IOException {
+		int rows = rt.size();
+		ArrayList<Column> cols = new ArrayList<Column>();
+		ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+		String[] labels = rt.getRowLabels();
+		if (labels!=null) {
+			String[] values = new String[rows];
+			System.arraycopy(labels, 0, values, 0, rows);
+			Column c = new Column();
+			c.type = STRINGS;
+			c.flags = LABELS;
+			c.heading = rt.getRowLabelHeading();
+			c.decimalPlaces = ResultsTable.AUTO_FORMAT;
+			cols.add(c);
+			blocks.add(encodeStrings(values));
+		}
+		for (int col=0; col<=rt.getLastColumn(); col++) {
+			if (!rt.columnExists(col))
+				continue;
+			Column c = new Column();
+			c.heading = rt.getColumnHeading(col);
+			c.decimalPlaces = rt.getDecimalPlaces(col);
+			if (rt.isStringColumn(col)) {
+				String[] values = new String[rows];
+				for (int row=0; row<rows; row++)
+					values[row] = rt.getStringValue(col, row);
+				c.type = STRINGS;
+				blocks.add(encodeStrings(values));
+			} else {
+				double[] values = rt.getColumnAsDoubles(col);
+				c.type = numericType(values);
+				blocks.add(encodeNumbers(values, c.type));
+			}
+			cols.add(c);
+		}
+		long offset = 0L;
+		for (int i=0; i<cols.size(); i++) {
+			Column c = cols.get(i);
+			byte[] block = blocks.get(i);
+			c.rawSize = block.length;
+			if (deflate) {
+				block = deflate(block);
+				blocks.set(i, block);
+			}
+			c.storedSize = block.length;
+			c.offset = offset;
+			offset += block.length;
+		}
+		ByteArrayOutputStream dirBytes = new ByteArrayOutputStream();
+		DataOutputStream dir = new DataOutputStream(dirBytes);
+		for (Column c : cols) {
+			dir.writeByte(c.type);
+			dir.writeByte(c.flags);
+			dir.writeShort(c.decimalPlaces);
+			dir.writeUTF(c.heading!=null?c.heading:"");
+			dir.writeLong(c.offset);
+			dir.writeInt(c.storedSize);
+			dir.writeInt(c.rawSize);
+		}
+		dir.close();
+		int fileFlags = (deflate?DEFLATE:0) | (rt.showRowNumbers()?ROW_NUMBERS:0);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(fileFlags);
+			out.writeInt(rows);
+			out.writeInt(cols.size());
+			out.writeInt(dirBytes.size());
+			dirBytes.writeTo(out);
+			for (byte[] block : blocks)
+				out.write(block);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Opens a binary table file and returns it as a ResultsTable. */
+	public static ResultsTable open(String path) throws IOException {
+		BinaryTable bt = new BinaryTable(path);
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			bt.readDirectory(f);
+			ResultsTable rt = new ResultsTable(Integer.valueOf(bt.rows));
+			rt.showRowNumbers((bt.flags&ROW_NUMBERS)!=0);
+			for (Column c : bt.directory) {
+				byte[] block = bt.readBlock(f, c);
+				if ((c.flags&LABELS)!=0) {
+					String[] labels = decodeStrings(block, bt.rows);
+					for (int row=0; row<bt.rows; row++)
+						rt.setLabel(labels[row], row);
+					rt.setRowLabelHeading(c.heading);
+				} else if (c.type==STRINGS) {
+					String[] values = decodeStrings(block, bt.rows);
+					for (int row=0; row<bt.rows; row++) {
+						String s = values[row]!=null?values[row]:"";
+						double value = Tools.parseDouble(s, -Double.MAX_VALUE);
+						if (value==-Double.MAX_VALUE)
+							rt.setValue(c.heading, row, s);
+						else
+							rt.setValue(c.heading, row, value);
+					}
+				} else
+					rt.setColumnValues(c.heading, decodeNumbers(block, c.type, bt.rows), (short)c.decimalPlaces);
+			}
+			return rt;
+		} finally {
+			f.close();
+		}
+	}
+
+	/** Returns the column headings of a binary table file, without
+		reading the column data. The row label heading, if any, is first. */
+	public static String[] getHeadings(String path) throws IOException {
+		BinaryTable bt = new BinaryTable(path);
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			bt.readDirectory(f);
+		} finally {
+			f.close();
+		}
+		String[] headings = new String[bt.directory.length];
+		for (int i=0; i<headings.length; i++)
+			headings[i] = bt.directory[i].heading;
+		return headings;
+	}
+
+	/** Reads a single numeric column from a binary table file without
+		reading the other columns. Returns null if the column is not found.
+		String values that are not numbers are returned as NaN. */
+	public static double[] readColumn(String path, String heading) throws IOException {
+		BinaryTable bt = new BinaryTable(path);
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			bt.readDirectory(f);
+			Column c = bt.find(heading);
+			if (c==null)
+				return null;
+			byte[] block = bt.readBlock(f, c);
+			if (c.type!=STRINGS)
+				return decodeNumbers(block, c.type, bt.rows);
+			String[] s = decodeStrings(block, bt.rows);
+			double[] values = new double[s.length];
+			for (int i=0; i<s.length; i++)
+				values[i] = s[i]!=null?Tools.parseDouble(s[i]):Double.NaN;
+			return values;
+		} finally {
+			f.close();
+		}
+	}
+
+	/** Reads a single column from a binary table file as strings, without
+		reading the other columns. Returns null if the column is not found. */
+	public static String[] readColumnAsStrings(String path, String heading) throws IOException {
+		BinaryTable bt = new BinaryTable(path);
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			bt.readDirectory(f);
+			Column c = bt.find(heading);
+			if (c==null)
+				return null;
+			byte[] block = bt.readBlock(f, c);
+			if (c.type==STRINGS)
+				return decodeStrings(block, bt.rows);
+			double[] values = decodeNumbers(block, c.type, bt.rows);
+			String[] s = new String[values.length];
+			for (int i=0; i<values.length; i++) {
+				int places = c.decimalPlaces;
+				if (places==ResultsTable.AUTO_FORMAT)
+					places = (int)values[i]==values[i]?0:3;
+				s[i] = ResultsTable.d2s(values[i], places);
+			}
+			return s;
+		} finally {
+			f.close();
+		}
+	}
+
+	private Column find(String heading) {
+		for (Column c : directory) {
+			if (c.heading.equals(heading))
+				return c;
+		}
+		return null;
+	}
+
+	private void readDirectory(RandomAccessFile f) throws IOException {
+		if (f.length()<HEADER_SIZE || f.readInt()!=MAGIC)
+			throw new IOException("Not a binary table: "+path);
+		int version = f.readShort();
+		if (version>VERSION)
+			throw new IOException("Unsupported binary table version ("+version+"): "+path);
+		flags = f.readShort();
+		rows = f.readInt();
+		int nColumns = f.readInt();
+		int dirSize = f.readInt();
+		if (rows<0 || nColumns<0 || dirSize<0)
+			throw new IOException("Binary table is corrupt: "+path);
+		byte[] dirBytes = new byte[dirSize];
+		f.readFully(dirBytes);
+		DataInputStream dir = new DataInputStream(new ByteArrayInputStream(dirBytes));
+		directory = new Column[nColumns];
+		for (int i=0; i<nColumns; i++) {
+			Column c = new Column();
+			c.type = dir.readByte();
+			c.flags = dir.readByte();
+			c.decimalPlaces = dir.readShort();
+			c.heading = dir.readUTF();
+			c.offset = dir.readLong();
+			c.storedSize = dir.readInt();
+			c.rawSize = dir.readInt();
+			directory[i] = c;
+		}
+		dataStart = HEADER_SIZE + dirSize;
+	}
+
+	private byte[] readBlock(RandomAccessFile f, Column c) throws IOException {
+		byte[] block = new byte[c.storedSize];
+		f.seek(dataStart+c.offset);
+		f.readFully(block);
+		if ((flags&DEFLATE)!=0)
+			block = inflate(block, c.rawSize);
+		return block;
+	}
+
+	/** Returns the narrowest type that represents all values exactly. */
+	static int numericType(double[] values) {
+		boolean integers = true, floats = true;
+		int min=0, max=0;
+		for (int i=0; i<values.length; i++) {
+			double v = values[i];
+			if (integers) {
+				if (v>=Integer.MIN_VALUE && v<=Integer.MAX_VALUE && (int)v==v
+				&& !(v==0.0 && 1.0/v<0.0)) {
+					if (v<min) min=(int)v;
+					if (v>max) max=(int)v;
+				} else
+					integers = false;
+			}
+			if (floats && (double)(float)v!=v && !Double.isNaN(v))
+				floats = false;
+			if (!integers && !floats)
+				return DOUBLE;
+		}
+		if (integers) {
+			if (min>=Byte.MIN_VALUE && max<=Byte.MAX_VALUE)
+				return BYTE;
+			if (min>=Short.MIN_VALUE && max<=Short.MAX_VALUE)
+				return SHORT;
+			return INT;
+		}
+		return FLOAT;
+	}
+
+	static byte[] encodeNumbers(double[] values, int type) {
+		int n = values.length;
+		ByteBuffer buf = ByteBuffer.allocate(n*bytesPerValue(type));
+		switch (type) {
+			case BYTE: for (int i=0; i<n; i++) buf.put((byte)values[i]); break;
+			case SHORT: for (int i=0; i<n; i++) buf.putShort((short)values[i]); break;
+			case INT: for (int i=0; i<n; i++) buf.putInt((int)values[i]); break;
+			case FLOAT: for (int i=0; i<n; i++) buf.putFloat((float)values[i]); break;
+			default: for (int i=0; i<n; i++) buf.putDouble(values[i]); break;
+		}
+		return buf.array();
+	}
+
+	static double[] decodeNumbers(byte[] block, int type, int n) throws IOException {
+		if (block.length<n*bytesPerValue(type))
+			throw new IOException("Binary table column is truncated");
+		ByteBuffer buf = ByteBuffer.wrap(block);
+		double[] values = new double[n];
+		switch (type) {
+			case BYTE: for (int i=0; i<n; i++) values[i]=buf.get(); break;
+			case SHORT: for (int i=0; i<n; i++) values[i]=buf.getShort(); break;
+			case INT: for (int i=0; i<n; i++) values[i]=buf.getInt(); break;
+			case FLOAT: for (int i=0; i<n; i++) values[i]=buf.getFloat(); break;
+			case DOUBLE: for (int i=0; i<n; i++) values[i]=buf.getDouble(); break;
+			default: throw new IOException("Unknown binary table column type: "+type);
+		}
+		return values;
+	}
+
+	private static int bytesPerValue(int type) {
+		switch (type) {
+			case BYTE: return 1;
+			case SHORT: return 2;
+			case INT: case FLOAT: return 4;
+			default: return 8;
+		}
+	}
+
+	static byte[] encodeStrings(String[] values) throws IOException {
+		HashMap<String,Integer> map = new HashMap<String,Integer>();
+		ArrayList<String> dictionary = new ArrayList<String>();
+		int[] indexes = new int[values.length];
+		for (int i=0; i<values.length; i++) {
+			String s = values[i];
+			if (s==null) {
+				indexes[i] = -1;
+				continue;
+			}
+			Integer index = map.get(s);
+			if (index==null) {
+				index = Integer.valueOf(dictionary.size());
+				map.put(s, index);
+				dictionary.add(s);
+			}
+			indexes[i] = index.intValue();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length*2+16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int size = dictionary.size();
+		out.writeInt(size);
+		for (String s : dictionary)
+			out.writeUTF(s);
+		for (int i=0; i<indexes.length; i++) {
+			if (size<Byte.MAX_VALUE)
+				out.writeByte(indexes[i]);
+			else if (size<Short.MAX_VALUE)
+				out.writeShort(indexes[i]);
+			else
+				out.writeInt(indexes[i]);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	static String[] decodeStrings(byte[] block, int n) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+		int size = in.readInt();
+		if (size<0)
+			throw new IOException("Binary table string column is corrupt");
+		String[] dictionary = new String[size];
+		for (int i=0; i<size; i++)
+			dictionary[i] = in.readUTF();
+		String[] values = new String[n];
+		for (int i=0; i<n; i++) {
+			int index;
+			if (size<Byte.MAX_VALUE)
+				index = in.readByte();
+			else if (size<Short.MAX_VALUE)
+				index = in.readShort();
+			else
+				index = in.readInt();
+			if (index>=size)
+				throw new IOException("Binary table string column is corrupt");
+			values[i] = index>=0?dictionary[index]:null;
+		}
+		return values;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length/2+64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(buffer);
+			out.write(buffer, 0, count);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] data, int rawSize) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		byte[] out = new byte[rawSize];
+		try {
+			int n = 0;
+			while (n<rawSize && !inflater.finished()) {
+				int count = inflater.inflate(out, n, rawSize-n);
+				if (count==0 && (inflater.needsInput()||inflater.needsDictionary()))
+					break;
+				n += count;
+			}
+			if (n!=rawSize)
+				throw new IOException("Binary table column is truncated");
+		} catch (DataFormatException e) {
+			throw new IOException("Binary table column is corrupt: "+e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return out;
+	}
+
+}
@@ -1134,6 +1134,37 @@ public class ResultsTable implements Cloneable {
 	String[] getRowLabels() {
 		return rowLabels;
 	}
+
+	String getRowLabelHeading() {
+		return rowLabelHeading;
+	}
+
+	void setRowLabelHeading(String heading) {
+		if (heading!=null)
+			rowLabelHeading = heading;
+	}
+
+	short getDecimalPlaces(int column) {
+		return decimalPlaces[column];
+	}
+
+	boolean isStringColumn(int column) {
+		return stringColumns!=null && stringColumns.get(Integer.valueOf(column))!=null;
+	}
+
+	/** Replaces the values of a numeric column, creating it if necessary. */
+	void setColumnValues(String heading, double[] values, short digits) {
+		int col = getColumnIndex(heading);
+		if (col==COLUMN_NOT_FOUND)
+			col = getFreeColumn(heading);
+		double[] data = new double[maxRows];
+		int n = Math.min(values.length, counter);
+		System.arraycopy(values, 0, data, 0, n);
+		if (NaNEmptyCells)
+			Arrays.fill(data, n, data.length, Double.NaN);
+		columns[col] = data;
+		decimalPlaces[col] = digits;
+	}
 	
 	/** Opens a tab or comma delimited text file and returns it 
 	* as a ResultsTable, without requiring a try/catch statement.
@@ -1150,9 +1181,11 @@ public class ResultsTable implements Cloneable {
 		return rt;
 	}
 	
-	/** Opens a tab or comma delimited text file and returns it as a 
-	* ResultsTable. Displays a file open dialog if 'path' is empty or null.
+	/** Opens a tab or comma delimited text file, or a binary
+	* table (".rtb") file, and returns it as a ResultsTable.
+	* Displays a file open dialog if 'path' is empty or null.
 	* @see #open2(String)
+	* @see BinaryTable
 	*/
 	public static ResultsTable open(String path) throws IOException {
 		final String lineSeparator =  "\n";
@@ -1164,6 +1197,8 @@ public class ResultsTable implements Cloneable {
 				return null;
 			path = dir+name;
 		}
+		if (BinaryTable.isBinaryTable(path))
+			return BinaryTable.open(path);
 		String text = IJ.openAsString(path);
 		if (text==null)
 			return null;
@@ -1310,6 +1345,11 @@ public class ResultsTable implements Cloneable {
 		return ok;
 	}
 
+	/** Saves this ResultsTable as a tab or comma delimited text file, or as
+	 * a binary columnar table if 'path' ends with ".rtb". Displays a file save
+	 * dialog if 'path' is empty or null.
+	 * @see BinaryTable
+	*/
 	public void saveAs(String path) throws IOException {
 		boolean emptyTable = size()==0 && lastColumn<0;
 		if (path==null || path.equals("")) {
@@ -1319,6 +1359,12 @@ public class ResultsTable implements Cloneable {
 				return;
 			path = sd.getDirectory() + file;
 		}
+		if (BinaryTable.isBinaryTable(path)) {
+			BinaryTable.save(this, path);
+			if (renameWhenSaving)
+				title = (new File(path)).getName();
+			return;
+		}
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
 		delimiter = csv?',':'\t';
 		PrintWriter pw = null;
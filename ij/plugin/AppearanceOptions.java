@@ -15,6 +15,7 @@ public class AppearanceOptions implements PlugIn, DialogListener {
 	private boolean black = Prefs.blackCanvas;
 	private boolean noBorder = Prefs.noBorder;
 	private boolean inverting = Prefs.useInvertingLut;
+	private boolean background = Prefs.backgroundRendering;
 	private int rangeIndex = ContrastAdjuster.get16bitRangeIndex();
 	private LUT[] luts = getLuts();
 	private int menuFontSize = Menus.getFontSize();
@@ -35,6 +36,7 @@ public class AppearanceOptions implements PlugIn, DialogListener {
 		gd.addCheckbox("Use inverting lookup table", Prefs.useInvertingLut);
 		gd.addCheckbox("Auto contrast stacks", Prefs.autoContrast);
 		gd.addCheckbox("IJ window always on top", Prefs.alwaysOnTop);
+		gd.addCheckbox("Render images in background", Prefs.backgroundRendering);
 		if (IJ.isLinux())
 			gd.addCheckbox("Cancel button on right", Prefs.dialogCancelButtonOnRight);
 		gd.addChoice("16-bit range:", ranges, ranges[rangeIndex]);
@@ -60,6 +62,7 @@ public class AppearanceOptions implements PlugIn, DialogListener {
 			Prefs.blackCanvas = black;
 			Prefs.noBorder = noBorder;
 			Prefs.useInvertingLut = inverting;
+			Prefs.backgroundRendering = background;
 			Prefs.setGuiScale(saveScale);
 			if (redrawn) draw();
 			if (repainted) repaintWindow();
@@ -119,6 +122,7 @@ public class AppearanceOptions implements PlugIn, DialogListener {
 		boolean alwaysOnTop = Prefs.alwaysOnTop;
 		Prefs.autoContrast = gd.getNextBoolean();
 		Prefs.alwaysOnTop = gd.getNextBoolean();
+		Prefs.backgroundRendering = gd.getNextBoolean();
 		if (IJ.isLinux())
 			Prefs.dialogCancelButtonOnRight = gd.getNextBoolean();
 		if (!IJ.isMacOSX())
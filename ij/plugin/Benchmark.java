@@ -10,6 +10,10 @@ import ij.util.Tools;
  * IJ.showStatus("!"+"rest of messager") and displays
  * subordinate progress bars as dots by using
  * IJ.showProgress(-currentIndex,finalIndex).
+ * With the argument "background", times Subtract Background
+ * (radius 50) with one thread and with all threads instead
+ * (macro: <code>call("ij.IJ.runPlugIn", "ij.plugin.Benchmark", "background")</code>);
+ * with "statistics", times the AREA+MEAN+STD_DEV+CENTROID measurements.
 */
 public class Benchmark implements PlugIn {
     private String[] results = {
@@ -27,6 +31,14 @@ public class Benchmark implements PlugIn {
     private int counter;
 
     public void run(String arg) {
+        if ("background".equals(arg)) {
+            backgroundBenchmark();
+            return;
+        }
+        if ("statistics".equals(arg)) {
+            statisticsBenchmark();
+            return;
+        }
     	ImagePlus cImp = WindowManager.getCurrentImage();
     	if (cImp!=null && cImp.getWidth()==512 && cImp.getHeight()==512 && cImp.getBitDepth()==24) {
 			IJ.runPlugIn(cImp, "ij.plugin.filter.Benchmark", "");
@@ -88,6 +100,81 @@ public class Benchmark implements PlugIn {
         IJ.showStatus("!"+IJ.d2s(time,1)+" seconds to perform "+counter+" operations on a "+size+"x"+size+" 16-bit image");
     }
     
+    /** Times rolling ball and sliding paraboloid background subtraction with
+     *  radius 50 on 4096x4096 16-bit and float images, with one thread and
+     *  with Prefs.getThreads() threads, and checks that the results are the same. */
+    void backgroundBenchmark() {
+        int bsSize = 4096;
+        int threads = Prefs.getThreads();
+        ImageProcessor.setRandomSeed(12345);
+        ImagePlus imp = IJ.createImage("Untitled", "16-bit ramp", bsSize, bsSize, 1);
+        ImageProcessor.setRandomSeed(Double.NaN);
+        ImageProcessor ip16 = imp.getProcessor();
+        ip16.noise(1000);
+        ResultsTable rt = new ResultsTable();
+        try {
+            for (int bitDepth=16; bitDepth<=32; bitDepth+=16) {
+                for (int paraboloid=0; paraboloid<2; paraboloid++) {
+                    ImageProcessor result1 = null;
+                    for (int nThreads=1; nThreads<=threads; nThreads+=Math.max(threads-1,1)) {
+                        ImageProcessor ip = bitDepth==16 ? ip16.duplicate() : ip16.convertToFloat();
+                        IJ.showStatus("!Subtract Background, "+bitDepth+"-bit, "+nThreads+" thread"+(nThreads>1?"s":""));
+                        Prefs.setThreads(nThreads);
+                        long t0 = System.currentTimeMillis();
+                        new ij.plugin.filter.BackgroundSubtracter().rollingBallBackground(ip, 50, false, false, paraboloid==1, true, true);
+                        double time = (System.currentTimeMillis()-t0)/1000.0;
+                        if (result1==null)
+                            result1 = ip;
+                        else if (!java.util.Arrays.equals((float[])result1.convertToFloat().getPixels(), (float[])ip.convertToFloat().getPixels()))
+                            error("Subtract Background ("+nThreads+" threads)");
+                        rt.addRow();
+                        rt.addValue("Image", bitDepth+"-bit");
+                        rt.addValue("Method", paraboloid==1 ? "Sliding paraboloid" : "Rolling ball");
+                        rt.addValue("Threads", nThreads);
+                        rt.addValue("Time", time);
+                    }
+                }
+            }
+        } finally {
+            Prefs.setThreads(threads);
+        }
+        rt.show("Background Benchmark");
+        IJ.showStatus("");
+    }
+
+    /** Times ImageStatistics with AREA+MEAN+STD_DEV+CENTROID for 8-bit, 16-bit and
+     *  float images, for an oval roi of 3000x3000 pixels and for 2000 rois of
+     *  about 30x30 pixels (as with the particle analyzer). */
+    void statisticsBenchmark() {
+        int measurements = ij.measure.Measurements.AREA+ij.measure.Measurements.MEAN
+            +ij.measure.Measurements.STD_DEV+ij.measure.Measurements.CENTROID;
+        int statsSize = 4096;
+        ResultsTable rt = new ResultsTable();
+        String[] types = {"8-bit", "16-bit", "32-bit"};
+        for (int i=0; i<types.length; i++) {
+            ImagePlus imp = IJ.createImage("Untitled", types[i]+" ramp", statsSize, statsSize, 1);
+            ImageProcessor ip = imp.getProcessor();
+            IJ.showStatus("!Statistics, "+types[i]);
+            ip.setRoi(new OvalRoi(500, 500, 3000, 3000));
+            long t0 = System.currentTimeMillis();
+            for (int n=0; n<10; n++)
+                ImageStatistics.getStatistics(ip, measurements, null);
+            double largeRoiTime = (System.currentTimeMillis()-t0)/10.0;
+            t0 = System.currentTimeMillis();
+            for (int n=0; n<2000; n++) {
+                ip.setRoi(new OvalRoi((n%50)*80, (n/50)*80, 30+n%7, 30+n%5));
+                ImageStatistics.getStatistics(ip, measurements, null);
+            }
+            double smallRoiTime = System.currentTimeMillis()-t0;
+            rt.addRow();
+            rt.addValue("Image", types[i]);
+            rt.addValue("3000x3000 oval (ms)", largeRoiTime);
+            rt.addValue("2000 small ovals (ms)", smallRoiTime);
+        }
+        rt.show("Statistics Benchmark");
+        IJ.showStatus("");
+    }
+
     void analyzeParticles(ImagePlus imp) {
         showProgress("Particle analyzer");
         imp.paste();
@@ -333,13 +333,11 @@ public class FFT implements PlugIn, Measurements {
 		originalWidth = ip.getWidth();
 		originalHeight = ip.getHeight();
 		int maxN = Math.max(originalWidth, originalHeight);
-		int i = 2;
-		while(i<maxN) i *= 2;
-		if (i==maxN && originalWidth==originalHeight) {
+		if (originalWidth==originalHeight && FHT.isFastSize(maxN)) {
 			padded = false;
 			return ip;
 		}
-		maxN = i;
+		maxN = FHT.getFastSize(maxN);
 		showStatus("Padding to "+ maxN + "x" + maxN);
 		if (maxN>=65536) {
 			IJ.error("FFT", "Padded image is too large ("+maxN+"x"+maxN+")");
@@ -33,19 +33,19 @@ public class FFTMath implements PlugIn {
         int nGoodImages = 0;
         for (int i=0; i<wList.length; i++) {
             ImagePlus imp = WindowManager.getImage(wList[i]);
-            if (imp == null || imp.getWidth() != imp.getHeight() || !FHT.isPowerOf2(imp.getWidth()))
-                wList[i] = 0;               //mark images that are not a power of 2
+            if (imp == null || imp.getWidth() != imp.getHeight() || !FHT.isFastSize(imp.getWidth()))
+                wList[i] = 0;               //mark images that are not square or not a size suitable for the FHT
             else
                 nGoodImages++;
         }
         if (nGoodImages == 0) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
+        	IJ.error("FFT Math", "Images must be square, with an even size that has no prime\nfactors other than 2, 3, 5 and 7 (256x256, 360x360, 512x512, etc.)");
         	return false;
         }
         int[] wList2 = new int[nGoodImages];
         String[] titles = new String[nGoodImages];
         for (int i=0, i2=0; i<wList.length; i++) {
-            if (wList[i] == 0) continue;    //ignore this image, not power of 2
+            if (wList[i] == 0) continue;    //ignore this image, not a suitable size
             wList2[i2] = wList[i];
             ImagePlus imp = WindowManager.getImage(wList2[i2]);
             if (imp!=null)
@@ -97,8 +97,8 @@ public class FFTMath implements PlugIn {
         	if (imp2!=imp1)
        	 		h2 = new FHT(ip2);
        	}
-        if (!h1.powerOf2Size()) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
+        if (!h1.fastSize()) {
+        	IJ.error("FFT Math", "Images must be square, with an even size that has no prime\nfactors other than 2, 3, 5 and 7 (256x256, 360x360, 512x512, etc.)");
         	return;
         }
         if (imp1.getWidth()!=imp2.getWidth()) {
@@ -3,10 +3,8 @@ package ij.plugin;
 import ij.*;
 import ij.process.*;
 import ij.gui.GenericDialog;
-import ij.util.ThreadUtil;
 import ij.plugin.RGBStackMerge;
 import ij.gui.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * This plugin implements most of the 3D filters in the Process/Filters submenu.
@@ -77,41 +75,10 @@ public class Filters3D implements PlugIn {
 		if (stackorig.getBitDepth()==24)
 			return filterRGB(stackorig, filter, vx, vy, vz);
 
-		// get stack info
-		final ImageStack stack = stackorig;
-		final float voisx = vx;
-		final float voisy = vy;
-		final float voisz = vz;
-		final int width= stack.getWidth();
-		final int height= stack.getHeight();
-		final int depth= stack.size();
 		ImageStack res = null;
-		
 		if ((filter==MEAN) || (filter==MEDIAN) || (filter==MIN) || (filter==MAX) || (filter==VAR)) {
-			if (filter==VAR)
-				res = ImageStack.create(width, height, depth, 32);
-			else
-				res = ImageStack.create(width, height, depth, stackorig.getBitDepth());
 			IJ.showStatus("3D filtering...");
-			// PARALLEL 
-			final ImageStack out = res;
-			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
-			final int f = filter;
-			final int dec = (int) Math.ceil((double) stack.size() / (double) n_cpus);
-			Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-			for (int ithread = 0; ithread < threads.length; ithread++) {
-				threads[ithread] = new Thread() {
-					public void run() {
-						StackProcessor processor = new StackProcessor(stack);
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-							processor.filter3D(out, voisx, voisy, voisz, dec * k, dec * (k + 1), f);
-						}
-					}
-				};
-			}
-			ThreadUtil.startAndJoin(threads);
+			res = new RankFilters3D(vx, vy, vz).filter(stackorig, filter);
 		}
 		return res;
 	}
@@ -4,6 +4,10 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.util.ThreadUtil;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GaussianBlur3D implements PlugIn {
 	private static double xsigma=2, ysigma=2, zsigma=2;
@@ -58,45 +62,125 @@ public class GaussianBlur3D implements PlugIn {
 	}
 
 	private static void blurZ(ImageStack stack, double sigmaZ) {
-		GaussianBlur gb = new GaussianBlur();
-		double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
-		int w=stack.getWidth(), h=stack.getHeight(), d=stack.size();
-		float[] zpixels = null;
-		FloatProcessor fp =null;
+		blurZ(new ImageStack[] {stack}, sigmaZ);
+	}
+
+	/** Blurs all volumes in z direction. The xz planes of all volumes are
+		distributed among the threads. Each xz plane is copied line by line
+		from the slice arrays into a per-thread buffer, which is blurred along
+		its columns, and written back. */
+	private static void blurZ(final ImageStack[] volumes, final double sigmaZ) {
+		final int width = volumes[0].getWidth();
+		final int height = volumes[0].getHeight();
+		final int depth = volumes[0].size();
+		final int bitDepth = volumes[0].getBitDepth();
+		if (depth<2)
+			return;
+		final double accuracy = (bitDepth==8||bitDepth==24)?0.002:0.0002;
+		final int channels = bitDepth==24 ? 3 : 1;
+		final int nPlanes = volumes.length*height;
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), nPlanes);
 		IJ.showStatus("Z blurring");
-		gb.showProgress(false);
-		int channels = stack.getProcessor(1).getNChannels();
-		for (int y=0; y<h; y++) {
-			IJ.showProgress(y, h-1);
-			for (int channel=0; channel<channels; channel++) {
-				zpixels = stack.getVoxels(0, y, 0, w, 1, d, zpixels, channel);
-				if (fp==null)
-					fp = new FloatProcessor(w, d, zpixels);
-				//if (y==h/2) new ImagePlus("before-"+h/2, fp.duplicate()).show();
-				gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
-				stack.setVoxels(0, y, 0, w, 1, d, zpixels, channel);
-			}
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final boolean showProgress = t==0;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					GaussianBlur gb = new GaussianBlur();
+					gb.showProgress(false);
+					gb.setNThreads(1);    // the planes are processed in parallel
+					FloatProcessor fp = new FloatProcessor(width, depth);
+					float[] xzPixels = (float[])fp.getPixels();
+					Object[] slices = new Object[depth];
+					for (int i=nextPlane.getAndIncrement(); i<nPlanes; i=nextPlane.getAndIncrement()) {
+						if (Thread.currentThread().isInterrupted())
+							return null;
+						ImageStack stack = volumes[i/height];
+						int y = i%height;
+						for (int z=0; z<depth; z++)
+							slices[z] = stack.getPixels(z+1);
+						for (int channel=0; channel<channels; channel++) {
+							for (int z=0; z<depth; z++)
+								getLine(slices[z], y*width, xzPixels, z*width, width, channel);
+							gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
+							for (int z=0; z<depth; z++)
+								setLine(xzPixels, z*width, slices[z], y*width, width, channel);
+						}
+						if (showProgress && (i&0xf)==0)
+							IJ.showProgress(i, nPlanes);
+					}
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoin(callables);
+		IJ.showProgress(1.0);
 		IJ.showStatus("");
 	}
 
+	/** Copies 'length' pixels starting at 'offset' of a slice to 'line' as float */
+	private static void getLine(Object pixels, int offset, float[] line, int lineOffset, int length, int channel) {
+		if (pixels instanceof float[])
+			System.arraycopy((float[])pixels, offset, line, lineOffset, length);
+		else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<length; i++)
+				line[lineOffset+i] = shorts[offset+i]&0xffff;
+		} else if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<length; i++)
+				line[lineOffset+i] = bytes[offset+i]&0xff;
+		} else {
+			int[] ints = (int[])pixels;
+			int shift = 16 - 8*channel;
+			for (int i=0; i<length; i++)
+				line[lineOffset+i] = (ints[offset+i]>>shift)&0xff;
+		}
+	}
+
+	/** Writes a line back to a slice, with rounding and clamping for integer types */
+	private static void setLine(float[] line, int lineOffset, Object pixels, int offset, int length, int channel) {
+		if (pixels instanceof float[])
+			System.arraycopy(line, lineOffset, (float[])pixels, offset, length);
+		else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<length; i++) {
+				float value = line[lineOffset+i];
+				shorts[offset+i] = (short)(value<0f ? 0 : (value>65535f ? 65535 : (int)(value+0.5f)));
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<length; i++) {
+				float value = line[lineOffset+i];
+				bytes[offset+i] = (byte)(value<0f ? 0 : (value>255f ? 255 : (int)(value+0.5f)));
+			}
+		} else {
+			int[] ints = (int[])pixels;
+			int shift = 16 - 8*channel;
+			int mask = ~(0xff<<shift);
+			for (int i=0; i<length; i++) {
+				float value = line[lineOffset+i];
+				int v = value<0f ? 0 : (value>255f ? 255 : (int)(value+0.5f));
+				ints[offset+i] = (ints[offset+i]&mask) | (v<<shift);
+			}
+		}
+	}
+
 	private static void blurHyperStackZ(ImagePlus imp, double zsigma) {
 		int channels = imp.getNChannels();
 		int slices = imp.getNSlices();
 		int timePoints = imp.getNFrames();
-		int nVolumes = channels*timePoints;
+		ArrayList<ImageStack> volumes = new ArrayList<ImageStack>();
 		for (int c=1; c<=channels; c++) {
-			if (slices==1) {
-				ImageStack stack = getVolume(imp, c, 1);
-				blurZ(stack, zsigma);
-			} else {
-				for (int t=1; t<=timePoints; t++) {
-					ImageStack stack = getVolume(imp, c, t);
-					blurZ(stack, zsigma);
-					//new ImagePlus("stack-"+c+"-"+t, stack).show();
-				}
+			if (slices==1)
+				volumes.add(getVolume(imp, c, 1));
+			else {
+				for (int t=1; t<=timePoints; t++)
+					volumes.add(getVolume(imp, c, t));
 			}
 		}
+		blurZ(volumes.toArray(new ImageStack[volumes.size()]), zsigma);
 	}
 
 	private static ImageStack getVolume(ImagePlus imp, int c, int t) {
@@ -0,0 +1,320 @@
+package ij.plugin;
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+import ij.measure.ResultsTable;
+import ij.util.ThreadUtil;
+import java.awt.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This plugin implements the Image/Stacks/Tools/Correct Drift command.
+	It removes translations between the frames of a stack (or the slices,
+	if there is only one frame), as determined by phase correlation
+	(see ij.process.PhaseCorrelator). The shifts are determined with the
+	current channel (and slice, for hyperstacks), within the bounding
+	rectangle of the selection, if any, and applied to all channels and
+	slices of the frame. The frames are processed in parallel.
+	<p>
+	In-memory stacks are modified in place. For virtual stacks, the frames
+	are read once to determine the shifts, and the result is a new virtual
+	stack that translates the frames when they are read.
+*/
+public class StackRegistration implements PlugIn {
+	/** Reference frames */
+	public static final int FIRST=0, PREVIOUS=1, CURRENT=2;
+	private static final String[] referenceChoices = {"First frame", "Previous frame", "Current frame"};
+	private static int staticReference = FIRST;
+	private static boolean staticSubpixel = true;
+	private static int staticInterpolation = ImageProcessor.BILINEAR;
+	private static boolean staticShowShifts;
+	private int reference = staticReference;
+	private boolean subpixel = staticSubpixel;
+	private int interpolation = staticInterpolation;
+	private boolean showShifts = staticShowShifts;
+	private int nThreads = Prefs.getThreads();
+	private volatile boolean canceled;
+
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		if (getNFrames(imp)<2) {
+			IJ.error("Correct Drift", "Stack required");
+			return;
+		}
+		if (!showDialog(imp))
+			return;
+		imp.startTiming();
+		Rectangle rect = imp.getRoi()!=null && imp.getRoi().isArea() ? imp.getRoi().getBounds() : null;
+		double[][] shifts = getShifts(imp, reference, rect);
+		if (shifts==null)
+			return;
+		if (imp.getStack().isVirtual()) {
+			ImagePlus imp2 = createShiftedImage(imp, shifts, interpolation);
+			imp2.show();
+		} else {
+			applyShifts(imp, shifts, interpolation);
+			Undo.reset();
+			imp.updateAndDraw();
+		}
+		IJ.showTime(imp, imp.getStartTime(), "", getNFrames(imp));
+		if (showShifts)
+			showShifts(shifts);
+	}
+
+	private boolean showDialog(ImagePlus imp) {
+		String[] methods = ImageProcessor.getInterpolationMethods();
+		GenericDialog gd = new GenericDialog("Correct Drift");
+		gd.addChoice("Reference:", referenceChoices, referenceChoices[reference]);
+		gd.addCheckbox("Subpixel accuracy", subpixel);
+		gd.addChoice("Interpolation:", methods, methods[interpolation]);
+		gd.addCheckbox("Show shifts", showShifts);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		reference = gd.getNextChoiceIndex();
+		subpixel = gd.getNextBoolean();
+		interpolation = gd.getNextChoiceIndex();
+		showShifts = gd.getNextBoolean();
+		if (!IJ.isMacro()) {
+			staticReference = reference;
+			staticSubpixel = subpixel;
+			staticInterpolation = interpolation;
+			staticShowShifts = showShifts;
+		}
+		return true;
+	}
+
+	/** Sets whether the shifts should be determined with subpixel accuracy (default true). */
+	public void setSubpixel(boolean subpixel) {
+		this.subpixel = subpixel;
+	}
+
+	/** Sets the number of threads; the default is Prefs.getThreads(). */
+	public void setNThreads(int nThreads) {
+		this.nThreads = Math.max(nThreads, 1);
+	}
+
+	/** Returns the shifts {dx, dy, peak} of all frames relative to the
+		reference frame (FIRST, PREVIOUS or CURRENT), determined within
+		'rect' (may be null), or null if canceled. With PREVIOUS, the shifts
+		between successive frames are added up, so the result is relative to
+		the first frame. Translating a frame by (-dx, -dy) corrects its drift;
+		for 'peak', see PhaseCorrelator.getShift. */
+	public double[][] getShifts(final ImagePlus imp, int reference, Rectangle rect) {
+		final ImageStack stack = imp.getStack();
+		final Rectangle r = rect!=null ? rect.intersection(new Rectangle(imp.getWidth(), imp.getHeight())) :
+			new Rectangle(imp.getWidth(), imp.getHeight());
+		final int nFrames = getNFrames(imp);
+		final int channel = imp.getChannel();
+		final int position = imp.getNFrames()>1 ? imp.getSlice() : imp.getFrame();
+		final double[][] shifts = new double[nFrames][];
+		final PhaseCorrelator pc = new PhaseCorrelator(r.width, r.height);
+		pc.setSubpixel(subpixel);
+		pc.setNThreads(1);    // the frames are processed in parallel
+		final boolean previous = reference==PREVIOUS;
+		if (!previous) {
+			int refFrame = reference==CURRENT ? getFrame(imp) : 1;
+			pc.setReference(getImage(imp, stack, refFrame, channel, position, r));
+		}
+		// with PREVIOUS, each task processes a block of successive frames, so
+		// that the spectrum of a frame can be used for the next one
+		final int blockSize = previous ? Math.max(1, Math.min(16, nFrames/(4*nThreads))) : 1;
+		final int nBlocks = (nFrames+blockSize-1)/blockSize;
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		final AtomicInteger framesDone = new AtomicInteger(0);
+		int nThreads = Math.min(this.nThreads, nBlocks);
+		canceled = false;
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final boolean isMainThread = t==0;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int b=nextBlock.getAndIncrement(); b<nBlocks; b=nextBlock.getAndIncrement()) {
+						int first = b*blockSize;
+						int last = Math.min(first+blockSize, nFrames) - 1;
+						float[] previousSpectrum = previous && first>0 ?
+							pc.getSpectrum(getImage(imp, stack, first, channel, position, r)) : null;
+						for (int i=first; i<=last; i++) {
+							if (canceled)
+								return null;
+							float[] spectrum = pc.getSpectrum(getImage(imp, stack, i+1, channel, position, r));
+							if (!previous)
+								shifts[i] = pc.getShift(spectrum);
+							else if (previousSpectrum!=null)
+								shifts[i] = pc.getShift(spectrum, previousSpectrum);
+							else
+								shifts[i] = new double[] {0, 0, 1};
+							previousSpectrum = spectrum;
+							int done = framesDone.incrementAndGet();
+							if (isMainThread) {
+								IJ.showProgress(done, nFrames);
+								if (IJ.escapePressed())
+									canceled = true;
+							}
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		IJ.showProgress(1.0);
+		if (canceled) {
+			IJ.beep();
+			IJ.showStatus("Correct Drift canceled");
+			return null;
+		}
+		if (previous) {
+			for (int i=1; i<nFrames; i++) {
+				shifts[i][0] += shifts[i-1][0];
+				shifts[i][1] += shifts[i-1][1];
+			}
+		}
+		return shifts;
+	}
+
+	/** Translates all channels and slices of each frame by the negative of its
+		shift, in place. The stack must not be virtual. */
+	public void applyShifts(ImagePlus imp, final double[][] shifts, final int interpolationMethod) {
+		final ImageStack stack = imp.getStack();
+		final int[][] indexes = getStackIndexes(imp);
+		final AtomicInteger nextFrame = new AtomicInteger(0);
+		int nThreads = Math.min(this.nThreads, shifts.length);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int i=nextFrame.getAndIncrement(); i<shifts.length; i=nextFrame.getAndIncrement()) {
+						for (int index : indexes[i]) {
+							ImageProcessor ip = stack.getProcessor(index);
+							shiftImage(ip, shifts[i], interpolationMethod);
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Returns a new image with a virtual stack that translates the frames of
+		'imp' by the negative of their shifts when they are read. */
+	public ImagePlus createShiftedImage(ImagePlus imp, double[][] shifts, int interpolationMethod) {
+		ImageStack stack = imp.getStack();
+		ShiftedStack stack2 = new ShiftedStack(stack, getStackIndexes(imp), shifts, interpolationMethod);
+		ImagePlus imp2 = imp.createImagePlus();
+		imp2.setStack(WindowManager.getUniqueName("Corrected "+imp.getTitle()), stack2);
+		if (imp.isHyperStack()) {
+			imp2.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+			imp2.setOpenAsHyperStack(true);
+		}
+		return imp2;
+	}
+
+	private static void shiftImage(ImageProcessor ip, double[] shift, int interpolationMethod) {
+		if (shift[0]==0 && shift[1]==0)
+			return;
+		ip.setInterpolationMethod(interpolationMethod);
+		ip.translate(-shift[0], -shift[1]);
+	}
+
+	private void showShifts(double[][] shifts) {
+		ResultsTable rt = new ResultsTable();
+		for (int i=0; i<shifts.length; i++) {
+			rt.incrementCounter();
+			rt.addValue("Frame", i+1);
+			rt.addValue("dX", shifts[i][0]);
+			rt.addValue("dY", shifts[i][1]);
+			rt.addValue("Peak", shifts[i][2]);
+		}
+		rt.showRowNumbers(false);
+		rt.show("Drift");
+	}
+
+	/** The number of frames, or of slices if there is only one frame */
+	private static int getNFrames(ImagePlus imp) {
+		if (!imp.isHyperStack())
+			return imp.getStackSize();
+		return imp.getNFrames()>1 ? imp.getNFrames() : imp.getNSlices();
+	}
+
+	/** The current frame, or slice if there is only one frame */
+	private static int getFrame(ImagePlus imp) {
+		if (!imp.isHyperStack())
+			return imp.getCurrentSlice();
+		return imp.getNFrames()>1 ? imp.getFrame() : imp.getSlice();
+	}
+
+	/** Returns the area 'r' of the given channel of frame 'frame' (1-based),
+		with 'position' the slice (or frame, if the stack has only one frame). */
+	private static ImageProcessor getImage(ImagePlus imp, ImageStack stack, int frame, int channel, int position, Rectangle r) {
+		int index = frame;
+		if (imp.isHyperStack())
+			index = imp.getNFrames()>1 ? imp.getStackIndex(channel, position, frame) : imp.getStackIndex(channel, frame, position);
+		ImageProcessor ip;
+		if (stack.isVirtual()) {
+			synchronized(stack) {    // virtual stacks are not necessarily thread-safe
+				ip = stack.getProcessor(index);
+			}
+		} else
+			ip = stack.getProcessor(index);
+		if (r.x!=0 || r.y!=0 || r.width!=ip.getWidth() || r.height!=ip.getHeight()) {
+			ip.setRoi(r);
+			ip = ip.crop();
+		}
+		return ip;
+	}
+
+	/** Returns the stack indexes of all channels and slices for each frame */
+	private static int[][] getStackIndexes(ImagePlus imp) {
+		int nFrames = getNFrames(imp);
+		int perFrame = imp.getStackSize()/nFrames;
+		int[][] indexes = new int[nFrames][perFrame];
+		for (int i=0; i<nFrames; i++) {
+			if (!imp.isHyperStack()) {
+				indexes[i][0] = i+1;
+				continue;
+			}
+			boolean framesVary = imp.getNFrames()>1;
+			int k = 0;
+			for (int c=1; c<=imp.getNChannels(); c++) {
+				if (framesVary) {
+					for (int z=1; z<=imp.getNSlices(); z++)
+						indexes[i][k++] = imp.getStackIndex(c, z, i+1);
+				} else
+					indexes[i][k++] = imp.getStackIndex(c, i+1, 1);
+			}
+		}
+		return indexes;
+	}
+
+	/** A virtual stack with translated images of another stack */
+	private static class ShiftedStack extends VirtualStack {
+		private ImageStack stack;
+		private double[][] shiftOfIndex;
+		private int interpolationMethod;
+
+		ShiftedStack(ImageStack stack, int[][] indexes, double[][] shifts, int interpolationMethod) {
+			super(stack.getWidth(), stack.getHeight(), stack.size());
+			setBitDepth(stack.getBitDepth());
+			setColorModel(stack.getColorModel());
+			this.stack = stack;
+			this.interpolationMethod = interpolationMethod;
+			shiftOfIndex = new double[stack.size()][];
+			for (int i=0; i<indexes.length; i++)
+				for (int index : indexes[i])
+					shiftOfIndex[index-1] = shifts[i];
+		}
+
+		public ImageProcessor getProcessor(int n) {
+			ImageProcessor ip = stack.getProcessor(n);
+			shiftImage(ip, shiftOfIndex[n-1], interpolationMethod);
+			return ip;
+		}
+
+		public String getSliceLabel(int n) {
+			return stack.getSliceLabel(n);
+		}
+	}
+
+}
@@ -5,9 +5,12 @@ import ij.process.*;
 import ij.measure.*;
 import ij.plugin.frame.Recorder;
 import ij.plugin.filter.PlugInFilter;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Process/Binary/Make Binary 
 	and Convert to Mask commands. */
@@ -300,58 +303,47 @@ public class Thresholder implements PlugIn, Measurements, ItemListener {
 	}
 
 	void convertStackToBinary(ImagePlus imp) {
-		int nSlices = imp.getStackSize();
-		double[] minValues = listThresholds?new double[nSlices]:null;
-		double[] maxValues = listThresholds?new double[nSlices]:null;
-		int bitDepth = imp.getBitDepth();
-		if (bitDepth!=8) {
-			IJ.showStatus("Converting to byte");
-			ImageStack stack1 = imp.getStack();
-			ImageStack stack2 = new ImageStack(imp.getWidth(), imp.getHeight());
-			for (int i=1; i<=nSlices; i++) {
-				IJ.showProgress(i, nSlices);
-				String label = stack1.getSliceLabel(i);
-				ImageProcessor ip = stack1.getProcessor(i);
-				ip.resetMinAndMax();
-				if (listThresholds) {
-					minValues[i-1] = ip.getMin();
-					maxValues[i-1] = ip.getMax();
+		final int nSlices = imp.getStackSize();
+		final double[] minValues = new double[nSlices];   // the thresholds, as pixel values
+		final double[] maxValues = new double[nSlices];
+		final int bitDepth = imp.getBitDepth();
+		final ImageStack stack1 = imp.getStack();
+		final ImageProcessor[] masks = new ImageProcessor[nSlices];
+		final AtomicInteger nextSlice = new AtomicInteger(0);
+		final AtomicInteger slicesDone = new AtomicInteger(0);
+		IJ.showStatus("Auto-thresholding");
+		Callable[] callables = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nSlices))];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int i=nextSlice.getAndIncrement(); i<nSlices; i=nextSlice.getAndIncrement()) {
+						double[] levels = new double[2];
+						masks[i] = convertToMask(stack1.getProcessor(i+1), levels);
+						minValues[i] = levels[0];
+						maxValues[i] = levels[1];
+						IJ.showProgress(slicesDone.incrementAndGet(), nSlices);
+					}
+					return null;
 				}
-				stack2.addSlice(label, ip.convertToByte(true));
-			}
-			imp.setStack(null, stack2);
+			};
 		}
-		ImageStack stack = imp.getStack();
-		IJ.showStatus("Auto-thresholding");
-		if (listThresholds)
+		if (callables.length==1)
+			try {callables[0].call();} catch (Exception e) {IJ.handleException(e);}
+		else
+			ThreadUtil.startAndJoin(callables);
+		if (slicesDone.get()<nSlices)
+			return;        // exception in a thread, has been reported
+		if (listThresholds) {
 			IJ.log("Thresholding method: "+method);
-		for (int i=1; i<=nSlices; i++) {
-			IJ.showProgress(i, nSlices);
-			ImageProcessor ip = stack.getProcessor(i);
-			if (method.equals("Default") && background.equals("Default"))
-				ip.setAutoThreshold(ImageProcessor.ISODATA2, ImageProcessor.NO_LUT_UPDATE);
-			else
-				ip.setAutoThreshold(method, !background.equals("Light"), ImageProcessor.NO_LUT_UPDATE);
-			minThreshold = ip.getMinThreshold();
-			maxThreshold = ip.getMaxThreshold();
-			if (listThresholds) {
-				double t1 = minThreshold;
-				double t2 = maxThreshold;
-				if (bitDepth!=8) {
-					t1 = minValues[i-1] + (t1/255.0)*(maxValues[i-1]-minValues[i-1]);
-					t2 = minValues[i-1] + (t2/255.0)*(maxValues[i-1]-minValues[i-1]);
-				}
-				int digits = bitDepth==32?2:0;
-				IJ.log("  "+i+": "+IJ.d2s(t1,digits)+"-"+IJ.d2s(t2,digits));
-			}
-			int[] lut = new int[256];
-			for (int j=0; j<256; j++) {
-				if (j>=minThreshold && j<=maxThreshold)
-					lut[j] = (byte)255;
-				else
-					lut[j] = 0;
-			}
-			ip.applyTable(lut);
+			int digits = bitDepth==32?2:0;
+			for (int i=0; i<nSlices; i++)
+				IJ.log("  "+(i+1)+": "+IJ.d2s(minValues[i],digits)+"-"+IJ.d2s(maxValues[i],digits));
+		}
+		ImageStack stack = stack1;
+		if (bitDepth!=8) {
+			stack = new ImageStack(imp.getWidth(), imp.getHeight());
+			for (int i=0; i<nSlices; i++)
+				stack.addSlice(stack1.getSliceLabel(i+1), masks[i]);
 		}
 		stack.setColorModel(LookUpTable.createGrayscaleColorModel(!Prefs.blackBackground));
 		imp.setStack(null, stack);
@@ -365,6 +357,117 @@ public class Thresholder implements PlugIn, Measurements, ItemListener {
 		IJ.showStatus("");
 	}
 
+	/** Thresholds a slice with the selected method and returns the mask (0 and
+		255). 8-bit slices are converted in place; 16 and 32-bit slices are
+		scaled to 8 bits from their min and max for calculating the threshold.
+		Sets levels[0] and levels[1] to the lower and upper threshold. */
+	private ImageProcessor convertToMask(ImageProcessor ip, double[] levels) {
+		if (ip instanceof ShortProcessor)
+			return convertShortToMask((ShortProcessor)ip, levels);
+		boolean scaled = !(ip instanceof ByteProcessor);
+		double min=0.0, max=0.0;
+		if (scaled) {
+			ip.resetMinAndMax();
+			min = ip.getMin();
+			max = ip.getMax();
+			ip = ip.convertToByte(true);
+		}
+		setAutoThreshold(ip);
+		double lower = ip.getMinThreshold();
+		double upper = ip.getMaxThreshold();
+		int[] lut = new int[256];
+		for (int j=0; j<256; j++) {
+			if (j>=lower && j<=upper)
+				lut[j] = (byte)255;
+			else
+				lut[j] = 0;
+		}
+		ip.applyTable(lut);
+		if (scaled) {
+			lower = min + (lower/255.0)*(max-min);
+			upper = min + (upper/255.0)*(max-min);
+		}
+		levels[0] = lower;
+		levels[1] = upper;
+		return ip;
+	}
+
+	/** Like convertToMask for 16-bit slices, with the same thresholds, but the
+		256-bin histogram of the slice scaled to 8 bits is obtained from the
+		full 65536-bin histogram, and the mask is created directly from the
+		16-bit pixels, without converting them to 8 bits first. */
+	private ImageProcessor convertShortToMask(ShortProcessor ip, double[] levels) {
+		int[] histogram16 = ip.getHistogram();
+		int min = 0;
+		while (histogram16[min]==0 && min<65535)
+			min++;
+		int max = 65535;
+		while (histogram16[max]==0 && max>min)
+			max--;
+		double scale = 256.0/(max-min+1);     // as TypeConverter.convertShortToByte
+		int[] indexes = new int[max-min+1];
+		int[] histogram = new int[256];
+		for (int value=min; value<=max; value++) {
+			int index = (int)((value-min)*scale+0.5);
+			if (index>255) index = 255;
+			indexes[value-min] = index;
+			histogram[index] += histogram16[value];
+		}
+		final ImageStatistics stats = getStatistics(histogram);
+		ImageProcessor bp = new ByteProcessor(1, 1, new byte[1], ip.getCurrentColorModel()) {
+			public ImageStatistics getStats() {
+				return stats;     // of the slice, for setAutoThreshold
+			}
+		};
+		setAutoThreshold(bp);
+		double lower = bp.getMinThreshold();
+		double upper = bp.getMaxThreshold();
+		byte[] table = new byte[indexes.length];
+		for (int i=0; i<table.length; i++) {
+			if (indexes[i]>=lower && indexes[i]<=upper)
+				table[i] = (byte)255;
+		}
+		short[] pixels = (short[])ip.getPixels();
+		byte[] mask = new byte[pixels.length];
+		for (int i=0; i<pixels.length; i++)
+			mask[i] = table[(pixels[i]&0xffff)-min];
+		levels[0] = min + (lower/255.0)*(max-min);
+		levels[1] = min + (upper/255.0)*(max-min);
+		return new ByteProcessor(ip.getWidth(), ip.getHeight(), mask, ip.getCurrentColorModel());
+	}
+
+	/** Returns the statistics used by ImageProcessor.setAutoThreshold for
+		an 8-bit image with the given histogram, as in ByteStatistics. */
+	private static ImageStatistics getStatistics(int[] histogram) {
+		ImageStatistics stats = new ImageStatistics();
+		stats.histogram = histogram;
+		stats.nBins = 256;
+		for (int i=0; i<256; i++) {
+			stats.pixelCount += histogram[i];
+			if (histogram[i]>stats.maxCount) {
+				stats.maxCount = histogram[i];
+				stats.mode = i;
+			}
+		}
+		int min = 0;
+		while (histogram[min]==0 && min<255)
+			min++;
+		int max = 255;
+		while (histogram[max]==0 && max>0)
+			max--;
+		stats.min = min;
+		stats.max = max;
+		stats.dmode = stats.mode;
+		return stats;
+	}
+
+	private void setAutoThreshold(ImageProcessor ip) {
+		if (method.equals("Default") && background.equals("Default"))
+			ip.setAutoThreshold(ImageProcessor.ISODATA2, ImageProcessor.NO_LUT_UPDATE);
+		else
+			ip.setAutoThreshold(method, !background.equals("Light"), ImageProcessor.NO_LUT_UPDATE);
+	}
+
 	void convertToByte(ImagePlus imp) {
 		ImageProcessor ip;
 		int currentSlice =  imp.getCurrentSlice();
@@ -4,7 +4,10 @@ import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** Implements ImageJ's Subtract Background command. Based on the concept of the
@@ -42,6 +45,10 @@ Rolling ball code based on the NIH Image Pascal version by Michael Castle and Ja
 Keller of the University of Michigan Mental Health Research Institute.
 Sliding Paraboloid by Michael Schmid, 2007.
 
+The line-wise operations (3x3 filter, parabola sliding in each direction,
+shrinking and enlarging) and the rolling ball are distributed among the
+threads; the result does not depend on the number of threads.
+
 Version 10-Jan-2008
 */
 public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListener {
@@ -317,10 +324,10 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
 
     /** Filter by subtracting a sliding parabola for all lines in one direction, x, y or one of
      *  the two diagonal directions (diagonals are processed only for half the image per call). */
-    void filter1D(FloatProcessor fp, int direction, float coeff2, float[] cache, int[] nextPoint) {
-        float[] pixels = (float[])fp.getPixels();   //this will become the background
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+    void filter1D(FloatProcessor fp, final int direction, final float coeff2, float[] cache, int[] nextPoint) {
+        final float[] pixels = (float[])fp.getPixels();   //this will become the background
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
         int startLine = 0;          //index of the first line to handle
         int nLines = 0;             //index+1 of the last line to handle (initialized to avoid compile-time error)
         int lineInc = 0;            //increment from one line to the next in pixels array
@@ -363,21 +370,28 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
                 pointInc = width - 1;
             break;
         }
-        for (int i=startLine; i<nLines; i++) {
-            if (i%50==0) {
-                if (Thread.currentThread().isInterrupted()) return;
-                showProgress(i/(double)nLines);
-            }
-            int startPixel = i*lineInc;
-            if (direction == DIAGONAL_2B) startPixel += width-1;
-            switch (direction) {
-                case DIAGONAL_1A: length = Math.min(height, width-i); break;
-                case DIAGONAL_1B: length = Math.min(width, height-i); break;
-                case DIAGONAL_2A: length = Math.min(height, i+1);     break;
-                case DIAGONAL_2B: length = Math.min(width, height-i); break;
-            }
-            lineSlideParabola(pixels, startPixel, pointInc, length, coeff2, cache, nextPoint, null);
+        final int fLineInc = lineInc, fPointInc = pointInc, fLength = length;
+        LineTask[] tasks = new LineTask[getNThreads(nLines-startLine, Math.max(width, height))];
+        for (int t=0; t<tasks.length; t++) {
+            final float[] tCache = t==0 ? cache : new float[cache.length];  //each thread needs its own work arrays
+            final int[] tNextPoint = t==0 ? nextPoint : new int[nextPoint.length];
+            tasks[t] = new LineTask() {
+                void processLine(int i) {
+                    int startPixel = i*fLineInc;
+                    if (direction == DIAGONAL_2B) startPixel += width-1;
+                    int length = fLength;
+                    switch (direction) {
+                        case DIAGONAL_1A: length = Math.min(height, width-i); break;
+                        case DIAGONAL_1B: length = Math.min(width, height-i); break;
+                        case DIAGONAL_2A: length = Math.min(height, i+1);     break;
+                        case DIAGONAL_2B: length = Math.min(width, height-i); break;
+                    }
+                    lineSlideParabola(pixels, startPixel, fPointInc, length, coeff2, tCache, tNextPoint, null);
+                }
+            };
         }
+        processLines(startLine, nLines, tasks, 0, 1);
+        if (Thread.currentThread().isInterrupted()) return;
         pass++;
     } //void filter1D
 
@@ -551,29 +565,34 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
     /** Creates a lower resolution image for ball-rolling. */
-    FloatProcessor shrinkImage(FloatProcessor ip, int shrinkFactor) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        float[] pixels = (float[])ip.getPixels();
-        int sWidth = (width+shrinkFactor-1)/shrinkFactor;
+    FloatProcessor shrinkImage(FloatProcessor ip, final int shrinkFactor) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final float[] pixels = (float[])ip.getPixels();
+        final int sWidth = (width+shrinkFactor-1)/shrinkFactor;
         int sHeight = (height+shrinkFactor-1)/shrinkFactor;
         showProgress(0.1);
         FloatProcessor smallImage = new FloatProcessor(sWidth, sHeight);
-        float[] sPixels = (float[])smallImage.getPixels();
-        float min, thispixel;
-        for (int ySmall=0; ySmall<sHeight; ySmall++) {
-            for (int xSmall=0; xSmall<sWidth; xSmall++) {
-                min = Float.MAX_VALUE;
-                for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
-                    for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
-                        thispixel = pixels[x+y*width];
-                        if (thispixel<min)
-                            min = thispixel;
+        final float[] sPixels = (float[])smallImage.getPixels();
+        LineTask[] tasks = new LineTask[getNThreads(sHeight, width*shrinkFactor)];
+        for (int t=0; t<tasks.length; t++) {
+            tasks[t] = new LineTask() {
+                void processLine(int ySmall) {
+                    for (int xSmall=0; xSmall<sWidth; xSmall++) {
+                        float min = Float.MAX_VALUE;
+                        for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
+                            for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
+                                float thispixel = pixels[x+y*width];
+                                if (thispixel<min)
+                                    min = thispixel;
+                            }
+                        }
+                        sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
                     }
                 }
-                sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
-            }
+            };
         }
+        processLines(0, sHeight, tasks, 0, 0);
         //new ImagePlus("smallImage", smallImage).show();
         return smallImage;
     }
@@ -591,101 +610,142 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         processing time increases with ball radius^2.
     */
     void rollBall(RollingBall ball, FloatProcessor fp) {
-        float[] pixels = (float[])fp.getPixels();   //the input pixels
-        int width = fp.getWidth();
-        int height = fp.getHeight();
-        float[] zBall = ball.data;
-        int ballWidth = ball.width;
-        int radius = ballWidth/2;
-        float[] cache = new float[width*ballWidth]; //temporarily stores the pixels we work on
-
-		Thread thread = Thread.currentThread();
-		long lastTime = System.currentTimeMillis();
-        for (int y=-radius; y<height+radius; y++) { //for all positions of the ball center:
-			long time = System.currentTimeMillis();
-			if (time-lastTime > 100) {
-				lastTime = time;
-				if (thread.isInterrupted()) return;
-				showProgress(0.1+0.8*y/(height+ballWidth));
-            }
-            int nextLineToWriteInCache = (y+radius)%ballWidth;
-            int nextLineToRead = y + radius;        //line of the input not touched yet
-            if (nextLineToRead<height) {
-                System.arraycopy(pixels, nextLineToRead*width, cache, nextLineToWriteInCache*width, width);
-                for (int x=0, p=nextLineToRead*width; x<width; x++,p++)
-                    pixels[p] = -Float.MAX_VALUE;   //unprocessed pixels start at minus infinity
-            }
-            int y0 = y-radius;                      //the first line to see whether the ball touches
-            if (y0 < 0) y0 = 0;
-            int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
-            int yend = y+radius;                    //the last line to see whether the ball touches
-            if (yend>=height) yend = height-1;
-            for (int x=-radius; x<width+radius; x++) {
-                float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
-                int x0 = x-radius;
-                if (x0 < 0) x0 = 0;
-                int xBall0 = x0-x+radius;
-                int xend = x+radius;
-                if (xend>=width) xend = width-1;
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
-                    int cachePointer = (yp%ballWidth)*width+x0;
-                    for (int xp=x0, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, cachePointer++, bp++) {
-                        float zReduced = cache[cachePointer] - zBall[bp];
-                        if (z > zReduced)           //does this point imply a greater height?
-                            z = zReduced;
+        final float[] pixels = (float[])fp.getPixels();   //the input pixels, will become the background
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] zBall = ball.data;
+        final int ballWidth = ball.width;
+        final int radius = ballWidth/2;
+        final float[] input = (float[])pixels.clone();
+        final int zWidth = width + 2*radius;        //ball center positions x = -radius ... width+radius-1
+        final float[] zCenter = new float[zWidth*(height+2*radius)]; //height of the ball (center) at each position
+
+        // 1st pass: for all positions of the ball center, the height where the ball touches the image
+        LineTask[] tasks = new LineTask[getNThreads(height+2*radius, zWidth*ballWidth)];
+        for (int t=0; t<tasks.length; t++) {
+            tasks[t] = new LineTask() {
+                void processLine(int yc) {
+                    int y = yc - radius;
+                    int y0 = y-radius;                      //the first line to see whether the ball touches
+                    if (y0 < 0) y0 = 0;
+                    int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
+                    int yend = y+radius;                    //the last line to see whether the ball touches
+                    if (yend>=height) yend = height-1;
+                    for (int x=-radius; x<width+radius; x++) {
+                        float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
+                        int x0 = x-radius;
+                        if (x0 < 0) x0 = 0;
+                        int xBall0 = x0-x+radius;
+                        int xend = x+radius;
+                        if (xend>=width) xend = width-1;
+                        for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
+                            for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
+                                float zReduced = input[p] - zBall[bp];
+                                if (z > zReduced)           //does this point imply a greater height?
+                                    z = zReduced;
+                            }
+                        }
+                        zCenter[yc*zWidth + x+radius] = z;
                     }
                 }
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) //raise pixels to ball surface
-                    for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
-                        float zMin = z + zBall[bp];
-                        if (pixels[p] < zMin)
-                            pixels[p] = zMin;
+            };
+        }
+        processLines(0, height+2*radius, tasks, 0.1, 0.4);
+        if (Thread.currentThread().isInterrupted()) return;
+
+        // 2nd pass: raise each pixel to the highest ball surface (of all ball positions) above it
+        tasks = new LineTask[getNThreads(height, width*ballWidth)];
+        for (int t=0; t<tasks.length; t++) {
+            tasks[t] = new LineTask() {
+                void processLine(int yp) {
+                    for (int xp=0, p=yp*width; xp<width; xp++, p++) {
+                        float zMax = -Float.MAX_VALUE;
+                        for (int yBall=0, yc=yp+2*radius; yBall<ballWidth; yBall++, yc--) { //ball center at yc-radius
+                            for (int xBall=0, pc=yc*zWidth+xp+2*radius, bp=yBall*ballWidth; xBall<ballWidth; xBall++, pc--, bp++) {
+                                float zMin = zCenter[pc] + zBall[bp];
+                                if (zMax < zMin)
+                                    zMax = zMin;
+                            }
+                        }
+                        pixels[p] = zMax;
                     }
-            // if (x>=0&&y>=0&&x<width&&y<height) bgPixels[x+y*width] = z; //debug, ball height output
-            }
+                }
+            };
         }
-        
+        processLines(0, height, tasks, 0.5, 0.4);
         //new ImagePlus("bg rolled", fp.duplicate()).show();
     }
     
     /** Uses bilinear interpolation to find the points in the full-scale background
         given the points from the shrunken image background. (At the edges, it is
-        actually extrapolation.)
+        actually extrapolation.) A shrunken image with only one line or column
+        is constant in that direction.
     */                                 
     void enlargeImage(FloatProcessor smallImage, FloatProcessor fp, int shrinkFactor) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
-        int smallWidth = smallImage.getWidth();
+        if (smallImage.getWidth()<2 || smallImage.getHeight()<2)
+            smallImage = repeatSingleLine(smallImage);
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final int smallWidth = smallImage.getWidth();
         int smallHeight = smallImage.getHeight();
-        float[] pixels = (float[])fp.getPixels();
-        float[] sPixels = (float[])smallImage.getPixels();
-        int[] xSmallIndices = new int[width];         //index of first point in smallImage
-        float[] xWeights = new float[width];        //weight of this point
+        final float[] pixels = (float[])fp.getPixels();
+        final float[] sPixels = (float[])smallImage.getPixels();
+        final int[] xSmallIndices = new int[width];         //index of first point in smallImage
+        final float[] xWeights = new float[width];        //weight of this point
         makeInterpolationArrays(xSmallIndices, xWeights, width, smallWidth, shrinkFactor);
-        int[] ySmallIndices = new int[height];
-        float[] yWeights = new float[height];
+        final int[] ySmallIndices = new int[height];
+        final float[] yWeights = new float[height];
         makeInterpolationArrays(ySmallIndices, yWeights, height, smallHeight, shrinkFactor);
-        float[] line0 = new float[width];
-        float[] line1 = new float[width];
-        for (int x=0; x<width; x++)                 //x-interpolation of the first smallImage line
-            line1[x] = sPixels[xSmallIndices[x]] * xWeights[x] +
-                    sPixels[xSmallIndices[x]+1] * (1f - xWeights[x]);
-        int ySmallLine0 = -1;                       //line0 corresponds to this y of smallImage
-        for (int y=0; y<height; y++) {
-            if (ySmallLine0 < ySmallIndices[y]) {
-                float[] swap = line0;               //previous line1 -> line0
-                line0 = line1;
-                line1 = swap;                       //keep the other array for filling with new data
-                ySmallLine0++;
-                int sYPointer = (ySmallIndices[y]+1)*smallWidth; //points to line0 + 1 in smallImage
-                for (int x=0; x<width; x++)         //x-interpolation of the new smallImage line -> line1
-                    line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
-                            sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
-            }
-            float weight = yWeights[y];
-            for (int x=0, p=y*width; x<width; x++,p++)
-                pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
+        // the threads work on bands of lines, so that the x-interpolated lines can be reused
+        final int nBands = Math.min(height, 16*getNThreads(height, width));
+        LineTask[] tasks = new LineTask[getNThreads(nBands, width*height/nBands)];
+        for (int t=0; t<tasks.length; t++) {
+            tasks[t] = new LineTask() {
+                float[] line0 = new float[width];
+                float[] line1 = new float[width];
+                void processLine(int band) {
+                    int yStart = (int)((long)band*height/nBands);
+                    int yEnd = (int)((long)(band+1)*height/nBands);
+                    int ySmallLine0 = ySmallIndices[yStart] - 1; //line0 corresponds to this y of smallImage
+                    interpolateLine(line1, ySmallLine0+1);
+                    for (int y=yStart; y<yEnd; y++) {
+                        if (ySmallLine0 < ySmallIndices[y]) {
+                            float[] swap = line0;               //previous line1 -> line0
+                            line0 = line1;
+                            line1 = swap;                       //keep the other array for filling with new data
+                            ySmallLine0++;
+                            interpolateLine(line1, ySmallIndices[y]+1);
+                        }
+                        float weight = yWeights[y];
+                        for (int x=0, p=y*width; x<width; x++,p++)
+                            pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
+                    }
+                }
+                /** x-interpolation of a smallImage line */
+                void interpolateLine(float[] line, int ySmall) {
+                    int sYPointer = ySmall*smallWidth;
+                    for (int x=0; x<width; x++)
+                        line[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
+                                sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                }
+            };
         }
+        processLines(0, nBands, tasks, 0, 0);
+    }
+
+    /** Returns a copy of a shrunken image with only one line or column, where this
+        line or column is repeated, so that there are two points for interpolation. */
+    private static FloatProcessor repeatSingleLine(FloatProcessor smallImage) {
+        int smallWidth = smallImage.getWidth();
+        int smallHeight = smallImage.getHeight();
+        int width2 = Math.max(smallWidth, 2);
+        int height2 = Math.max(smallHeight, 2);
+        float[] sPixels = (float[])smallImage.getPixels();
+        float[] pixels2 = new float[width2*height2];
+        for (int y=0, p=0; y<height2; y++)
+            for (int x=0; x<width2; x++, p++)
+                pixels2[p] = sPixels[Math.min(x, smallWidth-1) + Math.min(y, smallHeight-1)*smallWidth];
+        return new FloatProcessor(width2, height2, pixels2, null);
     }
 
     /** Create arrays of indices and weigths for interpolation.
@@ -715,15 +775,32 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
      *  When used as maximum filter, it returns the average change of the
      *  pixel value by this operation
      */
-    double filter3x3(FloatProcessor fp, int type) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+    double filter3x3(FloatProcessor fp, final int type) {
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] pixels = (float[])fp.getPixels();
+        final double[] shifts = new double[width+height];   //per line, summed up in a fixed order for reproducible results
+        LineTask[] tasks = new LineTask[getNThreads(height, width)];
+        for (int t=0; t<tasks.length; t++) {
+            tasks[t] = new LineTask() {
+                void processLine(int y) {
+                    shifts[y] = filter3(pixels, width, y*width, 1, type);
+                }
+            };
+        }
+        processLines(0, height, tasks, 0, 0);
+        tasks = new LineTask[getNThreads(width, height)];
+        for (int t=0; t<tasks.length; t++) {
+            tasks[t] = new LineTask() {
+                void processLine(int x) {
+                    shifts[height+x] = filter3(pixels, height, x, width, type);
+                }
+            };
+        }
+        processLines(0, width, tasks, 0, 0);
         double shiftBy = 0;
-        float[] pixels = (float[])fp.getPixels();
-        for (int y=0; y<height; y++)
-            shiftBy += filter3(pixels, width, y*width, 1, type);
-        for (int x=0; x<width; x++)
-            shiftBy += filter3(pixels, height, x, width, type);
+        for (int i=0; i<shifts.length; i++)
+            shiftBy += shifts[i];
         return shiftBy/width/height;
     }
 
@@ -749,6 +826,52 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
 
+    /** An operation on one line (or other unit of work) of an image; each thread
+     *  has its own LineTask, so work arrays can be fields. */
+    private abstract static class LineTask {
+        abstract void processLine(int line);
+    }
+
+    /** Returns the number of threads for 'nLines' lines with about
+     *  'workPerLine' operations each: fewer threads for small tasks */
+    private static int getNThreads(int nLines, int workPerLine) {
+        int nThreads = Math.min(Prefs.getThreads(), nLines);
+        nThreads = (int)Math.min(nThreads, (long)nLines*workPerLine/20000 + 1);
+        return Math.max(nThreads, 1);
+    }
+
+    /** Processes the lines from 'lineFrom' to 'lineTo'-1 with one thread per task.
+     *  Unless 'progressRange' is 0, the progress is shown from 'progress0'
+     *  to 'progress0'+'progressRange' (as fraction of this pass). */
+    private void processLines(final int lineFrom, final int lineTo, LineTask[] tasks,
+            final double progress0, final double progressRange) {
+        final AtomicInteger nextLine = new AtomicInteger(lineFrom);
+        Callable[] callables = new Callable[tasks.length];
+        for (int t=0; t<tasks.length; t++) {
+            final LineTask task = tasks[t];
+            final boolean showProgress = t==0 && progressRange>0;
+            callables[t] = new Callable<Void>() {
+                final public Void call() {
+                    Thread thread = Thread.currentThread();
+                    long lastTime = System.currentTimeMillis();
+                    for (int line=nextLine.getAndIncrement(); line<lineTo; line=nextLine.getAndIncrement()) {
+                        if ((line&0xf)==0) {
+                            if (thread.isInterrupted()) return null;
+                            long time = System.currentTimeMillis();
+                            if (showProgress && time-lastTime > 100) {
+                                lastTime = time;
+                                showProgress(progress0 + progressRange*(line-lineFrom)/(lineTo-lineFrom));
+                            }
+                        }
+                        task.processLine(line);
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+    }
+
     public void setNPasses(int nPasses) {
         if (isRGB && separateColors)
         	nPasses *= 3;
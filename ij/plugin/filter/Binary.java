@@ -13,13 +13,16 @@ import java.awt.*;
 */
 public class Binary implements ExtendedPlugInFilter, DialogListener {
     static final int MAX_ITERATIONS = 100;
+    static final int MAX_RADIUS = 10000;  //for kernels other than 3x3
     static final String NO_OPERATION = "Nothing";
     static final String[] outputTypes = {"Overwrite", "8-bit", "16-bit", "32-bit"};
+    static final String[] kernels = {"3x3", "Square", "Octagon", "Horizontal line", "Vertical line"};
     static final String[] operations = {NO_OPERATION, "Erode", "Dilate", "Open", "Close", "Outline", "Fill Holes", "Skeletonize"};
 
     //parameters / options
     static int iterations = 1;      //iterations for erode, dilate, open, close
     static int count = 1;           //nearest neighbor count for erode, dilate, open, close
+    static int kernel;              //index in 'kernels'; for all but 3x3, 'iterations' is the kernel radius
     String operation = NO_OPERATION;  //for dialog; will be copied to 'arg' for actual previewing
 
     String arg;
@@ -52,6 +55,7 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
             GenericDialog gd = new GenericDialog("Binary Options");
             gd.addNumericField("Iterations (1-"+MAX_ITERATIONS+"):", iterations, 0, 3, "");
             gd.addNumericField("Count (1-8):", count, 0, 3, "");
+            gd.addChoice("Kernel:", kernels, kernels[kernel]);
             gd.addCheckbox("Black background", Prefs.blackBackground);
             gd.addCheckbox("Pad edges when eroding", Prefs.padEdges);
             gd.addChoice("EDM output:", outputTypes, outputTypes[EDM.getOutputType()]);
@@ -82,6 +86,7 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
     public boolean dialogItemChanged (GenericDialog gd, AWTEvent e) {
         iterations = (int)gd.getNextNumber();
         count = (int)gd.getNextNumber();
+        kernel = gd.getNextChoiceIndex();
         boolean bb = Prefs.blackBackground;
         Prefs.blackBackground = gd.getNextBoolean();
         if ( Prefs.blackBackground!=bb)
@@ -92,7 +97,8 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
         gd.setSmartRecording(false);
         boolean isInvalid = gd.invalidNumber();
         if (iterations<1) {iterations = 1; isInvalid = true;}
-        if (iterations>MAX_ITERATIONS) {iterations = MAX_ITERATIONS; isInvalid = true;}
+        int maxIterations = kernel==0 ? MAX_ITERATIONS : MAX_RADIUS;
+        if (iterations>maxIterations) {iterations = maxIterations; isInvalid = true;}
         if (count < 1)    {count = 1; isInvalid = true;}
         if (count > 8)    {count = 8; isInvalid = true;}
         if (isInvalid) return false;
@@ -134,6 +140,12 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
 
     void doIterations (ImageProcessor ip, String mode) {
         if (escapePressed) return;
+        Rectangle roi = ip.getRoi();
+        boolean fullImage = roi.width==ip.getWidth() && roi.height==ip.getHeight();
+        if (kernel!=0 || (count==1 && iterations>1 && fullImage)) {
+            minMaxFilter(ip, mode);
+            return;
+        }
         if (!previewing && iterations>1)
             IJ.showStatus(arg+"... press ESC to cancel");
         for (int i=0; i<iterations; i++) {
@@ -150,6 +162,20 @@ public class Binary implements ExtendedPlugInFilter, DialogListener {
         }
     }
     
+    /** Erosion or dilation with a kernel that extends by 'iterations' pixels in
+     *  each direction, in a time that does not depend on the kernel size. For the
+     *  full image and count=1, the square kernel gives the same result as iterating
+     *  the 3x3 operation. */
+    void minMaxFilter(ImageProcessor ip, String mode) {
+        int shape = kernel==0 ? MinMaxFilter.SQUARE : kernel;
+        MinMaxFilter filter = new MinMaxFilter(shape, iterations);
+        boolean erode = mode.equals("erode");
+        if (erode && !Prefs.padEdges)
+            filter.setOutsideValue(background);  //eroding from the edges
+        boolean max = erode == (background==255);
+        filter.filter(ip, max ? MinMaxFilter.MAX : MinMaxFilter.MIN);
+    }
+
     void outline(ImageProcessor ip) {
         if (Prefs.blackBackground) ip.invert();
         ((ByteProcessor)ip).outline();
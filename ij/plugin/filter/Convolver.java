@@ -6,17 +6,21 @@ import ij.io.*;
 import ij.plugin.TextReader;
 import ij.plugin.frame.Recorder;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin convolves images using user user defined kernels. */
 public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionListener {
 
 	private ImagePlus imp;
 	private int kw, kh;
-	private boolean canceled;
+	private volatile boolean canceled;
 	private float[] kernel;
 	private boolean isLineRoi;
 	private Button open, save;
@@ -224,35 +228,75 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 
 	/** Convolves the float image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. Returns false if
-		the user cancels the operation by pressing 'Esc'. */
+		the user cancels the operation by pressing 'Esc'.
+		Large kernels are applied in the frequency domain, which is much
+		faster but may differ from direct convolution by float rounding errors. */
 	public boolean convolveFloat(ImageProcessor ip, float[] kernel, int kw, int kh) {
 		if (!(ip instanceof FloatProcessor))
 			throw new IllegalArgumentException("FloatProcessor required");
 		if (canceled) return false;
-		int width = ip.getWidth();
-		int height = ip.getHeight();
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
 		Rectangle r = ip.getRoi();
+		final float[] pixels = (float[])ip.getPixels();
+		float[] snapshot = (float[])ip.getSnapshotPixels();
+		if (snapshot==null)
+			snapshot = (float[])ip.getPixelsCopy();
+		final float[] pixels2 = snapshot;
+		final double scale = normalize?getScale(kernel):1.0;
+        Thread thread = Thread.currentThread();
+        final boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
+        if (isMainThread) pass++;
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), r.height));
+		if (useFFT(r, kw, kh, nThreads) && isFinite(pixels2, width, height, r, kw, kh))
+			convolveFFT(pixels, pixels2, width, height, r, kernel, kw, kh, scale, nThreads, isMainThread);
+		else {
+			final Rectangle roi = r;
+			final float[] kernel1 = kernel;
+			final int kw1 = kw, kh1 = kh;
+			final AtomicInteger nextY = new AtomicInteger(r.y);
+			Callable[] callables = new Callable[nThreads-1];
+			for (int t=0; t<callables.length; t++) {
+				callables[t] = new Callable<Boolean>() {
+					final public Boolean call() {
+						return convolveLines(pixels, pixels2, width, height, roi, kernel1, kw1, kh1, scale, nextY, false);
+					}
+				};
+			}
+			Future[] futures = ThreadUtil.start(callables);
+			convolveLines(pixels, pixels2, width, height, r, kernel, kw, kh, scale, nextY, isMainThread);
+			ThreadUtil.joinAll(futures);
+		}
+		if (thread.isInterrupted())
+			return false;
+		if (canceled) {
+			ip.reset();
+			ImageProcessor originalIp = imp.getProcessor();
+			if (originalIp.getNChannels() > 1)
+				originalIp.reset();
+			return false;
+		}
+   		return true;
+   	 }
+
+	/** Spatial convolution of the lines of the roi; each thread takes the next
+		line that is not processed yet. Returns false if interrupted or canceled. */
+	private boolean convolveLines(float[] pixels, float[] pixels2, int width, int height, Rectangle r,
+			float[] kernel, int kw, int kh, double scale, AtomicInteger nextY, boolean isMainThread) {
 		int x1 = r.x;
 		int y1 = r.y;
 		int x2 = x1 + r.width;
 		int y2 = y1 + r.height;
 		int uc = kw/2;
 		int vc = kh/2;
-		float[] pixels = (float[])ip.getPixels();
-		float[] pixels2 = (float[])ip.getSnapshotPixels();
-		if (pixels2==null)
-			pixels2 = (float[])ip.getPixelsCopy();
-		double scale = normalize?getScale(kernel):1.0;
-        Thread thread = Thread.currentThread();
-        boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
-        if (isMainThread) pass++;
 		double sum;
 		int offset, i;
 		boolean edgePixel;
 		int xedge = width-uc;
 		int yedge = height-vc;
+		Thread thread = Thread.currentThread();
 		long lastTime = System.currentTimeMillis();
-		for (int y=y1; y<y2; y++) {
+		for (int y=nextY.getAndIncrement(); y<y2; y=nextY.getAndIncrement()) {
 			long time = System.currentTimeMillis();
 			if (time-lastTime>100) {
 				lastTime = time;
@@ -260,10 +304,6 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 				if (isMainThread) {
 					if (IJ.escapePressed()) {
 						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
 						return false;
 					}
 					showProgress((y-y1)/(double)(y2-y1));
@@ -289,7 +329,143 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 			}
     	}
    		return true;
-   	 }
+	}
+
+	/** Returns the size of the FHT tiles for convolution of the roi in the
+		frequency domain, a power of 2 that minimizes the computing time. */
+	private static int getTileSize(Rectangle r, int kw, int kh) {
+		int maxSize = 2;
+		while (maxSize<Math.max(r.width+kw-1, r.height+kh-1))
+			maxSize *= 2;
+		int bestSize = 0;
+		double bestCost = Double.MAX_VALUE;
+		for (int n=4; n<=maxSize; n*=2) {
+			if (n<kw || n<kh)
+				continue;
+			double cost = getFFTCost(r, kw, kh, n);
+			if (cost<bestCost) {
+				bestCost = cost;
+				bestSize = n;
+			}
+		}
+		return bestSize;
+	}
+
+	/** Estimated computing time of the convolution with tiles of size 'n', in
+		units of one multiply-add of the spatial convolution. */
+	private static double getFFTCost(Rectangle r, int kw, int kh, int n) {
+		int nx = (r.width+n-kw)/(n-kw+1);   // number of tiles
+		int ny = (r.height+n-kh)/(n-kh+1);
+		int log2n = Integer.numberOfTrailingZeros(n);
+		return nx*(double)ny*n*n*(FFT_COST*log2n + 10);
+	}
+
+	private static final double FFT_COST = 3; //per pixel and log2(size), for forward and inverse transform
+
+	/** Whether the convolution in the frequency domain is expected to be faster */
+	private static boolean useFFT(Rectangle r, int kw, int kh, int nThreads) {
+		if (kw*kh<FFT_MIN_KERNEL_SIZE)
+			return false;
+		int n = getTileSize(r, kw, kh);
+		double fftCost = getFFTCost(r, kw, kh, n);
+		if (nThreads>1 && r.width<n-kw+1 && r.height<n-kh+1)
+			fftCost *= nThreads;    //only one tile, thus no parallelization
+		return fftCost < (double)r.width*r.height*kw*kh;
+	}
+
+	private static final int FFT_MIN_KERNEL_SIZE = 81;
+
+	/** Whether all pixels that influence the result in the roi are finite.
+		NaN and infinite values would spread over the whole tile with FHTs. */
+	private static boolean isFinite(float[] pixels, int width, int height, Rectangle r, int kw, int kh) {
+		Rectangle r2 = new Rectangle(r.x-kw/2, r.y-kh/2, r.width+kw, r.height+kh).intersection(new Rectangle(width, height));
+		for (int y=r2.y; y<r2.y+r2.height; y++) {
+			for (int x=r2.x, p=x+y*width; x<r2.x+r2.width; x++, p++) {
+				float v = pixels[p];
+				if (v-v!=0f)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/** Convolution in the frequency domain, with overlapping tiles (overlap-save method).
+		Tile pixels outside of the image are set to the nearest edge pixel,
+		as with spatial convolution. */
+	private void convolveFFT(final float[] pixels, final float[] pixels2, final int width, final int height,
+			final Rectangle r, float[] kernel, final int kw, final int kh, double scale, int nThreads, final boolean isMainThread) {
+		final int n = getTileSize(r, kw, kh);
+		final int uc = kw/2, vc = kh/2;
+		final int stepX = n-kw+1, stepY = n-kh+1;   // size of the output area of a tile
+		final int nTilesX = (r.width+stepX-1)/stepX;
+		final int nTiles = nTilesX*((r.height+stepY-1)/stepY);
+		// the kernel, mirrored and wrapped around so that its center is at (0,0)
+		final float[] kernelFHT = new float[n*n];
+		for (int v=-vc, i=0; v<=vc; v++)
+			for (int u=-uc; u<=uc; u++, i++)
+				kernelFHT[((-u)&(n-1)) + ((-v)&(n-1))*n] = (float)(kernel[i]*scale);
+		new FHT().rc2DFHT(kernelFHT, false, n);
+		final AtomicInteger nextTile = new AtomicInteger(0);
+		final AtomicInteger tilesDone = new AtomicInteger(0);
+		nThreads = Math.min(nThreads, nTiles);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final boolean showProgress = isMainThread && t==0;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					FHT fht = new FHT();    // each thread needs its own FHT scratch array
+					fht.setNThreads(1);     // the tiles are processed in parallel already
+					float[] tile = FHT.getBuffer(n*n);    // all values are overwritten for each tile
+					float[] product = FHT.getBuffer(n*n);
+					for (int i=nextTile.getAndIncrement(); i<nTiles; i=nextTile.getAndIncrement()) {
+						if (canceled || Thread.currentThread().isInterrupted())
+							break;
+						int xOut = r.x + (i%nTilesX)*stepX;   // top left output pixel of the tile
+						int yOut = r.y + (i/nTilesX)*stepY;
+						for (int ty=0; ty<n; ty++) {
+							int y = yOut - vc + ty;
+							y = y<0 ? 0 : (y>=height ? height-1 : y);
+							for (int tx=0; tx<n; tx++) {
+								int x = xOut - uc + tx;
+								x = x<0 ? 0 : (x>=width ? width-1 : x);
+								tile[tx+ty*n] = pixels2[x+y*width];
+							}
+						}
+						fht.rc2DFHT(tile, false, n);
+						multiply(tile, kernelFHT, product, n);
+						fht.rc2DFHT(product, true, n);
+						int w = Math.min(stepX, r.x+r.width-xOut);
+						int h = Math.min(stepY, r.y+r.height-yOut);
+						for (int ty=0; ty<h; ty++)
+							System.arraycopy(product, uc+(vc+ty)*n, pixels, xOut+(yOut+ty)*width, w);
+						int done = tilesDone.incrementAndGet();
+						if (showProgress) {
+							if (IJ.escapePressed())
+								canceled = true;
+							showProgress(done/(double)nTiles);
+						}
+					}
+					FHT.releaseBuffer(tile);
+					FHT.releaseBuffer(product);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Hartley multiplication of 'h1' and 'h2' (convolution in the space domain) */
+	private static void multiply(float[] h1, float[] h2, float[] out, int n) {
+		for (int r=0; r<n; r++) {
+			int rowMod = (n - r) % n;
+			for (int c=0; c<n; c++) {
+				int colMod = (n - c) % n;
+				float h2e = (h2[r*n+c] + h2[rowMod*n+colMod]) * 0.5f;
+				float h2o = (h2[r*n+c] - h2[rowMod*n+colMod]) * 0.5f;
+				out[r*n+c] = h1[r*n+c]*h2e + h1[rowMod*n+colMod]*h2o;
+			}
+		}
+	}
 
 	/** Convolves the image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. */
@@ -3,6 +3,9 @@ import ij.*;
 import ij.plugin.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This plugin implements the Euclidean Distance Map (EDM), Watershed,
@@ -32,19 +35,13 @@ import ij.gui.*;
  * "watershed" for watershed segmentation, "points" for ultimate eroded points and
  * "voronoi" for Voronoi segmentation of the background
  *
- * The EDM algorithm is similar to the 8SSEDT in
- *   F. Leymarie, M. D. Levine, in: CVGIP Image Understanding, vol. 55 (1992), pp 84-94
- *   http://dx.doi.org/10.1016/1049-9660(92)90008-Q
- *
- * The algorithm provides a fast approximation of the EDM, with the deviation from a
- * full calculation being between -0.09 and 0. The algorithm is exact for distances<13.
- * For d>=13, deviations from the true result can occur, but are very rare: typically
- * the fraction of pixels deviating from the exact result is in the 10^-5 range, with
- * most deviations between -0.03 and -0.04.
- *
- * Limitations:
- * Maximum image diagonal for EDM: 46340 pixels (sqrt(2^31)); if the particles are
- * dense enough it also works for width, height <=65534.
+ * The EDM is exact; it is calculated with the separable algorithm in
+ *   P. F. Felzenszwalb, D. P. Huttenlocher, Theory of Computing, vol. 8 (2012), pp 415-428
+ *   http://dx.doi.org/10.4086/toc.2012.v008a019
+ * First, the distance to the nearest background pixel in the same column is determined,
+ * then for each row the lower envelope of the parabolas (x-x0)^2+columnDistance(x0)^2.
+ * Both passes are distributed among the threads (columns in bands of BAND_WIDTH,
+ * then rows).
  *
  * Version 30-Apr-2008 Michael Schmid:  more accurate EDM algorithm,
  *                                      16-bit and float output possible,
@@ -93,7 +90,7 @@ public class EDM implements ExtendedPlugInFilter {
     //prefixes for titles of separate output images; for each processType:
     private static final String[] TITLE_PREFIX = new String[] {
             "EDM of ", null, "UEPs of ", "Voronoi of "};
-    private static final int NO_POINT = -1; //no nearest point in array of nearest points
+    private static final int BAND_WIDTH = 64; //number of columns per thread task in the column pass
     private static final double MAXFINDER_TOLERANCE = 0.5; //reasonable values are 0.3 ... 0.8;
                                     //segmentation is more aggressive with smaller values
     /** Output type (BYTE_OVERWRITE, BYTE, SHORT or FLOAT) */
@@ -268,127 +265,126 @@ public class EDM implements ExtendedPlugInFilter {
      *                          Returns null if the thread is interrupted.
      */
     public FloatProcessor makeFloatEDM (ImageProcessor ip, int backgroundValue, boolean edgesAreBackground) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
         FloatProcessor fp = new FloatProcessor(width, height);
-        byte[] bPixels = (byte[])ip.getPixels();
-        float[] fPixels = (float[])fp.getPixels();
-        final int progressInterval = 100;
-        int nProgressUpdates = height/progressInterval;  //how often the progress bar is updated when passing once through y range
-        double progressAddendum = (nProgressUpdates>0) ? 0.5/nProgressUpdates : 0;
-
-        for (int i=0; i<width*height; i++)
-            if (bPixels[i]!=backgroundValue) fPixels[i] = Float.MAX_VALUE;
+        final byte[] bPixels = (byte[])ip.getPixels();
+        final float[] fPixels = (float[])fp.getPixels();
+        final int background = backgroundValue;
+        final boolean edges = edgesAreBackground;
+        int nThreads = Math.min(Prefs.getThreads(), (int)Math.max(1L, (long)width*height/10000));
 
-        int[][] pointBufs = new int[2][width];  //two buffers for two passes; low short contains x, high short y
-        int yDist = Integer.MAX_VALUE;          //this value is used only if edges are not background
-        // pass 1 & 2: increasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
-        for (int y=0; y<height; y++) {
-            if (edgesAreBackground) yDist = y+1; //distance to nearest background point (along y)
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
-            }
-        }
-        //pass 3 & 4: decreasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
-        for (int y=height-1; y>=0; y--) {
-            if (edgesAreBackground) yDist = height-y;
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
-            }
+        // pass 1: distance to the nearest background pixel in the same column
+        final int nBands = (width+BAND_WIDTH-1)/BAND_WIDTH;
+        final AtomicInteger nextBand = new AtomicInteger(0);
+        Callable[] callables = new Callable[Math.min(nThreads, nBands)];
+        for (int t=0; t<callables.length; t++) {
+            callables[t] = new Callable<Void>() {
+                final public Void call() {
+                    float[] dist = new float[BAND_WIDTH];
+                    for (int band=nextBand.getAndIncrement(); band<nBands; band=nextBand.getAndIncrement()) {
+                        int x0 = band*BAND_WIDTH;
+                        int bandWidth = Math.min(BAND_WIDTH, width-x0);
+                        columnDistances(bPixels, fPixels, width, height, x0, bandWidth, background, edges, dist);
+                    }
+                    return null;
+                }
+            };
         }
+        ThreadUtil.startAndJoin(callables);
+        if (Thread.currentThread().isInterrupted()) return null;
+        addProgress(0.5);
 
-        fp.sqrt();
+        // pass 2: for each row, the minimum over the column distances of all pixels of the row
+        final AtomicInteger nextRow = new AtomicInteger(0);
+        callables = new Callable[Math.min(nThreads, height)];
+        for (int t=0; t<callables.length; t++) {
+            callables[t] = new Callable<Void>() {
+                final public Void call() {
+                    double[] f = new double[width];
+                    int[] vertices = new int[width];
+                    double[] bounds = new double[width+1];
+                    for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement())
+                        edmLine(fPixels, y*width, width, edges, f, vertices, bounds);
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        if (Thread.currentThread().isInterrupted()) return null;
+        addProgress(0.5);
         return fp;
     } //public FloatProcessor makeFloatEDM
 
-    // Handle a line; two passes: left-to-right and right-to-left
-    private void edmLine(byte[] bPixels, float[] fPixels, int[][] pointBufs, int width,
-            int offset, int y, int backgroundValue, int yDist) {
-        int[] points = pointBufs[0];        // the buffer for the left-to-right pass
-        int pPrev = NO_POINT;
-        int pDiag = NO_POINT;               // point at (-/+1, -/+1) to current one (-1,-1 in the first pass)
-        int pNextDiag;
-        boolean edgesAreBackground = yDist != Integer.MAX_VALUE;
-        int distSqr = Integer.MAX_VALUE;    // this value is used only if edges are not background
-        for (int x=0; x<width; x++, offset++) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (x+1 < yDist) ? (x+1)*(x+1) : yDist*yDist; //distance from edge
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    // Writes the distance to the nearest background pixel along y into fPixels, for the columns
+    // x0 to x0+bandWidth-1; infinite if there is no background pixel in the column.
+    // The rows are processed in sequence (downwards, then upwards), with all columns of the band
+    // in each row, for better cache usage than column-by-column processing.
+    private static void columnDistances(byte[] bPixels, float[] fPixels, int width, int height,
+            int x0, int bandWidth, int backgroundValue, boolean edgesAreBackground, float[] dist) {
+        float distOutside = edgesAreBackground ? 0f : Float.POSITIVE_INFINITY;
+        for (int i=0; i<bandWidth; i++)
+            dist[i] = distOutside;          // distance at y=-1
+        for (int y=0; y<height; y++) {
+            for (int i=0, p=x0+y*width; i<bandWidth; i++, p++) {
+                float d = bPixels[p]==backgroundValue ? 0f : dist[i]+1f;
+                dist[i] = d;
+                fPixels[p] = d;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-        offset--; //now points to the last pixel in the line
-        points = pointBufs[1];              // the buffer for the right-to-left pass. Low short contains x, high short y
-        pPrev = NO_POINT;
-        pDiag = NO_POINT;
-        for (int x=width-1; x>=0; x--, offset--) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (width-x < yDist) ? (width-x)*(width-x) : yDist*yDist;
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+        for (int i=0; i<bandWidth; i++)
+            dist[i] = distOutside;          // distance at y=height
+        for (int y=height-1; y>=0; y--) {
+            for (int i=0, p=x0+y*width; i<bandWidth; i++, p++) {
+                float d = dist[i]+1f;
+                if (d < fPixels[p])
+                    fPixels[p] = d;
+                else
+                    d = fPixels[p];
+                dist[i] = d;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-    } //private void edmLine
+    } //private void columnDistances
 
-    // Calculates minimum distance^2 of x,y from the following three points:
-    //  - points[x] (nearest point found for previous line, same x)
-    //  - pPrev (nearest point found for same line, previous x), and
-    //  - pDiag (nearest point found for diagonal, i.e., previous line, previous x)
-    // Sets array element points[x] to the coordinates of the point having the minimum distance to x,y
-    // If the distSqr parameter is lower than the distance^2, then distSqr is used
-    // Returns to the minimum distance^2 obtained
-    private float minDist2 (int[] points, int pPrev, int pDiag, int x, int y, int distSqr) {
-        int p0 = points[x];              // the nearest background point for the same x in the previous line
-        int nearestPoint = p0;
-        if (p0 != NO_POINT) {
-            int x0 = p0& 0xffff; int y0 = (p0>>16)&0xffff;
-            int dist1Sqr = (x-x0)*(x-x0)+(y-y0)*(y-y0);
-            if (dist1Sqr < distSqr)
-                distSqr = dist1Sqr;
-        }
-        if (pDiag!=p0 && pDiag!=NO_POINT) {
-            int x1 = pDiag&0xffff; int y1 = (pDiag>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pDiag;
-                distSqr = dist1Sqr;
+    // Handle a line: replaces the column distances in fPixels (starting at 'offset') by the
+    // distance to the nearest background pixel. This is the square root of the lower envelope
+    // of the parabolas (x-x0)^2+f(x0), where f(x0) is the squared column distance at x0.
+    // 'vertices' are the x0 of the parabolas forming the envelope, 'bounds' the
+    // intersection points between them; 'f' holds f(x0)+x0^2.
+    private static void edmLine(float[] fPixels, int offset, int width, boolean edgesAreBackground,
+            double[] f, int[] vertices, double[] bounds) {
+        int k = -1;                         // index of the last parabola of the envelope
+        for (int x=0; x<width; x++) {
+            float d = fPixels[offset+x];
+            if (d == Float.POSITIVE_INFINITY) continue;   // no background pixel in this column
+            double g = (double)d*d + (double)x*x;
+            f[x] = g;                       // f(x)+x^2, the parabola minus its quadratic term
+            double s = Double.NEGATIVE_INFINITY;
+            while (k >= 0) {
+                int v = vertices[k];
+                s = (g - f[v])/(2*(x - v));
+                if (s > bounds[k]) break;
+                k--;
             }
+            if (k < 0) s = Double.NEGATIVE_INFINITY;
+            k++;
+            vertices[k] = x;
+            bounds[k] = s;
         }
-        if (pPrev!=pDiag && pPrev!=NO_POINT) {
-            int x1 = pPrev& 0xffff; int y1 = (pPrev>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pPrev;
-                distSqr = dist1Sqr;
+        for (int x=0, j=0; x<width; x++) {
+            double dist2 = Integer.MAX_VALUE;   // used only if there is no background pixel and edges are not background
+            if (k >= 0) {
+                while (j < k && bounds[j+1] < x) j++;
+                int v = vertices[j];
+                dist2 = f[v] + (double)x*(x - 2*v);
+            }
+            if (edgesAreBackground) {
+                double edgeDist = Math.min(x+1, width-x);
+                if (edgeDist*edgeDist < dist2) dist2 = edgeDist*edgeDist;
             }
+            fPixels[offset+x] = (float)Math.sqrt(dist2);
         }
-        points[x] = nearestPoint;
-        return (float)distSqr;
-    } //private float minDist2
+    } //private void edmLine
 
     // overwrite ip with floatEdm converted to bytes
     private void byteFromFloat(ImageProcessor ip, FloatProcessor floatEdm) {
@@ -88,8 +88,7 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		int maxN = Math.max(width, height);
-		int size = 2;
-		while (size<1.5*maxN) size *= 2;		
+		int size = FHT.getFastSize((int)Math.ceil(1.5*maxN));
 		rect.x = (int)Math.round((size-width)/2.0);
 		rect.y = (int)Math.round((size-height)/2.0);
 		rect.width = width;
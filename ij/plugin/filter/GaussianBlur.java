@@ -26,6 +26,10 @@ import java.util.concurrent.atomic.AtomicLong;
  * - For increased speed, except for small blur radii, the lines (rows or
  * columns of the image) are downscaled before convolution and upscaled
  * to their original length thereafter.
+ * - Optionally (setRecursive), a recursive (IIR) filter approximates the
+ * Gaussian, with a computing time independent of sigma. It is less
+ * accurate than the convolution (see blur1DirectionRecursive), and used
+ * only for sigma >= MIN_RECURSIVE_SIGMA and not above the line length.
  * 
  * Version 03-Jun-2007 M. Schmid with preview, progressBar stack-aware,
  * snapshot via snapshot flag; restricted range for resetOutOfRoi
@@ -52,6 +56,11 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     private int pass;                        // Current pass
     private boolean noProgress;      // Do not show progress bar
     private boolean calledAsPlugin;
+    private boolean recursive;         // Use the recursive filter instead of convolution
+    private int nThreads;              // Maximum number of threads; 0 for Prefs.getThreads()
+    /** Below this sigma, the convolution is used also in recursive mode, because the
+     *  recursive filter deviates too much from a Gaussian */
+    public static final double MIN_RECURSIVE_SIGMA = 2.0;
     
     /** Method to return types supported
      * @param arg unused
@@ -211,6 +220,25 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         return;
     }
 
+    /** Sets whether the Gaussian should be approximated by a recursive (IIR) filter
+     *  for sigma >= MIN_RECURSIVE_SIGMA, up to the image width or height (with larger
+     *  sigma, the poles of the filter get too close to 1 for accurate results).
+     *  The computing time of the recursive filter does not depend on sigma, but the
+     *  result is less accurate; the maximum deviation from the convolution with a
+     *  Gaussian is roughly 1% of the image contrast, and the 'accuracy' parameter
+     *  is ignored.
+     *  Out-of-image pixels are assumed to have the value of the nearest edge pixel,
+     *  as with convolution. */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+
+    /** Sets the maximum number of threads for blur1Direction; the default is
+     *  Prefs.getThreads(). Use 1 if the caller processes several images in parallel. */
+    public void setNThreads(int nThreads) {
+        this.nThreads = Math.max(nThreads, 1);
+    }
+
     /** Blur an image in one direction (x or y) by a Gaussian, using multiple threads on multiprocessor machines
      * @param ip        The Image with the original data where also the result will be stored
      * @param sigma     Standard deviation of the Gaussian
@@ -242,6 +270,10 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final int writeFrom = xDirection? roi.x : roi.y;    //first point of a line that needs to be written
         final int writeTo = xDirection ? roi.x+roi.width : roi.y+roi.height;
         
+        if (recursive && sigma >= MIN_RECURSIVE_SIGMA && sigma <= length) {
+            blur1DirectionRecursive(pixels, sigma, length, pointInc, lineInc, lineFrom, lineTo, writeFrom, writeTo);
+            return;
+        }
         /* large radius (sigma): scale down, then convolve, then scale up */
         final boolean doDownscaling = sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
         final int reduceBy = doDownscaling ?                //downscale by this factor
@@ -270,7 +302,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final float[] downscaleKernel = doDownscaling ? makeDownscaleKernel(reduceBy) : null;
         final float[] upscaleKernel = doDownscaling ? makeUpscaleKernel(reduceBy) : null;
 
-        int numThreads1 = Math.min(Prefs.getThreads(), lineTo-lineFrom);
+        int numThreads1 = Math.min(nThreads>0 ? nThreads : Prefs.getThreads(), lineTo-lineFrom);
         int numThreads2 = (int)((lineTo - lineFrom)*(long)(writeTo - writeFrom)*gaussKernel[0].length/
                 (doDownscaling ? 8000 : 16000)) + 1; //use fewer threads if a small task
         final int numThreads = Math.min(numThreads1, numThreads2);
@@ -318,6 +350,151 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         if (pass > nPasses) pass = 1;
     }
 
+    /** Blur the lines from <code>lineFrom</code> to <code>lineTo-1</code> with the
+     * recursive Gaussian filter of Young and van Vliet (Signal Processing 44, 139-151, 1995),
+     * i.e., a 3rd-order causal filter followed by the same filter in the anticausal
+     * direction, with the poles of van Vliet, Young and Verbeek (ICPR 1998) scaled for
+     * the exact variance. The state of the anticausal filter at the end of the line
+     * is determined as described by Triggs and Sdika (IEEE Trans. Signal Processing 54,
+     * 2365-2367, 2006), so that out-of-line pixels have the value of the edge pixel.
+     * The kernel is symmetric and has the correct sigma, but its shape deviates
+     * slightly from a Gaussian; at edges, the result differs from the convolution
+     * by up to about 1% of the step height.
+     */
+    private void blur1DirectionRecursive(final float[] pixels, final double sigma, final int length,
+            final int pointInc, final int lineInc, final int lineFrom, final int lineTo, final int writeFrom, final int writeTo) {
+        final double[] coeffs = makeRecursiveCoefficients(sigma);
+        int numThreads1 = Math.min(nThreads>0 ? nThreads : Prefs.getThreads(), lineTo-lineFrom);
+        int numThreads2 = (int)((lineTo - lineFrom)*(long)length/50000) + 1; //use fewer threads if a small task
+        final int numThreads = Math.min(numThreads1, numThreads2);
+        final Callable[] callables = new Callable[numThreads];
+        final AtomicInteger nextLine = new AtomicInteger(lineFrom);
+        final AtomicLong lastShowProgressTime = new AtomicLong(System.currentTimeMillis());
+        for ( int t = 0; t < numThreads; t++ ) {
+            callables[t] = new Callable() {
+                final public Void call() {
+                    double[] cache = new double[length];
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int line = nextLine.getAndIncrement();
+                        if (line >= lineTo) break;
+                        if ((line&0x1f)==0) { //every 32 lines, check whether progress bar should be updated
+                            long time = System.currentTimeMillis();
+                            if (time - lastShowProgressTime.get() >110) {
+                                lastShowProgressTime.set(time);
+                                showProgress((double)(line-lineFrom)/(lineTo-lineFrom));
+                            }
+                        }
+                        recursiveGaussLine(pixels, cache, coeffs, line*lineInc, length, pointInc, writeFrom, writeTo);
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        showProgress(1.0);
+        pass++;
+        if (pass > nPasses) pass = 1;
+    }
+
+    /** Variance of the recursive filter (causal and anticausal) with poles at
+     *  d^(1/q), where d = poleR*exp(+-i*poleTheta) and pole3: 2*sum(d/(d-1)^2) */
+    private static double recursiveVariance(double q, double poleR, double poleTheta, double pole3) {
+        double r = Math.pow(poleR, 1/q), theta = poleTheta/q;
+        double re = r*Math.cos(theta), im = r*Math.sin(theta);
+        double dm1Re = re - 1, dm1Im = im;                      // d-1
+        double sqRe = dm1Re*dm1Re - dm1Im*dm1Im, sqIm = 2*dm1Re*dm1Im;   // (d-1)^2
+        double sqAbs2 = sqRe*sqRe + sqIm*sqIm;
+        double complexPart = 2*(re*sqRe + im*sqIm)/sqAbs2;      // d/(d-1)^2 + its conjugate
+        double d3 = Math.pow(pole3, 1/q);
+        return 2*(complexPart + d3/((d3-1)*(d3-1)));
+    }
+
+    /** Returns the coefficients of the recursive filter: {B, a1, a2, a3}, where the
+     * causal filter is w[n] = B*x[n] + a1*w[n-1] + a2*w[n-2] + a3*w[n-3], followed by
+     * the 3x3 matrix M (row by row) that maps the deviation of the causal state
+     * (w[N-1], w[N-2], w[N-3]) from the edge value to the deviation of the initial
+     * anticausal state (y[N], y[N+1], y[N+2]) at the end of a line with N points.
+     * Instead of the closed-form expression of Triggs and Sdika, M is obtained by
+     * running the filters on the continuation of the line, which is done only once
+     * per sigma.
+     */
+    static double[] makeRecursiveCoefficients(double sigma) {
+        // poles for sigma=2 (van Vliet, Young & Verbeek, ICPR 1998), scaled with the power 1/q
+        final double poleRe = 1.41650, poleIm = 1.00829, pole3 = 1.86543;
+        final double poleR = Math.sqrt(poleRe*poleRe + poleIm*poleIm), poleTheta = Math.atan2(poleIm, poleRe);
+        double qLow = 0, qHigh = 1;
+        while (recursiveVariance(qHigh, poleR, poleTheta, pole3) < sigma*sigma)
+            qHigh *= 2;
+        for (int i=0; i<100 && qHigh-qLow>1e-12*qHigh; i++) {   // bisection for the exact variance
+            double q = 0.5*(qLow + qHigh);
+            if (recursiveVariance(q, poleR, poleTheta, pole3) < sigma*sigma)
+                qLow = q;
+            else
+                qHigh = q;
+        }
+        double q = 0.5*(qLow + qHigh);
+        // inverse poles u1,2 = rho*exp(+-i*phi) and u3; w[n] - sum(a_i w[n-i]) has the roots u_i
+        double rho = Math.pow(poleR, -1/q), phi = poleTheta/q, u3 = Math.pow(pole3, -1/q);
+        double a1 = 2*rho*Math.cos(phi) + u3;
+        double a2 = -(rho*rho + 2*rho*Math.cos(phi)*u3);
+        double a3 = rho*rho*u3;
+        double[] coeffs = new double[13];
+        coeffs[0] = 1 - (a1 + a2 + a3);
+        coeffs[1] = a1; coeffs[2] = a2; coeffs[3] = a3;
+        // the impulse response decays with the largest pole; continue until it is negligible
+        int nContinue = (int)(20*sigma) + 100;
+        double[] w = new double[nContinue+3];
+        for (int j=0; j<3; j++) {                       // for unit deviation of w[N-1-j]
+            java.util.Arrays.fill(w, 0.0);
+            w[2-j] = 1;                                 // w[0..2] are w[N-3..N-1]
+            for (int i=3; i<w.length; i++)              // causal filter, input = edge value (zero deviation)
+                w[i] = a1*w[i-1] + a2*w[i-2] + a3*w[i-3];
+            double y1=0, y2=0, y3=0;                    // anticausal filter, from the far end
+            for (int i=w.length-1; i>=3; i--) {
+                double y = coeffs[0]*w[i] + a1*y1 + a2*y2 + a3*y3;
+                y3 = y2; y2 = y1; y1 = y;
+                if (i<=5)
+                    coeffs[4 + 3*(i-3) + j] = y;        // y[N], y[N+1], y[N+2]
+            }
+        }
+        return coeffs;
+    }
+
+    /** Blur one line (row or column) with the recursive filter, see blur1DirectionRecursive.
+     * @param pixels    input and output array
+     * @param cache     array for the intermediate result, at least <code>length</code> long
+     * @param coeffs    filter coefficients from <code>makeRecursiveCoefficients</code>
+     * @param pixel0    index in pixels array corresponding to start of line or column
+     * @param length    length of the line or column
+     * @param pointInc  spacing of values in the pixels array (1 for lines, image width for columns)
+     * @param writeFrom Index of the first point in the line that should be written
+     * @param writeTo   Index+1 of the last point in the line that should be written
+     */
+    final static private void recursiveGaussLine(final float[] pixels, final double[] cache, final double[] coeffs,
+            final int pixel0, final int length, final int pointInc, final int writeFrom, final int writeTo) {
+        final double b = coeffs[0], a1 = coeffs[1], a2 = coeffs[2], a3 = coeffs[3];
+        final double first = pixels[pixel0];
+        final double last = pixels[pixel0 + (length-1)*pointInc];
+        double w1 = first, w2 = first, w3 = first;     // steady state for constant input before the line
+        for (int i=0, p=pixel0; i<length; i++, p+=pointInc) {
+            double w = b*pixels[p] + a1*w1 + a2*w2 + a3*w3;
+            cache[i] = w;
+            w3 = w2; w2 = w1; w1 = w;
+        }
+        double d1 = cache[length-1] - last;             // deviation of the causal state from the edge value
+        double d2 = (length>1 ? cache[length-2] : first) - last;
+        double d3 = (length>2 ? cache[length-3] : first) - last;
+        double y1 = last + coeffs[4]*d1 + coeffs[5]*d2 + coeffs[6]*d3;
+        double y2 = last + coeffs[7]*d1 + coeffs[8]*d2 + coeffs[9]*d3;
+        double y3 = last + coeffs[10]*d1 + coeffs[11]*d2 + coeffs[12]*d3;
+        for (int i=length-1, p=pixel0+i*pointInc; i>=writeFrom; i--, p-=pointInc) {
+            double y = b*cache[i] + a1*y1 + a2*y2 + a3*y3;
+            if (i < writeTo)
+                pixels[p] = (float)y;
+            y3 = y2; y2 = y1; y1 = y;
+        }
+    }
+
     /** Scale a line (row or column of a FloatProcessor or part thereof)
      * down by a factor <code>reduceBy</code> and write the result into
      * <code>cache</code>.
@@ -5,8 +5,10 @@ import ij.gui.*;
 import ij.measure.*;
 import ij.process.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /** This ImageJ plug-in filter finds the maxima (or minima) of an image.
  * It can create a mask where the local maxima of the current image are
@@ -39,6 +41,8 @@ import java.util.*;
  * version 13-Sep-2013 added the findMaxima() and findMinima() functions for arrays (Norbert Vischer)
  * version 20-Mar-2014 Watershed segmentation of EDM with tolerance>=1.0 does not kill fine particles
  * version 11-Mar-2019 adds "strict" option, "noise tolerance" renamed to "prominence"
+ * Watershed: the dilation steps of large levels, conversion to 8-bit and post-processing
+ *            are distributed among threads (with the same result as single-threaded)
  */
 
 public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
@@ -104,6 +108,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     /** type masks corresponding to the output types */
     final static byte[] outputTypeMasks = new byte[] {MAX_POINT, MAX_AREA, MAX_AREA};
     final static float SQRT2 = 1.4142135624f;
+    /** minimum number of points per thread in a watershed dilation step */
+    final static int MIN_POINTS_PER_THREAD = 10000;
 
 
     /** Method to return types supported
@@ -840,23 +846,38 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             factor = 1;   // with EDM, no better resolution
         ByteProcessor outIp = new ByteProcessor(width, height);
         //convert possibly calibrated image to byte without damaging threshold (setMinAndMax would kill threshold)
-        byte[] pixels = (byte[])outIp.getPixels();
-        long v;
-        for (int y=0, i=0; y<height; y++) {
-            for (int x=0; x<width; x++, i++) {
-                float rawValue = ip.getPixelValue(x, y);
-                if (threshold!=ImageProcessor.NO_THRESHOLD && rawValue<threshold)
-                    pixels[i] = (byte)0;
-                else if ((types[i]&MAX_AREA)!=0)
-                    pixels[i] = (byte)255;  //prepare watershed by setting "true" maxima+surroundings to 255
-                else {
-                    v = 1 + Math.round((rawValue-offset)*factor);
-                    if (v < 1) pixels[i] = (byte)1;
-                    else if (v<=254) pixels[i] = (byte)(v&255);
-                    else pixels[i] = (byte)254;
+        final byte[] pixels = (byte[])outIp.getPixels();
+        final ImageProcessor ip1 = ip;
+        final byte[] types1 = types;
+        final double threshold1 = threshold, offset1 = offset, factor1 = factor;
+        final int width = this.width, height = this.height;
+        int nThreads = getNThreads(width*height);
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            final int yStart = height*t/nThreads, yEnd = height*(t+1)/nThreads;
+            callables[t] = new Callable<Void>() {
+                final public Void call() {
+                    long v;
+                    for (int y=yStart, i=yStart*width; y<yEnd; y++) {
+                        for (int x=0; x<width; x++, i++) {
+                            float rawValue = ip1.getPixelValue(x, y);
+                            if (threshold1!=ImageProcessor.NO_THRESHOLD && rawValue<threshold1)
+                                pixels[i] = (byte)0;
+                            else if ((types1[i]&MAX_AREA)!=0)
+                                pixels[i] = (byte)255;  //prepare watershed by setting "true" maxima+surroundings to 255
+                            else {
+                                v = 1 + Math.round((rawValue-offset1)*factor1);
+                                if (v < 1) pixels[i] = (byte)1;
+                                else if (v<=254) pixels[i] = (byte)(v&255);
+                                else pixels[i] = (byte)254;
+                            }
+                        }
+                    }
+                    return null;
                 }
-            }
+            };
         }
+        ThreadUtil.startAndJoin(callables);
         return outIp;
     } // byteProcessor make8bit
 
@@ -1047,12 +1068,23 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      */
     private void watershedPostProcess(ImageProcessor ip) {
         //new ImagePlus("before postprocess",ip.duplicate()).show();
-        byte[] pixels = (byte[])ip.getPixels();
-        int size = ip.getWidth()*ip.getHeight();
-        for (int i=0; i<size; i++) {
-           if ((pixels[i]&255)<255)
-                pixels[i] = (byte)0;
+        final byte[] pixels = (byte[])ip.getPixels();
+        final int size = ip.getWidth()*ip.getHeight();
+        int nThreads = getNThreads(size);
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            final int start = (int)((long)size*t/nThreads), end = (int)((long)size*(t+1)/nThreads);
+            callables[t] = new Callable<Void>() {
+                final public Void call() {
+                    for (int i=start; i<end; i++) {
+                        if ((pixels[i]&255)<255)
+                            pixels[i] = (byte)0;
+                    }
+                    return null;
+                }
+            };
         }
+        ThreadUtil.startAndJoin(callables);
         //new ImagePlus("after postprocess",ip.duplicate()).show();
     }
 
@@ -1148,7 +1180,9 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         } //for y
         // Create an array of the points (pixel offsets) that we set to 255 in one pass.
         // If we remember this list we need not create a snapshot of the ImageProcessor. 
-        int[] setPointList = new int[Math.min(maxBinSize, (width*height+2)/3)];
+        // For large levels, each thread has its own list.
+        int[][] setPointLists = new int[Prefs.getThreads()][];
+        setPointLists[0] = new int[Math.min(maxBinSize, (width*height+2)/3)];
         // now do the segmentation, starting at the highest level and working down.
         // At each level, dilate the particle (set pixels to 255), constrained to pixels
         // whose values are at that level and also constrained (by the fateTable)
@@ -1164,7 +1198,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                 int dIndex = 0;
                 do {                        // expand each level in 8 directions
                     int n = processLevel(directionSequence[dIndex%8], ip, table,
-                            levelStart[level], remaining, coordinates, setPointList);
+                            levelStart[level], remaining, coordinates, setPointLists);
                     //IJ.log("level="+level+" direction="+directionSequence[dIndex%8]+" remain="+remaining+"-"+n);
                     remaining -= n;         // number of points processed
                     sumN += n;
@@ -1222,57 +1256,111 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
 
 
     /** dilate the UEP on one level by one pixel in the direction specified by step, i.e., set pixels to 255
+     * Whether a pixel is set depends only on the pixels set before, thus the points can be
+     * distributed among threads; the result is the same as with one thread.
      * @param pass gives direction of dilation, see makeFateTable
      * @param ip the EDM with the segmeted blobs successively getting set to 255
      * @param table             The fateTable
      * @param levelStart        offsets of the level in pixelPointers[]
      * @param levelNPoints      number of points in the current level
      * @param pixelPointers[]   list of pixel coordinates (x+y*width) sorted by level (in sequence of y, x within each level)
-     * @param xCoordinates      list of x Coorinates for the current level only (no offset levelStart)
+     * @param setPointLists     buffers for the pixels to set, one per thread (allocated when needed)
      * @return                  number of pixels that have been changed
      */
-    private int processLevel(int pass, ImageProcessor ip, int[] fateTable,
-            int levelStart, int levelNPoints, int[] coordinates, int[] setPointList) {
+    private int processLevel(final int pass, ImageProcessor ip, final int[] fateTable,
+            final int levelStart, final int levelNPoints, final int[] coordinates, final int[][] setPointLists) {
+        final byte[] pixels = (byte[])ip.getPixels();
+        int nThreads = Math.min(setPointLists.length, levelNPoints/MIN_POINTS_PER_THREAD);
+        if (nThreads <= 1) {
+            int nChanged = 0;
+            int nUnchanged = 0;
+            int[] setPointList = setPointLists[0];
+            for (int i=0, p=levelStart; i<levelNPoints; i++, p++) {
+                int xy = coordinates[p];
+                int offset = dilatedOffset(pass, pixels, fateTable, xy);
+                if (offset >= 0)
+                    setPointList[nChanged++] = offset;  //remember to set pixel to 255
+                else
+                    coordinates[levelStart+(nUnchanged++)] = xy; //keep this pixel for future passes
+            } // for pixel i
+            //IJ.log("pass="+pass+", changed="+nChanged+" unchanged="+nUnchanged);
+            for (int i=0; i<nChanged; i++)
+                pixels[setPointList[i]] = (byte)255;
+            return nChanged;
+        }
+        // each thread processes one part of the list; the unchanged points are then
+        // moved together, in the original sequence
+        final int[] nChanged = new int[nThreads];
+        final int[] nUnchanged = new int[nThreads];
+        final int[] partStart = new int[nThreads+1];
+        for (int t=0; t<=nThreads; t++)
+            partStart[t] = levelStart + (int)((long)levelNPoints*t/nThreads);
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            final int thread = t;
+            callables[t] = new Callable<Void>() {
+                final public Void call() {
+                    int start = partStart[thread], end = partStart[thread+1];
+                    int[] setPointList = setPointLists[thread];
+                    if (setPointList == null || setPointList.length < end-start)
+                        setPointLists[thread] = setPointList = new int[end-start];
+                    int nSet = 0, nKept = 0;
+                    for (int p=start; p<end; p++) {
+                        int xy = coordinates[p];
+                        int offset = dilatedOffset(pass, pixels, fateTable, xy);
+                        if (offset >= 0)
+                            setPointList[nSet++] = offset;
+                        else
+                            coordinates[start+(nKept++)] = xy;
+                    }
+                    nChanged[thread] = nSet;
+                    nUnchanged[thread] = nKept;
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        int nChangedTotal = 0;
+        int destination = levelStart;
+        for (int t=0; t<nThreads; t++) {
+            int[] setPointList = setPointLists[t];
+            for (int i=0; i<nChanged[t]; i++)
+                pixels[setPointList[i]] = (byte)255;
+            nChangedTotal += nChanged[t];
+            System.arraycopy(coordinates, partStart[t], coordinates, destination, nUnchanged[t]);
+            destination += nUnchanged[t];
+        }
+        return nChangedTotal;
+    } //processLevel
+
+    /** Returns the pixel offset of the point with coordinates 'xy' if it should be set
+     * in this dilation pass (according to the fate table), otherwise -1 */
+    private int dilatedOffset(int pass, byte[] pixels, int[] fateTable, int xy) {
         int xmax = width - 1;
         int ymax = height - 1;
-        byte[] pixels = (byte[])ip.getPixels();
-        //byte[] pixels2 = (byte[])ip2.getPixels();
-        int nChanged = 0;
-        int nUnchanged = 0;
-        for (int i=0, p=levelStart; i<levelNPoints; i++, p++) {
-            int xy = coordinates[p];
-            int x = xy&intEncodeXMask;
-            int y = (xy&intEncodeYMask)>>intEncodeShift;
-            int offset = x + y*width;
-            int index = 0;      //neighborhood pixel ocupation: index in fateTable
-            if (y>0 && (pixels[offset-width]&255)==255)
-                index ^= 1;
-            if (x<xmax && y>0 && (pixels[offset-width+1]&255)==255)
-                index ^= 2;
-            if (x<xmax && (pixels[offset+1]&255)==255)
-                index ^= 4;
-            if (x<xmax && y<ymax && (pixels[offset+width+1]&255)==255)
-                index ^= 8;
-            if (y<ymax && (pixels[offset+width]&255)==255)
-                index ^= 16;
-            if (x>0 && y<ymax && (pixels[offset+width-1]&255)==255)
-                index ^= 32;
-            if (x>0 && (pixels[offset-1]&255)==255)
-                index ^= 64;
-            if (x>0 && y>0 && (pixels[offset-width-1]&255)==255)
-                index ^= 128;
-            int mask = 1<<pass;
-            if ((fateTable[index]&mask)==mask)
-                setPointList[nChanged++] = offset;  //remember to set pixel to 255
-            else
-                coordinates[levelStart+(nUnchanged++)] = xy; //keep this pixel for future passes
-
-        } // for pixel i
-        //IJ.log("pass="+pass+", changed="+nChanged+" unchanged="+nUnchanged);
-        for (int i=0; i<nChanged; i++)
-            pixels[setPointList[i]] = (byte)255;
-        return nChanged;
-    } //processLevel
+        int x = xy&intEncodeXMask;
+        int y = (xy&intEncodeYMask)>>intEncodeShift;
+        int offset = x + y*width;
+        int index = 0;      //neighborhood pixel ocupation: index in fateTable
+        if (y>0 && (pixels[offset-width]&255)==255)
+            index ^= 1;
+        if (x<xmax && y>0 && (pixels[offset-width+1]&255)==255)
+            index ^= 2;
+        if (x<xmax && (pixels[offset+1]&255)==255)
+            index ^= 4;
+        if (x<xmax && y<ymax && (pixels[offset+width+1]&255)==255)
+            index ^= 8;
+        if (y<ymax && (pixels[offset+width]&255)==255)
+            index ^= 16;
+        if (x>0 && y<ymax && (pixels[offset+width-1]&255)==255)
+            index ^= 32;
+        if (x>0 && (pixels[offset-1]&255)==255)
+            index ^= 64;
+        if (x>0 && y>0 && (pixels[offset-width-1]&255)==255)
+            index ^= 128;
+        int mask = 1<<pass;
+        return (fateTable[index]&mask)==mask ? offset : -1;
+    }
 
     /** Creates the lookup table used by the watershed function for dilating the particles.
      * The algorithm allows dilation in both straight and diagonal directions.
@@ -1378,6 +1466,11 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return false;   //to make the compiler happy :-)
     } // isWithin
 
+    /** Returns the number of threads for simple operations on 'nPixels' pixels */
+    private static int getNThreads(int nPixels) {
+        return Math.max(1, Math.min(Prefs.getThreads(), nPixels/(10*MIN_POINTS_PER_THREAD)));
+    }
+
     /** add work done in the meanwhile and show progress */
     private void addProgress(double deltaProgress) {
         if (nPasses==0) return;
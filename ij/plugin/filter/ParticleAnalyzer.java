@@ -1,7 +1,14 @@
 package ij.plugin.filter;
 import java.awt.*;
 import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import ij.*;
 import ij.gui.*;
 import ij.process.*;
@@ -13,6 +20,7 @@ import ij.plugin.Colors;
 import ij.plugin.LutLoader;
 import ij.macro.Interpreter;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 
 /** Implements ImageJ's Analyze Particles command.
 	<p>
@@ -86,6 +94,11 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 	/** Use "Overlay" checkbox to display overlay. */
 	public static final int OVERLAY = 262144;
 
+	/** Trace and measure particles using multiple threads. With stacks, several
+		slices are analyzed at the same time. The results are the same, and in
+		the same order, as with a single thread. */
+	public static final int PARALLEL = 524288;
+
 	static final String OPTIONS = "ap.options";
 	
 	static final int BYTE=0, SHORT=1, FLOAT=2, RGB=3;
@@ -148,6 +161,7 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 	private ImageProcessor mask;
 	private double totalArea;
 	private FloodFiller ff;
+	private ImageProcessor ipf;
 	private Roi exclusionRoi;
 	private RoiManager roiManager;
 	private static RoiManager staticRoiManager;
@@ -169,6 +183,9 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 	private boolean noThreshold;
 	private boolean calledByPlugin;
 	private boolean hyperstack;
+	private boolean parallel;
+	private Future[] sliceParticles;
+	private int nextSlice;
 	private static LUT glasbeyLut;
 
 			
@@ -289,6 +306,8 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 				inSituShow = true;
 			if (mOptions.contains("record"))
 				recordStarts = true;
+			if (mOptions.contains("parallel"))
+				parallel = true;
 			staticMinSize = 0.0; staticMaxSize = DEFAULT_MAX_SIZE;
 			staticMinCircularity=0.0; staticMaxCircularity=1.0;
 			staticShowChoice = NOTHING;
@@ -408,6 +427,8 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			options |= COMPOSITE_ROIS; else options &= ~COMPOSITE_ROIS;
 		staticOptions = options;
 		options |= SHOW_PROGRESS;
+		if (parallel)
+			options |= PARALLEL;
 		if ((options&DISPLAY_SUMMARY)!=0)
 			Analyzer.setMeasurements(Analyzer.getMeasurements()|AREA);
 		return true;
@@ -593,14 +614,20 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		wand = new Wand(ip);
 		pf = new PolygonFiller();
 		if (floodFill) {
-			ImageProcessor ipf = ip.duplicate();
+			ipf = ip.duplicate();
 			ipf.setValue(fillColor);
 			ff = new FloodFiller(ipf);
 		}
 		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
 
 		boolean done = false;
-		for (int y=r.y; y<(r.y+r.height); y++) {
+		if (canAnalyzeSlicesInParallel(imp))
+			addParticles(getSliceParticles(imp, ip), imp);
+		else if (canLabelParticles(imp, ip))
+			addParticles(labelParticles(ip), imp);
+		else if (canAnalyzeInParallel(imp, ip))
+			analyzeInParallel(imp, ip);
+		else for (int y=r.y; y<(r.y+r.height); y++) {
 			offset = y*width;
 			for (int x=r.x; x<(r.x+r.width); x++) {
 				if (pixels!=null)
@@ -623,6 +650,10 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 				break;
 			}
 		}
+		if (canceled && sliceParticles!=null) {
+			for (int i=0; i<sliceParticles.length; i++)
+				if (sliceParticles[i]!=null) sliceParticles[i].cancel(true);
+		}
 		if (showProgress)
 			IJ.showProgress(1.0);
 		if (showResults && showResultsTable && rt.size()>0)
@@ -851,16 +882,36 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		
 	void analyzeParticle(int x, int y, ImagePlus imp, ImageProcessor ip) {
 		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		Particle p = traceParticle(x, y, ip, ip2, wand, pf, ff);
+		if (p==null)
+			return;
+		addParticle(p, imp);
+		ip.setRoi(p.bounds);
+		ip.fill(p.mask);
+	}
+
+	/** Traces the particle starting at (x,y) and measures it. 'ip2' is the
+		redirect image or 'ip'. The processors, Wand, PolygonFiller and
+		FloodFiller must not be used by other threads at the same time.
+		Returns null if the particle could not be traced. */
+	private Particle traceParticle(int x, int y, ImageProcessor ip, ImageProcessor ip2, Wand wand, PolygonFiller pf, FloodFiller ff) {
 		wand.autoOutline(x, y, level1, level2, wandMode);
 		if (wand.npoints==0)
-			{IJ.log("wand error: "+x+" "+y); return;}
-		Roi roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, roiType);
+			{IJ.log("wand error: "+x+" "+y); return null;}
+		int npoints = wand.npoints;
+		int[] xpoints = Arrays.copyOf(wand.xpoints, npoints); // traced ROIs keep the arrays they are given
+		int[] ypoints = Arrays.copyOf(wand.ypoints, npoints);
+		Roi roi = new PolygonRoi(xpoints, ypoints, npoints, roiType);
 		Rectangle r = roi.getBounds();
 		if (r.width>1 && r.height>1) {
-			PolygonRoi proi = (PolygonRoi)roi;
-			pf.setPolygon(proi.getXCoordinates(), proi.getYCoordinates(), proi.getNCoordinates());
-			ip2.setMask(pf.getMask(r.width, r.height));
-			if (floodFill) ff.particleAnalyzerFill(x, y, level1, level2, ip2.getMask(), r);
+			if (floodFill) {      // the mask is created by the flood fill, no need to fill the outline
+				ip2.setMask(new ByteProcessor(r.width, r.height));
+				ff.particleAnalyzerFill(x, y, level1, level2, ip2.getMask(), r);
+			} else {
+				PolygonRoi proi = (PolygonRoi)roi;
+				pf.setPolygon(proi.getXCoordinates(), proi.getYCoordinates(), proi.getNCoordinates());
+				ip2.setMask(pf.getMask(r.width, r.height));
+			}
 		}
 		ip2.setRoi(r);
 		ip.setValue(fillColor);
@@ -872,12 +923,12 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			if (exclusionRoi!=null && include) {
 				// Exclude particle if any point along boundary is not contained in roi.
 				Rectangle bounds = roi.getBounds();
-				int x1=bounds.x+wand.xpoints[wand.npoints-1];
-				int y1=bounds.y+wand.ypoints[wand.npoints-1];
+				int x1=bounds.x+xpoints[npoints-1];
+				int y1=bounds.y+ypoints[npoints-1];
 				int x2, y2;
-				for (int i=0; i<wand.npoints; i++) {
-					x2=bounds.x+wand.xpoints[i];
-					y2=bounds.y+wand.ypoints[i];
+				for (int i=0; i<npoints; i++) {
+					x2=bounds.x+xpoints[i];
+					y2=bounds.y+ypoints[i];
 					if (!exclusionRoi.contains(x2, y2))
 						{include = false; break;}
 					if ((x1==x2 && ip.getPixel(x1,y1-1)==fillColor) || (y1==y2 && ip.getPixel(x1-1,y1)==fillColor))
@@ -901,23 +952,492 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			if (circularity>1.0 && maxCircularity<=1.0) circularity = 1.0;
 			if (circularity<minCircularity || circularity>maxCircularity) include = false;
 		}
-		if (stats.pixelCount>=minSize && stats.pixelCount<=maxSize && include) {
-			particleCount++;
-			if (roiNeedsImage)
-				roi.setImage(imp);
-			stats.xstart=x; stats.ystart=y;
-			saveResults(stats, roi);
-			if (addToManager)
-				addToRoiManager(roi, mask, particleCount);
-			int saveShowChoice = showChoice;
-			if (showOverlay && showChoice==NOTHING)
-				showChoice = OVERLAY_OUTLINES;
-			if (showChoice!=NOTHING)
-				drawParticle(drawIP, roi, stats, mask);
-			showChoice = saveShowChoice;
+		Particle p = new Particle();
+		p.x = x;
+		p.y = y;
+		p.roi = roi;
+		p.bounds = r;
+		p.mask = mask;
+		p.stats = stats;
+		p.include = stats.pixelCount>=minSize && stats.pixelCount<=maxSize && include;
+		return p;
+	}
+
+	/** Records a traced particle if it passed the size, circularity and edge tests. */
+	private void addParticle(Particle p, ImagePlus imp) {
+		if (!p.include)
+			return;
+		particleCount++;
+		Roi roi = p.roi;  // null if found by labelParticles()
+		ImageStatistics stats = p.stats;
+		if (roiNeedsImage)
+			roi.setImage(imp);
+		stats.xstart=p.x; stats.ystart=p.y;
+		saveResults(stats, roi);
+		if (addToManager)
+			addToRoiManager(roi, p.mask, particleCount);
+		int saveShowChoice = showChoice;
+		if (showOverlay && showChoice==NOTHING)
+			showChoice = OVERLAY_OUTLINES;
+		if (showChoice!=NOTHING)
+			drawParticle(drawIP, roi!=null?roi:new Roi(p.bounds), stats, p.mask);
+		showChoice = saveShowChoice;
+	}
+
+	/** Records particles found by labelParticles() or findParticles(). */
+	private void addParticles(List<Particle> particles, ImagePlus imp) {
+		ImageWindow win = imp.getWindow();
+		int n = particles.size();
+		int inc = Math.max(n/25, 1);
+		for (int i=0; i<n; i++) {
+			addParticle(particles.get(i), imp);
+			if (showProgress && (i%inc)==0)
+				IJ.showProgress((double)i/n);
+			if (win!=null)
+				canceled = !win.running;
+			if (canceled) {
+				Macro.abort();
+				break;
+			}
 		}
-		ip.setRoi(r);
-		ip.fill(mask);
+	}
+
+	/** Returns 'true' if the particles of the following stack slices can be
+		found by other threads while those of the current slice are recorded. */
+	private boolean canAnalyzeSlicesInParallel(ImagePlus imp) {
+		if ((options&PARALLEL)==0 || Prefs.getThreads()<2 || !processStack)
+			return false;
+		int n = imp.getStackSize();
+		if (n<2 || imp.getStack().isVirtual() || imp.getType()==ImagePlus.COLOR_RGB)
+			return false;
+		if (excludeEdgeParticles && exclusionRoi!=null)
+			return false;  // the selection is not thread-safe
+		if (redirectImp!=null && redirectImp.getStackSize()==n && redirectImp.getStack().isVirtual())
+			return false;
+		return slice>=1 && slice<=n;
+	}
+
+	/** Returns the particles of the current slice, which are found by another
+		thread, and starts the analysis of the following slices. At most two
+		slices per thread are analyzed or waiting at the same time, so that
+		the particles are recorded in slice order with limited memory use. */
+	private List<Particle> getSliceParticles(ImagePlus imp, ImageProcessor ip) {
+		int n = imp.getStackSize();
+		if (sliceParticles==null) {
+			sliceParticles = new Future[n+1];
+			nextSlice = slice;
+			if (calibration!=null)
+				calibration.getCTable();  // create the table before it is shared between threads
+		}
+		int last = Math.min(n, slice+2*Prefs.getThreads()-1);
+		final boolean useLabels = canLabelParticles(imp, ip);
+		ImageStack stack = imp.getStack();
+		ImageStack redirectStack = redirectImp!=null&&redirectImp.getStackSize()==n?redirectImp.getStack():null;
+		for (; nextSlice<=last; nextSlice++) {
+			final ImageProcessor sliceIP = stack.getProcessor(nextSlice).duplicate();  // particles are erased as they are found
+			final ImageProcessor sliceIP2;
+			if (redirectStack!=null)
+				sliceIP2 = redirectStack.getProcessor(nextSlice);
+			else if (redirectIP!=null)
+				sliceIP2 = (ImageProcessor)redirectIP.clone();
+			else
+				sliceIP2 = sliceIP;
+			Callable<List<Particle>> task = new Callable<List<Particle>>() {
+				public List<Particle> call() {
+					if (r.width<width || r.height<height || mask!=null) {
+						if (!eraseOutsideRoi(sliceIP, r, mask)) return new ArrayList<Particle>();
+					}
+					return useLabels?labelParticles(sliceIP):findParticles(sliceIP, sliceIP2);
+				}
+			};
+			sliceParticles[nextSlice] = ThreadUtil.start(new Callable[] {task})[0];
+		}
+		Future future = sliceParticles[slice];
+		sliceParticles[slice] = null;
+		try {
+			return (List<Particle>)future.get();
+		} catch (Exception e) {
+			IJ.handleException(e);
+			canceled = true;
+			return new ArrayList<Particle>();
+		}
+	}
+
+	/** Finds and measures the particles of 'ip', a private copy of a stack slice
+		with the area outside of the selection erased, in the order of the
+		row-by-row scan. 'ip2' is the redirect image or 'ip'. */
+	private List<Particle> findParticles(ImageProcessor ip, ImageProcessor ip2) {
+		List<Particle> particles = new ArrayList<Particle>();
+		Wand wand = new Wand(ip);
+		PolygonFiller pf = new PolygonFiller();
+		FloodFiller ff = null;
+		if (floodFill) {
+			ImageProcessor ipf = ip.duplicate();
+			ipf.setValue(fillColor);
+			ff = new FloodFiller(ipf);
+		}
+		boolean wholeImage = level1==0.0 && level2==255.0 && ip instanceof ByteProcessor;
+		for (int y=r.y; y<(r.y+r.height); y++) {
+			for (int x=r.x; x<(r.x+r.width); x++) {
+				double value = imageType==SHORT?ip.getPixel(x,y):ip.getPixelValue(x,y);
+				if (value>=level1 && value<=level2) {
+					Particle p = traceParticle(x, y, ip, ip2, wand, pf, ff);
+					if (p==null)
+						continue;
+					particles.add(p);
+					if (wholeImage)
+						return particles;
+					ip.setRoi(p.bounds);
+					ip.fill(p.mask);
+				}
+			}
+		}
+		return particles;
+	}
+
+	/** Returns 'true' if the particles can be measured using a label image
+		instead of tracing them. This is the case if neither outlines nor
+		ROIs are needed and the measurements do not depend on the
+		histogram or on density calibration. */
+	private boolean canLabelParticles(ImagePlus imp, ImageProcessor ip) {
+		if (getClass()!=ParticleAnalyzer.class)
+			return false;  // subclasses may expect a ROI in saveResults() and drawParticle()
+		if (!floodFill || wandMode==Wand.FOUR_CONNECTED || redirectIP!=null)
+			return false;
+		if (!(ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor))
+			return false;
+		int supported = AREA+MEAN+STD_DEV+MIN_MAX+CENTROID+CENTER_OF_MASS+RECT+LABELS+INTEGRATED_DENSITY
+			+SKEWNESS+KURTOSIS+STACK_POSITION+INVERT_Y+SCIENTIFIC_NOTATION+NaN_EMPTY_CELLS;
+		if ((measurements&~supported)!=0)
+			return false;
+		if (compositeRois || addToManager || showOverlay || excludeEdgeParticles&&exclusionRoi!=null)
+			return false;
+		if (minCircularity>0.0 || maxCircularity!=1.0)
+			return false;
+		if (!(showChoice==NOTHING || showChoice==MASKS || showChoice==ROI_MASKS))
+			return false;
+		if (calibration!=null && calibration.getCTable()!=null)
+			return false;
+		if (!(ip instanceof ByteProcessor) && (ip.getHistogramMin()!=0.0 || ip.getHistogramMax()!=0.0))
+			return false;
+		return !(level1==0.0 && level2==255.0 && imp.getBitDepth()==8);
+	}
+
+	/** Measures the particles of 'ip', which are outside the threshold range
+		outside of the rectangle 'r', using a ConnectedComponents label image.
+		This gives the same results, in the same order, as tracing and filling
+		the particles one by one. */
+	private List<Particle> labelParticles(ImageProcessor ip) {
+		ConnectedComponents cc = new ConnectedComponents(8);
+		cc.label(ip, level1, level2);
+		int n = cc.getCount();
+		List<Particle> particles = new ArrayList<Particle>();
+		for (int label=1; label<=n; label++) {
+			int area = cc.getArea(label);
+			if (area<minSize || area>maxSize)
+				continue;
+			Rectangle b = cc.getBounds(label);
+			if (excludeEdgeParticles && (b.x==minX||b.y==minY||b.x+b.width==maxX||b.y+b.height==maxY))
+				continue;
+			Particle p = new Particle();
+			p.x = cc.getXStart(label);
+			p.y = cc.getYStart(label);
+			p.bounds = b;
+			p.mask = showChoice!=NOTHING?cc.getMask(label):null;
+			p.stats = cc.getStatistics(label, calibration);
+			p.include = true;
+			particles.add(p);
+		}
+		return particles;
+	}
+
+	/** Returns 'true' if the particles of this image can be traced and
+		measured by several threads. */
+	private boolean canAnalyzeInParallel(ImagePlus imp, ImageProcessor ip) {
+		if ((options&PARALLEL)==0 || Prefs.getThreads()<2)
+			return false;
+		if (!(ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor))
+			return false;
+		if (excludeEdgeParticles && exclusionRoi!=null)
+			return false;  // the boundary test depends on the particles erased so far
+		if (wandMode==Wand.FOUR_CONNECTED)
+			return false;  // filled 4-connected outlines may not cover the whole particle
+		if (level1==0.0 && level2==255.0 && imp.getBitDepth()==8)
+			return false;  // the whole image is one particle
+		return r.width>=2 && r.height>=2;
+	}
+
+	/** Analyzes the particles in the rectangle 'r' using several threads.
+		The starting points of all particles are found by labeling horizontal
+		bands of the image in parallel and merging the labels of particles
+		that cross band borders. The particles are then traced and measured
+		in parallel, in batches, and added to the results in the same order
+		as with the single-threaded row-by-row scan. Returns 'false' if
+		canceled. */
+	private boolean analyzeInParallel(final ImagePlus imp, final ImageProcessor ip) {
+		final int[] starts = findParticleStarts(ip, r);
+		if (starts==null)
+			return false;
+		if (calibration!=null)
+			calibration.getCTable();  // create the table before it is shared between threads
+		final int nThreads = Math.min(Prefs.getThreads(), Math.max(1, starts.length));
+		final int batchSize = nThreads*(imageType2==SHORT?16:128);
+		final Particle[] particles = new Particle[Math.min(batchSize, starts.length)];
+		final ImageProcessor[] ips = new ImageProcessor[nThreads];
+		final ImageProcessor[] ip2s = new ImageProcessor[nThreads];
+		final Wand[] wands = new Wand[nThreads];
+		final PolygonFiller[] pfs = new PolygonFiller[nThreads];
+		final FloodFiller[] ffs = new FloodFiller[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			ips[t] = (ImageProcessor)ip.clone();  // shares the pixels but has its own roi and mask
+			ip2s[t] = redirectIP!=null?(ImageProcessor)redirectIP.clone():ips[t];
+			wands[t] = new Wand(ips[t]);
+			pfs[t] = new PolygonFiller();
+			ffs[t] = floodFill?new FloodFiller(ipf):null;
+		}
+		BitSet erased = floodFill?null:new BitSet();
+		ImageWindow win = imp.getWindow();
+		for (int batchStart=0; batchStart<starts.length; batchStart+=batchSize) {
+			final int first = batchStart;
+			final int n = Math.min(batchSize, starts.length-first);
+			final AtomicInteger next = new AtomicInteger(0);
+			Callable[] callables = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int thread = t;
+				callables[t] = new Callable() {
+					final public Void call() {
+						int i;
+						while ((i=next.getAndIncrement())<n) {
+							int start = starts[first+i];
+							particles[i] = traceParticle(start%width, start/width, ips[thread], ip2s[thread], wands[thread], pfs[thread], ffs[thread]);
+						}
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(callables);
+			for (int i=0; i<n; i++) {
+				Particle p = particles[i];
+				particles[i] = null;
+				if (p==null)
+					continue;
+				if (erased!=null) {  // 'include holes': skip particles inside a particle analyzed before
+					if (erased.get(p.y*width+p.x))
+						continue;
+					markErased(erased, p);
+				}
+				addParticle(p, imp);
+			}
+			if (showProgress)
+				IJ.showProgress((double)(first+n)/starts.length);
+			if (win!=null)
+				canceled = !win.running;
+			if (canceled) {
+				Macro.abort();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Marks the pixels filled by a particle and its interior holes. */
+	private void markErased(BitSet erased, Particle p) {
+		Rectangle r = p.bounds;
+		byte[] mpixels = p.mask!=null?(byte[])p.mask.getPixels():null;
+		for (int y=0; y<r.height; y++) {
+			int offset = (r.y+y)*width + r.x;
+			for (int x=0; x<r.width; x++) {
+				if (mpixels==null || mpixels[y*r.width+x]!=0)
+					erased.set(offset+x);
+			}
+		}
+	}
+
+	/** Returns the indexes (y*width+x) of the first pixel, in raster order,
+		of each particle within 'r', sorted in ascending order. These are the
+		pixels where the single-threaded scan starts tracing. The rectangle
+		is split into bands that are labeled by several threads with
+		union-find; the labels of particles crossing band borders are merged
+		afterwards. Returns null if canceled. */
+	private int[] findParticleStarts(final ImageProcessor ip, final Rectangle r) {
+		final int nThreads = Prefs.getThreads();
+		int bandHeight = (r.height+nThreads-1)/nThreads;
+		bandHeight = Math.max(1, Math.min(bandHeight, (1<<22)/r.width)); // at most 16 MB of labels per thread
+		final int nBands = (r.height+bandHeight-1)/bandHeight;
+		final int bandHeight2 = bandHeight;
+		final Band[] bands = new Band[nBands];
+		final AtomicInteger nextBand = new AtomicInteger(0);
+		Callable[] callables = new Callable[Math.min(nThreads, nBands)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable() {
+				final public Void call() {
+					int[] labels = new int[bandHeight2*r.width];
+					int b;
+					while ((b=nextBand.getAndIncrement())<nBands) {
+						int y0 = r.y + b*bandHeight2;
+						int y1 = Math.min(y0+bandHeight2, r.y+r.height);
+						bands[b] = labelBand(ip, r.x, r.width, y0, y1, labels);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		int nLabels = 0;
+		for (int b=0; b<nBands; b++) {
+			if (bands[b]==null)
+				return null;  // interrupted
+			bands[b].offset = nLabels;
+			nLabels += bands[b].nLabels;
+		}
+		int[] parent = new int[nLabels+1];
+		int[] firstPixel = new int[nLabels+1];
+		for (int b=0; b<nBands; b++) {
+			Band band = bands[b];
+			for (int i=1; i<=band.nLabels; i++) {
+				parent[band.offset+i] = band.offset+band.parent[i];
+				firstPixel[band.offset+i] = band.firstPixel[i];
+			}
+			band.parent = null;
+			band.firstPixel = null;
+		}
+		for (int b=1; b<nBands; b++) { // merge particles crossing the border between bands b-1 and b
+			int[] above = bands[b-1].bottomRow;
+			int[] below = bands[b].topRow;
+			int offsetAbove = bands[b-1].offset;
+			int offsetBelow = bands[b].offset;
+			for (int x=0; x<r.width; x++) {
+				if (below[x]==0)
+					continue;
+				int label = offsetBelow+below[x];
+				int x1 = Math.max(x-1, 0);
+				int x2 = Math.min(x+1, r.width-1);
+				for (int xa=x1; xa<=x2; xa++) {
+					if (above[xa]!=0)
+						union(parent, label, offsetAbove+above[xa]);
+				}
+			}
+		}
+		int count = 0;
+		for (int i=1; i<=nLabels; i++) {
+			if (find(parent, i)==i)
+				firstPixel[count++] = firstPixel[i];
+		}
+		int[] starts = new int[count];
+		System.arraycopy(firstPixel, 0, starts, 0, count);
+		return starts;
+	}
+
+	/** Labels the 8-connected particle pixels in rows y0 to y1-1 with union-find. A label is
+		always merged into the lower one, so the root label of each set is the one
+		created at its first pixel in raster order. */
+	private Band labelBand(ImageProcessor ip, int x0, int rwidth, int y0, int y1, int[] labels) {
+		Object pixels = ip.getPixels();
+		byte[] bpixels = pixels instanceof byte[]?(byte[])pixels:null;
+		short[] spixels = pixels instanceof short[]?(short[])pixels:null;
+		float[] fpixels = pixels instanceof float[]?(float[])pixels:null;
+		float lower=(float)level1, upper=(float)level2;
+		Band band = new Band();
+		int[] parent = new int[256];
+		int[] firstPixel = new int[256];
+		int nLabels = 0;
+		for (int y=y0; y<y1; y++) {
+			int offset = y*width + x0;
+			int row = (y-y0)*rwidth;
+			for (int x=0; x<rwidth; x++) {
+				float v;
+				if (bpixels!=null)
+					v = bpixels[offset+x]&255;
+				else if (spixels!=null)
+					v = spixels[offset+x]&0xffff;
+				else
+					v = fpixels[offset+x];
+				if (!(v>=lower && v<=upper)) {
+					labels[row+x] = 0;
+					continue;
+				}
+				int label = 0;
+				if (x>0)
+					label = labels[row+x-1];
+				if (y>y0) {
+					int up = row-rwidth+x;
+					if (x>0 && labels[up-1]!=0)
+						label = label==0?labels[up-1]:union(parent, label, labels[up-1]);
+					if (labels[up]!=0)
+						label = label==0?labels[up]:union(parent, label, labels[up]);
+					if (x<rwidth-1 && labels[up+1]!=0)
+						label = label==0?labels[up+1]:union(parent, label, labels[up+1]);
+				}
+				if (label==0) {
+					nLabels++;
+					if (nLabels==parent.length) {
+						parent = Arrays.copyOf(parent, nLabels*2);
+						firstPixel = Arrays.copyOf(firstPixel, nLabels*2);
+					}
+					parent[nLabels] = nLabels;
+					firstPixel[nLabels] = offset+x;
+					label = nLabels;
+				}
+				labels[row+x] = label;
+			}
+			if (Thread.currentThread().isInterrupted())
+				return null;
+		}
+		for (int i=1; i<=nLabels; i++)
+			parent[i] = find(parent, i);
+		band.nLabels = nLabels;
+		band.parent = parent;
+		band.firstPixel = firstPixel;
+		band.topRow = new int[rwidth];
+		band.bottomRow = new int[rwidth];
+		int bottom = (y1-1-y0)*rwidth;
+		for (int x=0; x<rwidth; x++) {
+			band.topRow[x] = labels[x]!=0?parent[labels[x]]:0;
+			band.bottomRow[x] = labels[bottom+x]!=0?parent[labels[bottom+x]]:0;
+		}
+		return band;
+	}
+
+	private static int find(int[] parent, int label) {
+		int root = label;
+		while (parent[root]!=root)
+			root = parent[root];
+		while (parent[label]!=root) {
+			int next = parent[label];
+			parent[label] = root;
+			label = next;
+		}
+		return root;
+	}
+
+	/** Merges the sets of two labels and returns the root, which is the lower label. */
+	private static int union(int[] parent, int label1, int label2) {
+		int root1 = find(parent, label1);
+		int root2 = find(parent, label2);
+		if (root1<root2) {
+			parent[root2] = root1;
+			return root1;
+		} else {
+			parent[root1] = root2;
+			return root2;
+		}
+	}
+
+	/** A traced and measured particle. */
+	private static class Particle {
+		int x, y;
+		Roi roi;
+		Rectangle bounds;
+		ImageProcessor mask;
+		ImageStatistics stats;
+		boolean include;
+	}
+
+	/** Labels of a horizontal band of the image. */
+	private static class Band {
+		int offset, nLabels;
+		int[] parent, firstPixel;
+		int[] topRow, bottomRow;
 	}
 
 	ImageStatistics getStatistics(ImageProcessor ip, int mOptions, Calibration cal) {
@@ -26,6 +26,12 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			OPEN=8, CLOSE=9, TOP_HAT=10; //when adding a new filter, set HIGHEST_FILTER below.
 	public static final int BRIGHT_OUTLIERS = 0, DARK_OUTLIERS = 1;
 	private static final String[] outlierStrings = {"Bright","Dark"};
+	/** Kernel shapes for MIN, MAX, OPEN, CLOSE and TOP_HAT. Except for CIRCLE,
+	 *	these are processed by the MinMaxFilter class, with a computing time
+	 *	that does not depend on the radius. */
+	public static final int CIRCLE=0, SQUARE=MinMaxFilter.SQUARE, OCTAGON=MinMaxFilter.OCTAGON,
+			HORIZONTAL_LINE=MinMaxFilter.HORIZONTAL_LINE, VERTICAL_LINE=MinMaxFilter.VERTICAL_LINE;
+	private static final String[] kernelStrings = {"Circle", "Square", "Octagon", "Horizontal line", "Vertical line"};
 	private static int HIGHEST_FILTER = TOP_HAT;
 	// Filter parameters
 	private int filterType;
@@ -34,12 +40,14 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	private int whichOutliers;
 	private boolean lightBackground = Prefs.get("bs.background", true); //this and the next for top hat only
 	private boolean dontSubtract;
+	private int kernelShape = CIRCLE; //for min, max and top hat only
 	// Remember filter parameters for the next time
 	private static double[] lastRadius = new double[HIGHEST_FILTER+1]; //separate for each filter type
 	private static double lastThreshold = 50.;
 	private static int lastWhichOutliers = BRIGHT_OUTLIERS;
 	private static boolean lastLightBackground = false;
 	private static boolean lastDontSubtract = false;
+	private static int lastKernelShape = CIRCLE;
 	//
 	// F u r t h e r   c l a s s   v a r i a b l e s
 	int flags = DOES_ALL|SUPPORTS_MASKING|KEEP_PREVIEW;
@@ -63,6 +71,11 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		return filterType>=OPEN && filterType<=TOP_HAT;
 	}
 
+	/** Filters that can use other kernel shapes than a circle */
+	private boolean isMinMaxFilter(int filterType) {
+		return filterType==MIN || filterType==MAX || isMultiStepFilter(filterType);
+	}
+
 	/** Setup of the PlugInFilter. Returns the flags specifying the capabilities and needs
 	 * of the filter.
 	 *
@@ -121,6 +134,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			GenericDialog gd = GUI.newNonBlockingDialog(command,imp);
 			radius = lastRadius[filterType]<=0 ? 2 :  lastRadius[filterType];
 			gd.addNumericField("Radius", radius, 1, 6, "pixels");
+			if (isMinMaxFilter(filterType))
+				gd.addChoice("Kernel", kernelStrings, kernelStrings[lastKernelShape]);
 			if (filterType==OUTLIERS) {
 				int digits = imp.getType() == ImagePlus.GRAY32 ? 2 : 0;
 				gd.addNumericField("Threshold", lastThreshold, digits);
@@ -141,6 +156,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			IJ.register(this.getClass());	//protect static class variables (filter parameters) from garbage collection
 			if (Macro.getOptions() == null) { //interactive only: remember parameters entered
 				lastRadius[filterType] = radius;
+				if (isMinMaxFilter(filterType))
+					lastKernelShape = kernelShape;
 				if (filterType == OUTLIERS) {
 					lastThreshold = threshold;
 					lastWhichOutliers = whichOutliers;
@@ -162,6 +179,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			double workToDo = size*(double)radius;	//estimate computing time (arb. units)
 			if (filterType==MEAN || filterType==VARIANCE) workToDo *= 0.5;
 			else if (filterType==MEDIAN) workToDo *= radius*0.5;
+			else if (kernelShape!=CIRCLE && isMinMaxFilter(filterType)) workToDo = size*3.0;
 			if (workToDo < 1e6 && imp.getImageStackSize()>=2*numThreads) {
 				numThreads = 1;				//for fast operations, avoid overhead of multi-threading in each image
 				flags |= PARALLELIZE_STACKS;
@@ -172,6 +190,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
 		radius = gd.getNextNumber();
+		if (isMinMaxFilter(filterType))
+			kernelShape = gd.getNextChoiceIndex();
 		if (filterType == OUTLIERS) {
 			threshold = gd.getNextNumber();
 			whichOutliers = gd.getNextChoiceIndex();
@@ -180,6 +200,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			dontSubtract = gd.getNextBoolean();
 		}
 		int maxRadius = (filterType==MEDIAN || filterType==OUTLIERS || filterType==REMOVE_NAN) ? 100 : 1000;
+		if (isMinMaxFilter(filterType) && kernelShape!=CIRCLE)
+			maxRadius = 100000;
 		if (gd.invalidNumber() || radius<0 || radius>maxRadius || (filterType==OUTLIERS && threshold <0))
 			return false;
 		if (filterType == TOP_HAT) {
@@ -192,7 +214,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	}
 
 	public void run(ImageProcessor ip) {
-		rank(ip, radius, filterType, whichOutliers, (float)threshold, lightBackground, dontSubtract);
+		rank(ip, radius, filterType, whichOutliers, (float)threshold, lightBackground, dontSubtract, kernelShape);
 		if (IJ.escapePressed())									// interrupted by user?
 			ip.reset();
 		else if (previewing && (flags&FINAL_PROCESSING)!=0)
@@ -222,6 +244,18 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		rank(ip, radius, filterType, whichOutliers, threshold, false, false);
 	}
 
+	/** Filters an image with the MIN, MAX, OPEN, CLOSE or TOP_HAT filter, with a
+	 *	given kernel shape. (For other filters, the kernel is always a circle.)
+	 * @param ip The image subject to filtering
+	 * @param radius The kernel radius. For the SQUARE, OCTAGON and line kernels, the
+	 *		  kernel has the same width as the circular kernel with this radius
+	 * @param filterType MIN, MAX, OPEN, CLOSE or TOP_HAT (dark background)
+	 * @param kernelShape CIRCLE, SQUARE, OCTAGON, HORIZONTAL_LINE or VERTICAL_LINE
+	 */
+	public void rank(ImageProcessor ip, double radius, int filterType, int kernelShape) {
+		rank(ip, radius, filterType, 0, 50f, false, false, kernelShape);
+	}
+
 	/** Filters an image by any method except 'despecle' (for 'despeckle', use 'median' and radius=1)
 	 * @param ip The image subject to filtering
 	 * @param radius The kernel radius
@@ -234,6 +268,23 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	 *        where the result of grayscale open/close is subtracted from the original.
 	 */
 	public void rank(ImageProcessor ip, double radius, int filterType, int whichOutliers, float threshold, boolean lightBackground, boolean dontSubtract) {
+		rank(ip, radius, filterType, whichOutliers, threshold, lightBackground, dontSubtract, CIRCLE);
+	}
+
+	/** Filters an image by any method except 'despecle' (for 'despeckle', use 'median' and radius=1)
+	 * @param ip The image subject to filtering
+	 * @param radius The kernel radius
+	 * @param filterType as defined above; DESPECKLE is not a valid type here; use median and
+	 *		  a radius of 1.0 instead
+	 * @param whichOutliers BRIGHT_OUTLIERS or DARK_OUTLIERS for 'outliers' filter
+	 * @param threshold Threshold for 'outliers' filter
+	 * @param lightBackground for top-hat background subtraction, background is light, not dark
+	 * @param dontSubtract fpr top-hat filter, performs a grayscale open or close instead of top-hat,
+	 *        where the result of grayscale open/close is subtracted from the original.
+	 * @param kernelShape CIRCLE, SQUARE, OCTAGON, HORIZONTAL_LINE or VERTICAL_LINE; only
+	 *        used for MIN, MAX, OPEN, CLOSE and TOP_HAT, other filters use a circle.
+	 */
+	public void rank(ImageProcessor ip, double radius, int filterType, int whichOutliers, float threshold, boolean lightBackground, boolean dontSubtract, int kernelShape) {
 		Rectangle roi = ip.getRoi();
 		ImageProcessor mask = ip.getMask();
 		Rectangle roi1 = null;
@@ -254,6 +305,12 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			minMaxOutliersSign = invert ? 1f : -1f;
 		}
 
+		MinMaxFilter minMaxFilter = null;
+		if (kernelShape!=CIRCLE && isMinMaxFilter(filterType)) {
+			minMaxFilter = new MinMaxFilter(kernelShape, kRadius(lineRadii));
+			minMaxFilter.setNThreads(numThreads);
+		}
+
 		ImageProcessor snapIp = null;
 		FloatProcessor fp = null, snapFp = null;
 		boolean isImagePart = (roi.width<ip.getWidth()) || (roi.height<ip.getHeight());
@@ -263,27 +320,35 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			snapIp.setPixels(ip.getSnapshotPixels());
 		}
 		for (int ch=0; ch<ip.getNChannels(); ch++) {
-			int filterType1 = filterType;
-			if (isMultiStepFilter(filterType)) { //open, close, top-hat
-				filterType1 = (minMaxOutliersSign == -1f) ? MIN : MAX;
-					if (isImagePart) { //composite filters ('open maxima' etc.) need larger area in first step
-					int kRadius = kRadius(lineRadii);
-					int kHeight = kHeight(lineRadii);
-					Rectangle roiClone = (Rectangle)roi.clone();
-					roiClone.grow(kRadius, kHeight/2);
-					roi1 = roiClone.intersection(new Rectangle(ip.getWidth(), ip.getHeight()));
-					ip.setRoi(roi1);
+			if (minMaxFilter!=null) {		//square, octagon or line kernel
+				int type = filterType==MIN ? MinMaxFilter.MIN : (filterType==MAX ? MinMaxFilter.MAX :
+					(minMaxOutliersSign == -1f ? MinMaxFilter.OPEN : MinMaxFilter.CLOSE));
+				minMaxFilter.filter(ip, ch, type);
+				showProgress(1.0, ip instanceof ColorProcessor);
+				pass += isMultiStepFilter(filterType) ? 2 : 1;
+			} else {
+				int filterType1 = filterType;
+				if (isMultiStepFilter(filterType)) { //open, close, top-hat
+					filterType1 = (minMaxOutliersSign == -1f) ? MIN : MAX;
+						if (isImagePart) { //composite filters ('open maxima' etc.) need larger area in first step
+						int kRadius = kRadius(lineRadii);
+						int kHeight = kHeight(lineRadii);
+						Rectangle roiClone = (Rectangle)roi.clone();
+						roiClone.grow(kRadius, kHeight/2);
+						roi1 = roiClone.intersection(new Rectangle(ip.getWidth(), ip.getHeight()));
+						ip.setRoi(roi1);
+					}
+				}
+				doFiltering(ip, lineRadii, filterType1, minMaxOutliersSign, threshold, ch, nextY);
+				if (isMultiStepFilter(filterType)) { //open, close, top-hat
+					ip.setRoi(roi);
+					ip.setMask(mask);
+					if (nextY.get() < 0) break;
+					int filterType2 = (minMaxOutliersSign == -1f) ? MAX : MIN;
+					doFiltering(ip, lineRadii, filterType2, -minMaxOutliersSign, threshold, ch, nextY);
+					if (isImagePart)
+						resetRoiBoundary(ip, roi, roi1);
 				}
-			}
-			doFiltering(ip, lineRadii, filterType1, minMaxOutliersSign, threshold, ch, nextY);
-			if (isMultiStepFilter(filterType)) { //open, close, top-hat
-				ip.setRoi(roi);
-				ip.setMask(mask);
-				if (nextY.get() < 0) break;
-				int filterType2 = (minMaxOutliersSign == -1f) ? MAX : MIN;
-				doFiltering(ip, lineRadii, filterType2, -minMaxOutliersSign, threshold, ch, nextY);
-				if (isImagePart)
-					resetRoiBoundary(ip, roi, roi1);
 			}
 			if (nextY.get() < 0) break;
 
@@ -862,7 +927,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			radius = 1.75;
 		else if (radius>=2.5 && radius<2.85)
 			radius = 2.85;
-		int r2 = (int) (radius*radius) + 1;
+		long r2 = (long) (radius*radius) + 1;   //long: kernels other than circles may be large
 		int kRadius = (int)(Math.sqrt(r2+1e-10));
 		int kHeight = 2*kRadius + 1;
 		int[] kernel = new int[2*kHeight + 2];
@@ -870,7 +935,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		kernel[2*kRadius+1] =  kRadius;
 		int nPoints = 2*kRadius+1;
 		for (int y=1; y<=kRadius; y++) {		//lines above and below center together
-			int dx = (int)(Math.sqrt(r2-y*y+1e-10));
+			int dx = (int)(Math.sqrt(r2-(long)y*y+1e-10));
 			kernel[2*(kRadius-y)]	= -dx;
 			kernel[2*(kRadius-y)+1] =  dx;
 			kernel[2*(kRadius+y)]	= -dx;
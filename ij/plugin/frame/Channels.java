@@ -202,6 +202,8 @@ public class Channels extends PlugInDialog implements PlugIn, ItemListener, Acti
 							else
 								Recorder.record("Stack.setActiveChannels", str);
 						}
+						ci.updateChannelAndDraw();  // only the active channels have changed
+						return;
 					} else {
 						imp.setPosition(i+1, imp.getSlice(), imp.getFrame());
 						if (Recorder.record) {
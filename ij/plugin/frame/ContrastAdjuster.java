@@ -25,6 +25,7 @@ public class ContrastAdjuster extends PlugInDialog implements Runnable,
 	static final int[] channelConstants = {4, 2, 1, 3, 5, 6, 7};
 
 	ContrastPlot plot = new ContrastPlot();
+	HistogramCache histograms = new HistogramCache();
 	Thread thread;
 	private static ContrastAdjuster instance;
 
@@ -353,12 +354,9 @@ public class ContrastAdjuster extends PlugInDialog implements Runnable,
 		}
 		int bitDepth = imp.getBitDepth();
 		if (bitDepth==16 || bitDepth==32) {
-			Roi roi = imp.getRoi();
-			imp.deleteRoi();
-			ImageStatistics stats = imp.getRawStatistics();
+			ImageStatistics stats = histograms.get(imp, ip, null, HistogramCache.RAW, histogramsCalculated);
 			defaultMin = stats.min;
 			defaultMax = stats.max;
-			imp.setRoi(roi);
 		} else {
 			defaultMin = 0;
 			defaultMax = 255;
@@ -628,6 +626,10 @@ public class ContrastAdjuster extends PlugInDialog implements Runnable,
 			if (range!=0 && imp.getProcessor().getMax()==Math.pow(2,range)-1 && !(imp.getCalibration().isSigned16Bit())) {
 				ImagePlus imp2 = new ImagePlus("Temp", imp.getProcessor());
 				stats = new StackStatistics(imp2, 256, 0, Math.pow(2,range));
+			} else if (imp.getType()!=ImagePlus.COLOR_RGB) {
+				Roi roi = imp.getRoi();
+				if (roi!=null && !roi.isArea()) roi = null;
+				stats = histograms.get(imp, imp.getProcessor(), roi, HistogramCache.RAW, histogramsCalculated);
 			} else
 				stats = imp.getStatistics();
 		}
@@ -637,6 +639,18 @@ public class ContrastAdjuster extends PlugInDialog implements Runnable,
 		plot.setHistogram(stats, color);
 	}
 
+	/** Updates the default display range and the histogram when the statistics
+		of the current slice have been calculated in the background. */
+	private Runnable histogramsCalculated = new Runnable() {
+		public void run() {
+			ImagePlus imp = WindowManager.getCurrentImage();
+			if (imp!=null && imp.getID()==previousImageID && imp.getCurrentSlice()==previousSlice) {
+				previousImageID = 0;
+				setup();
+			}
+		}
+	};
+
 	void apply(ImagePlus imp, ImageProcessor ip) {
 		if (balance && imp.isComposite())
 			return;
@@ -1182,6 +1196,9 @@ public class ContrastAdjuster extends PlugInDialog implements Runnable,
 			}
 		}
 		previousImageID = 0; // user may have modified image
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp!=null)
+			histograms.remove(imp);
 		setup();
 		WindowManager.setWindow(this);
 	}
@@ -1259,6 +1276,7 @@ class ContrastPlot extends Canvas implements MouseListener {
 			histogram=null;
 			return;
 		}
+		histogram = (int[])histogram.clone();   // the mode is modified below
 		int maxCount = 0;
 		int mode = 0;
 		for (int i=0; i<256; i++) {
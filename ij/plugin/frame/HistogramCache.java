@@ -0,0 +1,301 @@
+package ij.plugin.frame;
+import ij.*;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.*;
+import java.awt.EventQueue;
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Caches the statistics (histograms) of the slices of images for the
+	ContrastAdjuster and the ThresholdAdjuster, so that they are not calculated
+	again when going back to a slice. ImageProcessors have no modification
+	count, and images are also updated when only the slice or the display
+	changes, so an entry is used only if a hash of all pixel values is
+	unchanged, which is much faster to calculate than the statistics.
+	The statistics of large images that are not in the cache are calculated
+	in a background thread; until they are ready, the statistics of a sample
+	of the pixels are returned as a preview.
+*/
+class HistogramCache implements Measurements {
+	/** Statistics as returned by ImagePlus.getRawStatistics */
+	static final int RAW = 0;
+	/** Statistics of the image converted to 8 bits with the display range */
+	static final int BYTE = 1;
+	/** Images (or selections) with fewer pixels are not calculated in the background */
+	static final int MIN_BACKGROUND_PIXELS = 2000000;
+	/** Approximate number of pixels of a preview */
+	private static final int PREVIEW_PIXELS = 100000;
+	private static final int MAX_ENTRIES = 64;
+	/** One thread, shared by all caches */
+	private static ExecutorService executor;
+	private Map<Key,ImageStatistics> entries = new LinkedHashMap<Key,ImageStatistics>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key,ImageStatistics> eldest) {
+			return size()>MAX_ENTRIES;
+		}
+	};
+	private Set<Key> pending = new HashSet<Key>();   // requested, not calculated yet
+	private Key previewKey;
+	private ImageStatistics previewStats;
+
+	/** Identifies a slice, its pixel values and what has been calculated */
+	private static class Key {
+		int imageID, slice, kind, length, roiHash;
+		long fingerprint;
+		double min, max;       // display range, for BYTE
+
+		boolean sameSlice(Key key) {
+			return imageID==key.imageID && slice==key.slice;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key key = (Key)obj;
+			return sameSlice(key) && kind==key.kind && length==key.length && roiHash==key.roiHash
+				&& fingerprint==key.fingerprint && min==key.min && max==key.max;
+		}
+
+		public int hashCode() {
+			return (int)(fingerprint^(fingerprint>>>32)) ^ 31*slice ^ 131*imageID ^ roiHash;
+		}
+	}
+
+	/** Returns the statistics ('kind' is RAW or BYTE) of 'ip', the processor of
+		the current slice of 'imp', within 'roi' (an area selection or null).
+		If they are not in the cache and 'done' is not null, the statistics of
+		large images are calculated in the background, after which 'done' is
+		run on the event dispatch thread, and a preview is returned. */
+	ImageStatistics get(ImagePlus imp, ImageProcessor ip, Roi roi, int kind, Runnable done) {
+		Key key = getKey(imp, ip, roi, kind);
+		synchronized(this) {
+			ImageStatistics stats = entries.get(key);
+			if (stats!=null)
+				return stats;
+		}
+		Rectangle r = getBounds(ip, roi);
+		int step = (int)Math.sqrt((double)r.width*r.height/PREVIEW_PIXELS);
+		if (done==null || (double)r.width*r.height<MIN_BACKGROUND_PIXELS || step<2) {
+			ImageStatistics stats = calculate(kind, getProcessor(ip.getPixels(), ip, roi, key));
+			put(key, stats);
+			return stats;
+		}
+		submit(key, ip.getPixels(), ip, roi!=null?(Roi)roi.clone():null, done);
+		synchronized(this) {
+			if (!key.equals(previewKey)) {
+				previewStats = calculate(kind, getSample(ip, roi, step));
+				previewKey = key;
+			}
+			return previewStats;
+		}
+	}
+
+	/** Removes the entries of the current slice of 'imp', so that its
+		statistics are calculated again. */
+	synchronized void remove(ImagePlus imp) {
+		int imageID = imp.getID();
+		int slice = imp.getCurrentSlice();
+		for (Iterator<Key> it=entries.keySet().iterator(); it.hasNext();) {
+			Key key = it.next();
+			if (key.imageID==imageID && key.slice==slice)
+				it.remove();
+		}
+		previewKey = null;
+	}
+
+	private synchronized void put(Key key, ImageStatistics stats) {
+		stats.histogram16 = null;        // not used; 256 kB for 16-bit images
+		entries.put(key, stats);
+	}
+
+	/** Calculates the statistics in the background, unless already requested.
+		Requests for other slices or images are dropped if not started yet. */
+	private void submit(final Key key, final Object pixels, final ImageProcessor ip, final Roi roi, final Runnable done) {
+		synchronized(this) {
+			for (Iterator<Key> it=pending.iterator(); it.hasNext();) {
+				if (!it.next().sameSlice(key))
+					it.remove();
+			}
+			if (!pending.add(key))
+				return;
+		}
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				synchronized(HistogramCache.this) {
+					if (!pending.contains(key))
+						return;              // superseded
+				}
+				ImageStatistics stats;
+				try {
+					stats = calculate(key.kind, getProcessor(pixels, ip, roi, key));
+				} catch (Throwable e) {
+					synchronized(HistogramCache.this) {
+						pending.remove(key);
+					}
+					if (e instanceof OutOfMemoryError)
+						IJ.outOfMemory("Histogram");
+					else
+						IJ.handleException(e);
+					return;
+				}
+				boolean wanted;
+				synchronized(HistogramCache.this) {
+					wanted = pending.remove(key);
+					put(key, stats);
+				}
+				if (wanted)
+					EventQueue.invokeLater(done);
+			}
+		});
+	}
+
+	private static ImageStatistics calculate(int kind, ImageProcessor ip) {
+		if (kind==BYTE) {
+			Rectangle r = ip.getRoi();
+			ImageProcessor mask = ip.getMask();
+			ip = ip.convertToByte(true);
+			ip.setRoi(r);
+			ip.setMask(mask);
+			return ip.getStats();
+		} else
+			return ImageStatistics.getStatistics(ip, AREA+MEAN+MODE+MIN_MAX, null);
+	}
+
+	/** Returns a processor with the pixels, display range and selection of
+		'ip', independent of later changes to 'ip' (other than the pixel values) */
+	private static ImageProcessor getProcessor(Object pixels, ImageProcessor ip, Roi roi, Key key) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		ImageProcessor ip2;
+		if (pixels instanceof byte[])
+			ip2 = new ByteProcessor(width, height, (byte[])pixels, null);
+		else if (pixels instanceof short[])
+			ip2 = new ShortProcessor(width, height, (short[])pixels, null);
+		else if (pixels instanceof float[])
+			ip2 = new FloatProcessor(width, height, (float[])pixels, null);
+		else
+			ip2 = ip.duplicate();
+		if (key.kind==BYTE)
+			ip2.setMinAndMax(key.min, key.max);
+		ip2.setRoi(roi);
+		return ip2;
+	}
+
+	/** Returns every 'step'th pixel of every 'step'th row of the bounds of
+		'roi', with the mask of 'roi' sampled in the same way */
+	private static ImageProcessor getSample(ImageProcessor ip, Roi roi, int step) {
+		Rectangle r = getBounds(ip, roi);
+		Rectangle roiBounds = roi!=null ? roi.getBounds() : r;
+		ImageProcessor mask = roi!=null ? roi.getMask() : null;
+		if (mask!=null && !roiBounds.contains(r))
+			mask = null;      // selection outside of the image
+		int width = (r.width+step-1)/step;
+		int height = (r.height+step-1)/step;
+		ImageProcessor ip2 = ip.createProcessor(width, height);
+		ImageProcessor mask2 = mask!=null ? new ByteProcessor(width, height) : null;
+		for (int y=0; y<height; y++) {
+			int ys = r.y + y*step;
+			for (int x=0; x<width; x++) {
+				int xs = r.x + x*step;
+				ip2.setf(x, y, ip.getf(xs, ys));
+				if (mask2!=null)
+					mask2.set(x, y, mask.get(xs-roiBounds.x, ys-roiBounds.y));
+			}
+		}
+		ip2.setMinAndMax(ip.getMin(), ip.getMax());
+		if (mask2!=null)
+			ip2.setMask(mask2);
+		return ip2;
+	}
+
+	private static Rectangle getBounds(ImageProcessor ip, Roi roi) {
+		Rectangle r = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+		if (roi!=null) {
+			r = r.intersection(roi.getBounds());
+			if (r.width<=0 || r.height<=0)
+				r = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());   // as ImageProcessor.setRoi
+		}
+		return r;
+	}
+
+	private static Key getKey(ImagePlus imp, ImageProcessor ip, Roi roi, int kind) {
+		Key key = new Key();
+		key.imageID = imp.getID();
+		key.slice = imp.getCurrentSlice();
+		key.kind = kind;
+		Object pixels = ip.getPixels();
+		key.fingerprint = fingerprint(pixels);
+		key.length = ip.getPixelCount();
+		if (roi!=null)
+			key.roiHash = 31*roi.getHashCode() + roi.getBounds().hashCode();
+		if (kind==BYTE) {
+			key.min = ip.getMin();
+			key.max = ip.getMax();
+		}
+		return key;
+	}
+
+	/** A hash of all pixel values. Four independent sums are calculated,
+		which is faster than one, since they do not wait for each other. */
+	private static long fingerprint(Object pixels) {
+		long h0=0, h1=0, h2=0, h3=0;
+		int i = 0;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (; i+3<p.length; i+=4) {
+				h0 = 31*h0 + p[i];
+				h1 = 31*h1 + p[i+1];
+				h2 = 31*h2 + p[i+2];
+				h3 = 31*h3 + p[i+3];
+			}
+			for (; i<p.length; i++)
+				h0 = 31*h0 + p[i];
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (; i+3<p.length; i+=4) {
+				h0 = 31*h0 + p[i];
+				h1 = 31*h1 + p[i+1];
+				h2 = 31*h2 + p[i+2];
+				h3 = 31*h3 + p[i+3];
+			}
+			for (; i<p.length; i++)
+				h0 = 31*h0 + p[i];
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (; i+3<p.length; i+=4) {
+				h0 = 31*h0 + Float.floatToRawIntBits(p[i]);
+				h1 = 31*h1 + Float.floatToRawIntBits(p[i+1]);
+				h2 = 31*h2 + Float.floatToRawIntBits(p[i+2]);
+				h3 = 31*h3 + Float.floatToRawIntBits(p[i+3]);
+			}
+			for (; i<p.length; i++)
+				h0 = 31*h0 + Float.floatToRawIntBits(p[i]);
+		} else if (pixels instanceof int[]) {
+			int[] p = (int[])pixels;
+			for (; i+3<p.length; i+=4) {
+				h0 = 31*h0 + p[i];
+				h1 = 31*h1 + p[i+1];
+				h2 = 31*h2 + p[i+2];
+				h3 = 31*h3 + p[i+3];
+			}
+			for (; i<p.length; i++)
+				h0 = 31*h0 + p[i];
+		}
+		return ((h0*1000003 + h1)*1000003 + h2)*1000003 + h3;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor==null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Histogram");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+}
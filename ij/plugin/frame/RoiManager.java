@@ -5,6 +5,8 @@ import java.io.*;
 import java.util.*;
 import java.awt.List;
 import java.util.zip.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.geom.*;
 
 import javax.swing.DefaultListModel;
@@ -1209,6 +1211,30 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		if (appendResults && mmResults!=null)
 			rtMulti = mmResults;
 		rtSys.reset();
+		// With area selections, the masks are created once and all
+		// selections are measured in parallel, with one pass per slice.
+		boolean batch = canMeasureInBatch(imp, rois);
+		Roi[] batchRois = null;
+		Rectangle[] bounds = null;
+		ImageProcessor[] masks = null;
+		ResultsTable rtBatch = null;
+		Analyzer aBatch = null;
+		if (batch) {
+			batchRois = new Roi[rois.length];
+			bounds = new Rectangle[rois.length];
+			masks = new ImageProcessor[rois.length];
+			ImageProcessor ip = (ImageProcessor)imp.getProcessor().clone();
+			for (int i=0; i<rois.length; i++) {
+				batchRois[i] = (Roi)rois[i].clone();
+				batchRois[i].setImage(imp);
+				ip.setRoi(rois[i]);
+				bounds[i] = ip.getRoi();
+				masks[i] = ip.getMask();
+			}
+			rtBatch = new ResultsTable();
+			aBatch = new Analyzer(imp, Analyzer.getMeasurements(), rtBatch);
+			imp.getCalibration().getCTable();  // create the table before it is shared between threads
+		}
 		int currentSlice = imp.getCurrentSlice();
 		for (int slice=1; slice<=nSlices; slice++) {
 			int sliceUse = slice;
@@ -1217,30 +1243,86 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			rtMulti.incrementCounter();
 			if ((Analyzer.getMeasurements()&Measurements.LABELS)!=0)
 				rtMulti.addLabel("Label", imp.getTitle());
+			ImageStatistics[] stats = batch?measureRois(imp, bounds, masks):null;
+			ResultsTable rt = batch?rtBatch:rtSys;
 			int roiIndex = 0;
 			for (int i=0; i<rois.length; i++) {
-				imp.setRoi(rois[i]);
+				Roi roi;
+				if (batch) {
+					roi = batchRois[i];
+					aBatch.saveResults(stats[i], roi);
+				} else {
+					imp.setRoi(rois[i]);
+					aSys.measure();
+					roi = imp.getRoi();
+				}
 				roiIndex++;
-				aSys.measure();
-				for (int j=0; j<=rtSys.getLastColumn(); j++){
-					float[] col = rtSys.getColumn(j);
-					String head = rtSys.getColumnHeading(j);
-					String suffix = ""+roiIndex;
-					Roi roi = imp.getRoi();
-					if (roi!=null) {
-						String name = roi.getName();
-						if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
-							suffix = "("+name+")";
-					}
+				String suffix = ""+roiIndex;
+				if (roi!=null) {
+					String name = roi.getName();
+					if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
+						suffix = "("+name+")";
+				}
+				for (int j=0; j<=rt.getLastColumn(); j++){
+					float[] col = rt.getColumn(j);
+					String head = rt.getColumnHeading(j);
 					if (head!=null && col!=null && !head.equals("Slice"))
-						rtMulti.addValue(head+suffix, rtSys.getValue(j,rtSys.getCounter()-1));
+						rtMulti.addValue(head+suffix, rt.getValue(j,rt.getCounter()-1));
 				}
 			}
+			if (batch)
+				rtBatch.reset();
 			if (nSlices>1) IJ.showProgress(slice,nSlices);
 		}
+		if (batch)
+			imp.setRoi(rois[rois.length-1]);
 		return rtMulti;
 	}
 
+	/** Returns 'true' if the selections can be measured by measureRois(). */
+	private static boolean canMeasureInBatch(ImagePlus imp, Roi[] rois) {
+		if (rois.length<2 || Analyzer.isRedirectImage() || imp.getBitDepth()==24)
+			return false;
+		Rectangle image = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+		for (int i=0; i<rois.length; i++) {
+			if (rois[i]==null || !rois[i].isArea())
+				return false;
+			Rectangle r = rois[i].getBounds();
+			if (r.width==0 || r.height==0 || !r.intersects(image))
+				return false;
+		}
+		return true;
+	}
+
+	/** Measures the current slice of 'imp' in the areas defined by 'bounds'
+		and 'masks', using several threads. */
+	private static ImageStatistics[] measureRois(ImagePlus imp, final Rectangle[] bounds, final ImageProcessor[] masks) {
+		final ImageProcessor ip = imp.getProcessor();
+		final int measurements = Analyzer.getMeasurements();
+		final Calibration cal = imp.getCalibration();
+		final ImageStatistics[] stats = new ImageStatistics[bounds.length];
+		final AtomicInteger next = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), bounds.length);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					ImageProcessor ip2 = (ImageProcessor)ip.clone();  // shares the pixels but has its own roi and mask
+					ip2.setHistogramSize(256);
+					ip2.setHistogramRange(0.0, 0.0);
+					for (int i=next.getAndIncrement(); i<bounds.length; i=next.getAndIncrement()) {
+						ip2.setMask(masks[i]);
+						ip2.setRoi(bounds[i]);
+						stats[i] = ImageStatistics.getStatistics(ip2, measurements, cal);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		return stats;
+	}
+
 	int getColumnCount(ImagePlus imp, int measurements) {
 		ImageStatistics stats = imp.getStatistics(measurements);
 		ResultsTable rt = new ResultsTable();
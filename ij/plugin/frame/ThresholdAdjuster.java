@@ -430,7 +430,8 @@ public class ThresholdAdjuster extends PlugInDialog implements PlugIn, Measureme
 				if (maxThreshold==max1)
 					maxThreshold = ip.getMax();
 			}
-			ImageStatistics stats = plot.setHistogram(imp, entireStack(imp));
+			Runnable done = enableAutoThreshold && !isThreshold ? null : histogramCalculated;
+			ImageStatistics stats = plot.setHistogram(imp, entireStack(imp), done);
 			if (stats == null)
 				return null;
 			if (isThreshold) {
@@ -458,6 +459,21 @@ public class ThresholdAdjuster extends PlugInDialog implements PlugIn, Measureme
 	 	return ip;
 	}
 
+	/** Updates the histogram and the percentiles when the statistics of
+		the current slice have been calculated in the background. */
+	private Runnable histogramCalculated = new Runnable() {
+		public void run() {
+			ImagePlus imp = WindowManager.getCurrentImage();
+			if (imp==null || imp.getID()!=previousImageID || imp.getCurrentSlice()!=previousSlice)
+				return;
+			ImageProcessor ip = imp.getProcessor();
+			if (plot.setHistogram(imp, entireStack(imp), this)==null)
+				return;
+			updatePercentiles(imp, ip);
+			updatePlot(ip);
+		}
+	};
+
 	private void resetMinAndMax(ImageProcessor ip) {
 		if (ip.getBitDepth()!=8 && (!noReset || mode==OVER_UNDER)) {
 			ImageStatistics stats = ip.getStats();
@@ -694,7 +710,7 @@ public class ThresholdAdjuster extends PlugInDialog implements PlugIn, Measureme
 		ip.resetThreshold();
 		if (!noReset)
 			resetMinAndMax(ip);
-		ImageStatistics stats = plot.setHistogram(imp, entireStack(imp));
+		ImageStatistics stats = plot.setHistogram(imp, entireStack(imp), histogramCalculated);
 		if (ip.getBitDepth()!=8 && entireStack(imp))
 			ip.setMinAndMax(stats.min, stats.max);
 		updateScrollBars();
@@ -1039,6 +1055,7 @@ class ThresholdPlot extends Canvas implements Measurements, MouseListener {
 	int imageID2;           // ImageID of previous call
 	boolean entireStack2;   // 'entireStack' of previous call
 	double mean2;
+	HistogramCache histograms = new HistogramCache();
 
 	public ThresholdPlot() {
 		addMouseListener(this);
@@ -1051,7 +1068,10 @@ class ThresholdPlot extends Canvas implements Measurements, MouseListener {
         return new Dimension(width+2, height+2);
     }
 
-	ImageStatistics setHistogram(ImagePlus imp, boolean entireStack) {
+	/** Calculates the histogram of the image or stack. If 'done' is not null,
+		the histogram of a large slice may be a preview; 'done' is run when the
+		exact histogram has been calculated (see HistogramCache). */
+	ImageStatistics setHistogram(ImagePlus imp, boolean entireStack, Runnable done) {
 		if (IJ.debugMode) IJ.log("ThresholdAdjuster:setHistogram: "+entireStack+" "+entireStack2);
 		double mean = entireStack?imp.getProcessor().getStats().mean:0.0;
 		if (entireStack && stats!=null && imp.getID()==imageID2
@@ -1091,14 +1111,11 @@ class ThresholdPlot extends Canvas implements Measurements, MouseListener {
 				int digits = cal.calibrated() && !cal.isSigned16Bit() ? 2 : 0;
 				IJ.showStatus("min="+IJ.d2s(cal.getCValue(ip.getMin()), digits)+", max="+IJ.d2s(cal.getCValue(ip.getMax()), digits));
 			}
-			ip = ip.convertToByte(true);
-			ip.setColorModel(ip.getDefaultColorModel());
 		}
 		Roi roi = imp.getRoi();
 		if (roi!=null && !roi.isArea()) roi = null;
-		ip.setRoi(roi);
-		if (stats==null)
-			stats = ip.getStats();
+		if (stats==null)   // of the image converted to 8 bits
+			stats = histograms.get(imp, ip, roi, HistogramCache.BYTE, done);
 		if (IJ.debugMode) IJ.log("  stats: "+stats);
 		int maxCount2 = 0;  // number of pixels in 2nd-highest bin, used for y scale if mode is too high
 		histogram = stats.histogram;
@@ -0,0 +1,295 @@
+package ij.process;
+import ij.IJ;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates the RGB image of a CompositeImage in composite mode from its
+	channels, with the same result as ImageProcessor.updateComposite: the
+	colors of the active channels are added, with saturation at 255.
+	<p>
+	For 16 and 32-bit channels, the 8-bit LUT indices are kept; they are
+	calculated again only if the pixels array or the display range of the
+	channel has changed, or after invalidate. The image is divided into bands
+	of rows, which are distributed among threads; each band is converted and
+	composited in one go, while its data are in the cache.
+	The composite can also be created for the visible part of the image only,
+	with one pixel per screen pixel.
+*/
+public class ChannelCompositor {
+	/** Minimum number of output pixels per thread */
+	private static final int MIN_PIXELS_PER_THREAD = 100000;
+	/** Approximate number of pixels of a band of rows */
+	private static final int BAND_PIXELS = 32768;
+	private byte[][] indices;        // cached 8-bit LUT indices of 16 and 32-bit channels
+	private Object[] indexedPixels;  // the pixels arrays that the indices were calculated from
+	private double[] indexedMin, indexedMax;
+	private int nThreads = Prefs.getThreads();
+
+	/** Sets the number of threads; the default is Prefs.getThreads(). */
+	public void setNThreads(int nThreads) {
+		this.nThreads = Math.max(nThreads, 1);
+	}
+
+	/** Discards the 8-bit LUT indices of all channels. Call this after the
+		pixel values have been modified (in place). */
+	public synchronized void invalidate() {
+		if (indexedPixels!=null)
+			Arrays.fill(indexedPixels, null);
+	}
+
+	/** Discards the 8-bit LUT indices of one channel (0-based). */
+	public synchronized void invalidate(int channel) {
+		if (indexedPixels!=null && channel>=0 && channel<indexedPixels.length)
+			indexedPixels[channel] = null;
+	}
+
+	/** One channel prepared for compositing */
+	private static class Channel {
+		int channel;         // index in the array of channels
+		int[] colors;        // RGB value for each LUT index
+		Object pixels;       // pixels to convert to LUT indices, if 'convert'
+		byte[] indices;      // LUT indices; the pixels of 8-bit channels
+		boolean convert;
+		int min;             // display range, 16-bit
+		double fMin;         // display range, 32-bit
+		double scale;
+	}
+
+	/** Creates the composite of the active channels in 'rgbPixels', which
+		must have the size of the channels. 'active' may be shorter than
+		'channels'; channels beyond its length are inactive. */
+	public void composite(ImageProcessor[] channels, boolean[] active, final int[] rgbPixels) {
+		final int width = channels[0].getWidth();
+		final int height = channels[0].getHeight();
+		final Channel[] cs = prepare(channels, active, width*height, true);
+		final int bandHeight = Math.max(1, BAND_PIXELS/width);
+		final int nBands = (height+bandHeight-1)/bandHeight;
+		final AtomicInteger nextBand = new AtomicInteger(0);
+		final AtomicInteger bandsDone = new AtomicInteger(0);
+		Callable[] callables = new Callable[getNThreads(width*height, nBands)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int b=nextBand.getAndIncrement(); b<nBands; b=nextBand.getAndIncrement()) {
+						int from = b*bandHeight*width;
+						int to = Math.min((b+1)*bandHeight, height)*width;
+						for (int c=0; c<cs.length; c++)
+							if (cs[c].convert)
+								convert(cs[c], cs[c].pixels, from, cs[c].indices, from, to-from);
+						combine(cs, rgbPixels, from, from, to-from);
+						bandsDone.incrementAndGet();
+					}
+					return null;
+				}
+			};
+		}
+		run(callables);
+		synchronized(this) {
+			if (bandsDone.get()<nBands) {   // exception in a thread (ThreadUtil only logs it)
+				invalidate();
+				return;
+			}
+			for (int i=0; i<cs.length; i++) {
+				int c = cs[i].channel;
+				if (cs[i].convert && c<indexedPixels.length) {
+					indexedPixels[c] = cs[i].pixels;
+					indexedMin[c] = channels[c].getMin();
+					indexedMax[c] = channels[c].getMax();
+				}
+			}
+		}
+	}
+
+	/** Creates the composite of the area 'srcRect' of the active channels,
+		sampled with 'dstWidth' x 'dstHeight' pixels (nearest neighbor),
+		in 'rgbPixels', which must have at least dstWidth*dstHeight elements.
+		Only the sampled pixels are converted; the cached LUT indices are used
+		where they are up to date, but not updated. */
+	public void composite(ImageProcessor[] channels, boolean[] active, Rectangle srcRect,
+			final int[] rgbPixels, final int dstWidth, final int dstHeight) {
+		final int width = channels[0].getWidth();
+		final Channel[] cs = prepare(channels, active, width*channels[0].getHeight(), false);
+		final int[] xOffsets = ImageProcessor.getSampleOffsets(srcRect.x, srcRect.width, dstWidth);
+		final int[] yOffsets = ImageProcessor.getSampleOffsets(srcRect.y, srcRect.height, dstHeight);
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[getNThreads(dstWidth*dstHeight, dstHeight)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					Channel[] rowChannels = new Channel[cs.length];
+					for (int c=0; c<cs.length; c++) {
+						rowChannels[c] = new Channel();
+						rowChannels[c].colors = cs[c].colors;
+						rowChannels[c].indices = new byte[dstWidth];
+					}
+					Object[] rowPixels = new Object[cs.length];
+					for (int y=nextRow.getAndIncrement(); y<dstHeight; y=nextRow.getAndIncrement()) {
+						int offset = yOffsets[y]*width;
+						for (int c=0; c<cs.length; c++) {
+							Channel ch = cs[c];
+							byte[] rowIndices = rowChannels[c].indices;
+							if (ch.convert) {
+								if (ch.pixels instanceof short[]) {
+									short[] pixels = (short[])ch.pixels;
+									if (rowPixels[c]==null) rowPixels[c] = new short[dstWidth];
+									short[] row = (short[])rowPixels[c];
+									for (int x=0; x<dstWidth; x++)
+										row[x] = pixels[offset+xOffsets[x]];
+								} else {
+									float[] pixels = (float[])ch.pixels;
+									if (rowPixels[c]==null) rowPixels[c] = new float[dstWidth];
+									float[] row = (float[])rowPixels[c];
+									for (int x=0; x<dstWidth; x++)
+										row[x] = pixels[offset+xOffsets[x]];
+								}
+								convert(ch, rowPixels[c], 0, rowIndices, 0, dstWidth);
+							} else {
+								byte[] src = ch.indices;
+								for (int x=0; x<dstWidth; x++)
+									rowIndices[x] = src[offset+xOffsets[x]];
+							}
+						}
+						combine(rowChannels, rgbPixels, 0, y*dstWidth, dstWidth);
+					}
+					return null;
+				}
+			};
+		}
+		run(callables);
+	}
+
+	/** Returns the active channels with their colors and LUT indices or the pixels
+		to convert. With 'cache', the LUT indices are converted into the cache. */
+	private synchronized Channel[] prepare(ImageProcessor[] channels, boolean[] active, int size, boolean cache) {
+		int n = channels.length;
+		if (indexedPixels==null || indexedPixels.length!=n) {
+			indices = new byte[n][];
+			indexedPixels = new Object[n];
+			indexedMin = new double[n];
+			indexedMax = new double[n];
+		}
+		int nActive = 0;
+		Channel[] cs = new Channel[n];
+		for (int c=0; c<n && c<active.length; c++) {
+			ImageProcessor ip = channels[c];
+			if (!active[c] || ip==null)
+				continue;
+			Channel ch = new Channel();
+			ch.channel = c;
+			ch.colors = getColors(ip);
+			Object pixels = ip.getPixels();
+			if (pixels instanceof byte[])
+				ch.indices = (byte[])pixels;
+			else if (pixels instanceof short[] || pixels instanceof float[]) {
+				ch.pixels = pixels;
+				ch.convert = pixels!=indexedPixels[c] || ip.getMin()!=indexedMin[c] || ip.getMax()!=indexedMax[c]
+					|| indices[c]==null || indices[c].length!=size;
+				if (ch.convert && cache) {
+					indexedPixels[c] = null;
+					if (indices[c]==null || indices[c].length!=size)
+						indices[c] = new byte[size];
+				}
+				ch.indices = indices[c];
+				ch.min = (int)ip.getMin();
+				ch.fMin = ip.getMin();
+				if (pixels instanceof short[])
+					ch.scale = 256.0/((int)ip.getMax()-ch.min+1);
+				else
+					ch.scale = 255.0/(ip.getMax()-ip.getMin());
+			} else {                       // other types: not cached
+				ch.indices = ip.create8BitImage();
+				if (ch.indices==null)
+					continue;
+			}
+			cs[nActive++] = ch;
+		}
+		Channel[] cs2 = new Channel[nActive];
+		System.arraycopy(cs, 0, cs2, 0, nActive);
+		return cs2;
+	}
+
+	/** The RGB values of the LUT of 'ip', with a length of 256 */
+	private static int[] getColors(ImageProcessor ip) {
+		if (ip.cm==null)
+			ip.makeDefaultColorModel();
+		IndexColorModel icm = (IndexColorModel)ip.cm;
+		int mapSize = Math.min(icm.getMapSize(), 256);
+		int[] colors = new int[256];
+		for (int i=0; i<mapSize; i++)
+			colors[i] = icm.getRGB(i)&0xffffff;
+		return colors;
+	}
+
+	/** Converts 'length' pixels to 8-bit LUT indices, like the create8BitImage
+		methods of ShortProcessor and FloatProcessor */
+	private static void convert(Channel ch, Object pixels, int offset, byte[] indices, int indexOffset, int length) {
+		if (pixels instanceof short[]) {
+			short[] sPixels = (short[])pixels;
+			int min = ch.min;
+			double scale = ch.scale;
+			for (int i=0; i<length; i++) {
+				int value = (sPixels[offset+i]&0xffff)-min;
+				if (value<0) value = 0;
+				value = (int)(value*scale+0.5);
+				if (value>255) value = 255;
+				indices[indexOffset+i] = (byte)value;
+			}
+		} else {
+			float[] fPixels = (float[])pixels;
+			double min = ch.fMin;
+			double scale = ch.scale;
+			for (int i=0; i<length; i++) {
+				double value = fPixels[offset+i]-min;
+				if (value<0.0) value = 0.0;
+				int ivalue = (int)(value*scale+0.5);
+				if (ivalue>255) ivalue = 255;
+				indices[indexOffset+i] = (byte)ivalue;
+			}
+		}
+	}
+
+	/** Writes the sum of the colors of all channels to 'length' pixels of 'rgbPixels' */
+	private static void combine(Channel[] cs, int[] rgbPixels, int indexOffset, int rgbOffset, int length) {
+		if (cs.length==0) {
+			Arrays.fill(rgbPixels, rgbOffset, rgbOffset+length, 0);
+			return;
+		}
+		int[] colors = cs[0].colors;
+		byte[] indices = cs[0].indices;
+		for (int i=0; i<length; i++)
+			rgbPixels[rgbOffset+i] = colors[indices[indexOffset+i]&0xff];
+		for (int c=1; c<cs.length; c++) {
+			colors = cs[c].colors;
+			indices = cs[c].indices;
+			for (int i=0; i<length; i++) {
+				int pixel = rgbPixels[rgbOffset+i];
+				int color = colors[indices[indexOffset+i]&0xff];
+				int red = (pixel&0xff0000) + (color&0xff0000);
+				int green = (pixel&0xff00) + (color&0xff00);
+				int blue = (pixel&0xff) + (color&0xff);
+				if (red>0xff0000) red = 0xff0000;
+				if (green>0xff00) green = 0xff00;
+				if (blue>0xff) blue = 0xff;
+				rgbPixels[rgbOffset+i] = red | green | blue;
+			}
+		}
+	}
+
+	private int getNThreads(int nPixels, int nTasks) {
+		int n = Math.min(nThreads, nPixels/MIN_PIXELS_PER_THREAD);
+		return Math.max(1, Math.min(n, nTasks));
+	}
+
+	private static void run(Callable[] callables) {
+		if (callables.length==1)
+			try {callables[0].call();} catch (Exception e) {IJ.handleException(e);}
+		else
+			ThreadUtil.startAndJoin(callables);
+	}
+
+}
@@ -0,0 +1,374 @@
+package ij.process;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+
+/** This class labels the connected components (particles) of the pixels
+	of an image that are within a threshold range. It uses the two-pass
+	union-find algorithm: the first pass assigns provisional labels and
+	records which of them touch, the second pass writes the final labels
+	to a 16-bit (up to 65535 particles) or 32-bit label image and, in the
+	same sweep, accumulates the area, bounds, centroid and intensity
+	moments of each particle.
+	Particles are numbered, starting at 1, in the order in which they
+	are found by a row-by-row scan, which is the order used by the
+	particle analyzer. Background pixels are set to zero.
+	<pre>
+	ConnectedComponents cc = new ConnectedComponents(8);
+	ImageProcessor labels = cc.label(ip, 128, 255);
+	for (int i=1; i<=cc.getCount(); i++)
+	    IJ.log(i+": "+cc.getArea(i)+" "+cc.getMean(i));
+	</pre>
+	The intensity statistics are the same as those calculated by the
+	ImageStatistics subclasses for the particle's mask, without
+	density calibration.
+*/
+public class ConnectedComponents {
+	private int connectivity;
+	private ImageProcessor intensityIP;
+	private ImageProcessor labels;
+	private int[] intLabels;     // the labels, if there are more than 65535 particles
+	private int count;
+	private int width, height;
+	private int[] parent;
+	private int nLabels;
+
+	// per-particle statistics, indexed by label
+	private int[] area, xstart, ystart;
+	private int[] xmin, ymin, xmax, ymax;
+	private double[] xsum, ysum;
+	private double[] sum, sum2, sum3, sum4, wsum, xwsum, ywsum;
+	private double[] min, max;
+
+	/** Creates a ConnectedComponents object, where 'connectivity'
+		is 4 (edge neighbors) or 8 (edge and corner neighbors). */
+	public ConnectedComponents(int connectivity) {
+		if (connectivity!=4 && connectivity!=8)
+			throw new IllegalArgumentException("Connectivity must be 4 or 8");
+		this.connectivity = connectivity;
+	}
+
+	/** Sets the 8, 16 or 32-bit image used for the intensity statistics.
+		It must have the same size as the image passed to label().
+		By default, the labeled image is used. */
+	public void setIntensityImage(ImageProcessor ip) {
+		intensityIP = ip;
+	}
+
+	/** Labels the particles of 'ip' with pixel values in the range
+		'lower'-'upper' and returns the label image. Only the pixels
+		inside the ROI and mask of 'ip' are considered. 'ip' may be
+		an 8, 16 or 32-bit image. The label image is a ShortProcessor
+		if there are up to 65535 particles, otherwise a FloatProcessor.
+		Float values are exact only up to 16777216 (2^24), so labels above
+		that are rounded in a FloatProcessor; getMask and the statistics
+		use the exact labels.
+	*/
+	public ImageProcessor label(ImageProcessor ip, double lower, double upper) {
+		if (ip instanceof ColorProcessor)
+			throw new IllegalArgumentException("RGB images are not supported");
+		width = ip.getWidth();
+		height = ip.getHeight();
+		ImageProcessor vip = intensityIP!=null?intensityIP:ip;
+		if (vip instanceof ColorProcessor)
+			throw new IllegalArgumentException("RGB images are not supported");
+		if (vip.getWidth()!=width || vip.getHeight()!=height)
+			throw new IllegalArgumentException("Intensity image size does not match");
+		Rectangle r = ip.getRoi();
+		byte[] mask = ip.getMaskArray();
+		int[] provisional = firstPass(ip, r, mask, lower, upper);
+		int[] finalLabels = resolveLabels();
+		allocate(count);
+		secondPass(r, provisional, finalLabels, vip);
+		parent = null;
+		return labels;
+	}
+
+	/** Assigns provisional labels to the pixels in 'r' and records the
+		labels that touch in the 'parent' array. */
+	private int[] firstPass(ImageProcessor ip, Rectangle r, byte[] mask, double lower, double upper) {
+		int rw=r.width, rh=r.height;
+		int[] lab = new int[rw*rh];
+		parent = new int[Math.max(rw*rh/4, 16)];
+		nLabels = 0;
+		boolean eight = connectivity==8;
+		byte[] bytes = null;
+		short[] shorts = null;
+		float[] floats = null;
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[])
+			bytes = (byte[])pixels;
+		else if (pixels instanceof short[])
+			shorts = (short[])pixels;
+		else
+			floats = (float[])pixels;
+		for (int y=0; y<rh; y++) {
+			int i = (r.y+y)*width + r.x;
+			int li = y*rw;
+			for (int x=0; x<rw; x++, i++, li++) {
+				if (mask!=null && mask[li]==0)
+					continue;
+				double v = bytes!=null?bytes[i]&255:(shorts!=null?shorts[i]&0xffff:floats[i]);
+				if (!(v>=lower && v<=upper))
+					continue;
+				int l = x>0?lab[li-1]:0;
+				if (y>0) {
+					int n = lab[li-rw];
+					if (n!=0)
+						l = merge(l, n);
+					else if (eight) {
+						// corner neighbors are connected through the north pixel if it is set
+						if (x>0) l = merge(l, lab[li-rw-1]);
+						if (x<rw-1) l = merge(l, lab[li-rw+1]);
+					}
+				}
+				if (l==0) {
+					if (nLabels+1==parent.length) {
+						int[] tmp = new int[parent.length*2];
+						System.arraycopy(parent, 0, tmp, 0, parent.length);
+						parent = tmp;
+					}
+					l = ++nLabels;
+					parent[l] = l;
+				}
+				lab[li] = l;
+			}
+		}
+		return lab;
+	}
+
+	/** Joins the sets containing 'a' and 'b', either of which may be
+		zero (background), and returns the root of the joined set. The
+		root is always the smaller label, i.e., the first one found. */
+	private int merge(int a, int b) {
+		if (b==0) return a;
+		if (a==0) return find(b);
+		int ra = find(a);
+		int rb = find(b);
+		if (ra<rb)
+			{parent[rb] = ra; return ra;}
+		else
+			{parent[ra] = rb; return rb;}
+	}
+
+	private int find(int a) {
+		while (parent[a]!=a) {
+			parent[a] = parent[parent[a]];
+			a = parent[a];
+		}
+		return a;
+	}
+
+	/** Maps the provisional labels to consecutive particle numbers. Since
+		parent[l]<=l, the final label of the parent is always known. */
+	private int[] resolveLabels() {
+		int[] finalLabels = new int[nLabels+1];
+		count = 0;
+		for (int l=1; l<=nLabels; l++) {
+			int p = parent[l];
+			finalLabels[l] = p==l?++count:finalLabels[p];
+		}
+		return finalLabels;
+	}
+
+	private void allocate(int n) {
+		n++;
+		area = new int[n]; xstart = new int[n]; ystart = new int[n];
+		xmin = new int[n]; ymin = new int[n]; xmax = new int[n]; ymax = new int[n];
+		xsum = new double[n]; ysum = new double[n];
+		sum = new double[n]; sum2 = new double[n]; sum3 = new double[n]; sum4 = new double[n];
+		wsum = new double[n]; xwsum = new double[n]; ywsum = new double[n];
+		min = new double[n]; max = new double[n];
+	}
+
+	/** Writes the label image and accumulates the statistics, visiting
+		the pixels of each particle in the same order as ImageStatistics. */
+	private void secondPass(Rectangle r, int[] lab, int[] finalLabels, ImageProcessor vip) {
+		short[] slabels = null;
+		intLabels = null;
+		if (count<=65535) {
+			labels = new ShortProcessor(width, height);
+			slabels = (short[])labels.getPixels();
+		} else
+			intLabels = new int[width*height];
+		byte[] bytes = null;
+		short[] shorts = null;
+		float[] floats = null;
+		Object pixels = vip.getPixels();
+		if (pixels instanceof byte[])
+			bytes = (byte[])pixels;
+		else if (pixels instanceof short[])
+			shorts = (short[])pixels;
+		else
+			floats = (float[])pixels;
+		// ByteStatistics and FloatStatistics add Double.MIN_VALUE to the weights of the center of mass
+		double offset = shorts!=null?0.0:Double.MIN_VALUE;
+		int rw=r.width, rh=r.height;
+		for (int y=0; y<rh; y++) {
+			int yy = r.y+y;
+			int i = yy*width + r.x;
+			int li = y*rw;
+			for (int x=0; x<rw; x++, i++, li++) {
+				int l = lab[li];
+				if (l==0)
+					continue;
+				l = finalLabels[l];
+				int xx = r.x+x;
+				if (slabels!=null)
+					slabels[i] = (short)l;
+				else
+					intLabels[i] = l;
+				double v = bytes!=null?bytes[i]&255:(shorts!=null?shorts[i]&0xffff:floats[i]);
+				if (area[l]==0) {
+					xstart[l]=xx; ystart[l]=yy;
+					xmin[l]=xmax[l]=xx; ymin[l]=ymax[l]=yy;
+					min[l]=max[l]=v;
+				} else {
+					if (xx<xmin[l]) xmin[l]=xx;
+					if (xx>xmax[l]) xmax[l]=xx;
+					ymax[l] = yy;
+					if (v<min[l]) min[l]=v;
+					if (v>max[l]) max[l]=v;
+				}
+				area[l]++;
+				xsum[l] += xx;
+				ysum[l] += yy;
+				double v2 = v*v;
+				sum[l] += v;
+				sum2[l] += v2;
+				double w = v + offset;
+				double w2 = w*w;
+				wsum[l] += w;
+				sum3[l] += w*w2;
+				sum4[l] += w2*w2;
+				xwsum[l] += xx*w;
+				ywsum[l] += yy*w;
+			}
+		}
+		if (intLabels!=null) {
+			float[] flabels = new float[width*height];
+			for (int i=0; i<flabels.length; i++)
+				flabels[i] = intLabels[i];
+			labels = new FloatProcessor(width, height, flabels, null);
+		}
+	}
+
+	/** Returns the label image created by the last call to label().
+		Labels above 16777216 are not exact in a 32-bit label image. */
+	public ImageProcessor getLabelImage() {
+		return labels;
+	}
+
+	/** Returns the number of particles. */
+	public int getCount() {
+		return count;
+	}
+
+	/** Returns the number of pixels of the specified particle. */
+	public int getArea(int label) {
+		return area[label];
+	}
+
+	/** Returns the bounding rectangle of the specified particle. */
+	public Rectangle getBounds(int label) {
+		return new Rectangle(xmin[label], ymin[label], xmax[label]-xmin[label]+1, ymax[label]-ymin[label]+1);
+	}
+
+	/** Returns the x-coordinate of the first pixel of the specified particle. */
+	public int getXStart(int label) {
+		return xstart[label];
+	}
+
+	/** Returns the y-coordinate of the first pixel of the specified particle. */
+	public int getYStart(int label) {
+		return ystart[label];
+	}
+
+	/** Returns the uncalibrated centroid (x,y) of the specified particle. */
+	public double[] getCentroid(int label) {
+		return new double[] {xsum[label]/area[label]+0.5, ysum[label]/area[label]+0.5};
+	}
+
+	/** Returns the mean intensity of the specified particle. */
+	public double getMean(int label) {
+		return sum[label]/area[label];
+	}
+
+	/** Returns the minimum intensity of the specified particle. */
+	public double getMin(int label) {
+		return min[label];
+	}
+
+	/** Returns the maximum intensity of the specified particle. */
+	public double getMax(int label) {
+		return max[label];
+	}
+
+	/** Returns a mask of the specified particle, with the size
+		of its bounding rectangle, or null if it is a rectangle. */
+	public ImageProcessor getMask(int label) {
+		Rectangle b = getBounds(label);
+		if (area[label]==b.width*b.height)
+			return null;
+		ByteProcessor mask = new ByteProcessor(b.width, b.height);
+		byte[] mpixels = (byte[])mask.getPixels();
+		short[] slabels = intLabels==null?(short[])labels.getPixels():null;
+		for (int y=0; y<b.height; y++) {
+			int i = (b.y+y)*width + b.x;
+			for (int x=0; x<b.width; x++, i++) {
+				int l = slabels!=null?slabels[i]&0xffff:intLabels[i];
+				if (l==label)
+					mpixels[y*b.width+x] = (byte)255;
+			}
+		}
+		return mask;
+	}
+
+	/** Returns the area, mean, standard deviation, min and max, centroid,
+		center of mass, bounding rectangle, skewness and kurtosis of the
+		specified particle. The spatial values are calibrated using 'cal',
+		which may be null. The histogram, mode, median and ellipse fields
+		are not set. */
+	public ImageStatistics getStatistics(int label, Calibration cal) {
+		ImageStatistics stats = new ImageStatistics();
+		Rectangle b = getBounds(label);
+		stats.width = width;
+		stats.height = height;
+		stats.cal = cal;
+		stats.rx=b.x; stats.ry=b.y; stats.rw=b.width; stats.rh=b.height;
+		stats.pw = cal!=null?cal.pixelWidth:1.0;
+		stats.ph = cal!=null?cal.pixelHeight:1.0;
+		stats.roiX = cal!=null?cal.getX(b.x):b.x;
+		stats.roiY = cal!=null?cal.getY(b.y, height):b.y;
+		stats.roiWidth = b.width*stats.pw;
+		stats.roiHeight = b.height*stats.ph;
+		int n = area[label];
+		stats.pixelCount = n;
+		stats.longPixelCount = n;
+		stats.area = n*stats.pw*stats.ph;
+		stats.mean = sum[label]/n;
+		stats.umean = stats.mean;
+		stats.calculateStdDev(n, sum[label], sum2[label]);
+		stats.min = min[label];
+		stats.max = max[label];
+		stats.xstart = xstart[label];
+		stats.ystart = ystart[label];
+		stats.xCentroid = xsum[label]/n+0.5;
+		stats.yCentroid = ysum[label]/n+0.5;
+		double mean = stats.mean;
+		double mean2 = mean*mean;
+		double variance = sum2[label]/n - mean2;
+		double sDeviation = Math.sqrt(variance);
+		stats.skewness = ((sum3[label] - 3.0*mean*sum2[label])/n + 2.0*mean*mean2)/(variance*sDeviation);
+		stats.kurtosis = (((sum4[label] - 4.0*mean*sum3[label] + 6.0*mean2*sum2[label])/n - 3.0*mean2*mean2)/(variance*variance)-3.0);
+		stats.xCenterOfMass = xwsum[label]/wsum[label]+0.5;
+		stats.yCenterOfMass = ywsum[label]/wsum[label]+0.5;
+		if (cal!=null) {
+			stats.xCentroid = cal.getX(stats.xCentroid);
+			stats.yCentroid = cal.getY(stats.yCentroid, height);
+			stats.xCenterOfMass = cal.getX(stats.xCenterOfMass);
+			stats.yCenterOfMass = cal.getY(stats.yCenterOfMass, height);
+		}
+		return stats;
+	}
+
+}
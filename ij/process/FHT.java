@@ -2,7 +2,12 @@ package ij.process;
 import ij.*;
 import ij.plugin.FFT;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.image.ColorModel; 
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 This class contains a Java implementation of the Fast Hartley
@@ -11,6 +16,9 @@ by Arlo Reeves (http://imagej.nih.gov/ij/docs/ImageFFT/).
 The Fast Hartley Transform was restricted by U.S. Patent No. 4,646,256, 
 but was placed in the public domain by Stanford University in 1995 
 and is now freely available.
+Sizes that are not a power of 2 are transformed with a mixed-radix
+algorithm, which is fast for sizes with prime factors 2, 3, 5 and 7
+(see getFastSize).
 */
 public class FHT extends FloatProcessor {
 	private boolean isFrequencyDomain;
@@ -20,6 +28,18 @@ public class FHT extends FloatProcessor {
 	private int[] bitrev;
 	private float[] tempArr;
 	private boolean showProgress;
+	private MixedRadix mixedRadix;   // for sizes that are not a power of 2
+	private int nThreads = Prefs.getThreads();
+	// Tables for the most recently used sizes, shared by all FHT instances
+	private static final int MAX_CACHED_PLANS = 8;
+	private static final Map<Integer,Plan> plans = new LinkedHashMap<Integer,Plan>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer,Plan> eldest) {
+			return size()>MAX_CACHED_PLANS;
+		}
+	};
+	// Unused buffers, see getBuffer and releaseBuffer
+	private static final int MAX_POOLED_BUFFERS = 16;
+	private static final List<SoftReference<float[]>> bufferPool = new ArrayList<SoftReference<float[]>>();
 
 	
 	/** Used by the FFT class. */
@@ -54,6 +74,13 @@ public class FHT extends FloatProcessor {
 		super(8,8); //create dummy FloatProcessor
 	}
 
+	/** Creates a FHT with the given pixels (not duplicated) */
+	private FHT(float[] pixels, int maxN, boolean isFrequencyDomain) {
+		super(maxN, maxN, pixels, null);
+		this.maxN = maxN;
+		this.isFrequencyDomain = isFrequencyDomain;
+	}
+
 	/** Returns true of this FHT contains a square image with a width that is a power of two. */
 	public boolean powerOf2Size() {
 		int i=2;
@@ -61,14 +88,21 @@ public class FHT extends FloatProcessor {
 		return i==width && width==height;
 	}
 
+	/** Returns true if this FHT contains a square image with an even width
+		that has no prime factors other than 2, 3, 5 and 7. */
+	public boolean fastSize() {
+		return width==height && isFastSize(width);
+	}
+
 	/** Performs a forward transform, converting this image into the frequency domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		The image contained in this FHT must be square; the transform is fastest if
+		its width is a power of 2 or another size returned by getFastSize. */
 	public void transform() {
 		transform(false);
 	}
 
 	/** Performs an inverse transform, converting this image into the space domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		The image contained in this FHT must be square. */
 	public void inverseTransform() {
 		transform(true);
 	}
@@ -168,44 +202,68 @@ public class FHT extends FloatProcessor {
 	 *  but you have to divide by maxN instead of 2*maxN.
 	 */
 	public void transform1D(float[] x) {
-		int n = x.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
-		}
-		dfht3(x, 0, false, n);
+		transform1D(x, false);
 	}
 
     /** Performs an inverse 1D Fast Hartley Transform (FHT) of an array */
 	public void inverseTransform1D(float[] fht) {
-		int n = fht.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
+		transform1D(fht, true);
+	}
+
+	private void transform1D(float[] x, boolean inverse) {
+		int n = x.length;
+		if (!hasTables(n))
 			initializeTables(n);
-		}
-		dfht3(fht, 0, true, n);
+		if (mixedRadix==null)
+			dfht3(x, 0, inverse, n);
+		else
+			mixedRadix.dht(x, 0, -1, inverse, new double[4*n]);
 	}
 
 	void transform(boolean inverse) {
-		if (!powerOf2Size())
-			throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
+		if (width!=height || width<2)
+			throw new  IllegalArgumentException("Image not square: "+width+"x"+height);
 		setShowProgress(true);
 		maxN = width;
-		if (S==null)
+		if (!hasTables(maxN))
 			initializeTables(maxN);
 		float[] fht = (float[])getPixels();
 	 	rc2DFHT(fht, inverse, maxN);
 		isFrequencyDomain = !inverse;
 	}
 	
+	/** Sets the tables for transforms of size maxN, from the cache if possible. */
 	void initializeTables(int maxN) {
 	    if (maxN>0x40000000)
 	        throw new  IllegalArgumentException("Too large for FHT:  "+maxN+" >2^30");
-		makeSinCosTables(maxN);
-		makeBitReverseTable(maxN);
-		tempArr = new float[maxN];
+		Plan plan;
+		synchronized(plans) {
+			plan = plans.get(maxN);
+		}
+		if (plan==null) {
+			C = S = null;
+			bitrev = null;
+			mixedRadix = null;
+			if (isPowerOf2(maxN)) {
+				makeSinCosTables(maxN);
+				makeBitReverseTable(maxN);
+			} else
+				mixedRadix = new MixedRadix(maxN);
+			plan = new Plan(C, S, bitrev, mixedRadix);
+			synchronized(plans) {
+				plans.put(maxN, plan);
+			}
+		}
+		C = plan.C;
+		S = plan.S;
+		bitrev = plan.bitrev;
+		mixedRadix = plan.mixedRadix;
+		tempArr = mixedRadix==null ? new float[maxN] : null;
+	}
+
+	/** Whether the tables for size 'n' are set */
+	private boolean hasTables(int n) {
+		return (bitrev!=null && bitrev.length==n) || (mixedRadix!=null && mixedRadix.n==n);
 	}
 
 	void makeSinCosTables(int maxN) {
@@ -228,40 +286,80 @@ public class FHT extends FloatProcessor {
 			bitrev[i] = bitRevX(i, nLog2);
 	}
 
-	/** Performs a 2D FHT (Fast Hartley Transform). */
+	/** Performs a 2D FHT (Fast Hartley Transform). The rows are
+		distributed among the threads (see setNThreads). */
 	public void rc2DFHT(float[] x, boolean inverse, int maxN) {
-		if (S==null) initializeTables(maxN);
-		for (int row=0; row<maxN; row++)
-			dfht3(x, row*maxN, inverse, maxN);		
+		if (!hasTables(maxN))
+			initializeTables(maxN);
+		int nThreads = maxN>=256 ? this.nThreads : 1;
+		transformRows(x, inverse, maxN, nThreads);
 		progress(0.4);
-		transposeR(x, maxN);
+		transposeR(x, maxN, nThreads);
 		progress(0.5);
-		for (int row=0; row<maxN; row++)		
-			dfht3(x, row*maxN, inverse, maxN);
+		transformRows(x, inverse, maxN, nThreads);
 		progress(0.7);
-		transposeR(x, maxN);
+		transposeR(x, maxN, nThreads);
 		progress(0.8);
+		hartley(x, maxN, nThreads);
+		progress(0.95);
+	}
 
-		int mRow, mCol;
-		float A,B,C,D,E;
-		for (int row=0; row<=maxN/2; row++) { // Now calculate actual Hartley transform
-			for (int col=0; col<=maxN/2; col++) {
-				mRow = (maxN - row) % maxN;
-				mCol = (maxN - col)  % maxN;
-				A = x[row * maxN + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
-				B = x[mRow * maxN + col];
-				C = x[row * maxN + mCol];
-				D = x[mRow * maxN + mCol];
-				E = ((A + D) - (B + C)) / 2;
-				x[row * maxN + col] = A - E;
-				x[mRow * maxN + col] = B + E;
-				x[row * maxN + mCol] = C + E;
-				x[mRow * maxN + mCol] = D - E;
-			}
+	/** Calculates the actual 2D Hartley transform from the row and column
+		transforms; see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86 */
+	private void hartley(final float[] x, final int maxN, int nThreads) {
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					int mRow, mCol;
+					float A,B,C,D,E;
+					for (int row=nextRow.getAndIncrement(); row<=maxN/2; row=nextRow.getAndIncrement()) {
+						for (int col=0; col<=maxN/2; col++) {
+							mRow = (maxN - row) % maxN;
+							mCol = (maxN - col)  % maxN;
+							A = x[row * maxN + col];
+							B = x[mRow * maxN + col];
+							C = x[row * maxN + mCol];
+							D = x[mRow * maxN + mCol];
+							E = ((A + D) - (B + C)) / 2;
+							x[row * maxN + col] = A - E;
+							x[mRow * maxN + col] = B + E;
+							x[row * maxN + mCol] = C + E;
+							x[mRow * maxN + mCol] = D - E;
+						}
+					}
+					return null;
+				}
+			};
 		}
-		progress(0.95);
+		ThreadUtil.startAndJoin(callables);
 	}
-	
+
+	/** 1D transforms of all rows; each thread needs its own work array. */
+	private void transformRows(final float[] x, final boolean inverse, final int maxN, int nThreads) {
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		final int rowsPerTask = mixedRadix!=null ? 2 : 1;   // the mixed-radix transform does two rows at once
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					float[] temp = getBuffer(maxN);
+					double[] work = mixedRadix!=null ? new double[4*maxN] : null;
+					for (int row=nextRow.getAndAdd(rowsPerTask); row<maxN; row=nextRow.getAndAdd(rowsPerTask)) {
+						if (mixedRadix!=null)
+							mixedRadix.dht(x, row*maxN, row+1<maxN ? (row+1)*maxN : -1, inverse, work);
+						else
+							dfht3(x, row*maxN, inverse, maxN, temp);
+					}
+					releaseBuffer(temp);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
 	void progress(double percent) {
 		if (showProgress)
 			IJ.showProgress(percent);
@@ -276,14 +374,18 @@ public class FHT extends FloatProcessor {
 	 *  Note that all amplitudes in the output 'x' are multiplied by maxN.
 	 */
 	public void dfht3(float[] x, int base, boolean inverse, int maxN) {
+		if (S==null || bitrev.length!=maxN) initializeTables(maxN);
+		dfht3(x, base, inverse, maxN, tempArr);
+	}
+
+	private void dfht3(float[] x, int base, boolean inverse, int maxN, float[] tempArr) {
 		int i, stage, gpNum, gpIndex, gpSize, numGps, Nlog2;
 		int bfNum, numBfs;
 		int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
 		float rt1, rt2, rt3, rt4;
 
-		if (S==null) initializeTables(maxN);
 		Nlog2 = log2(maxN);
-		BitRevRArr(x, base, Nlog2, maxN);	//bitReverse the input array
+		BitRevRArr(x, base, Nlog2, maxN, tempArr);	//bitReverse the input array
 		gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
 		numGps = maxN / 4;
 		for (gpNum=0; gpNum<numGps; gpNum++)  {
@@ -350,18 +452,28 @@ public class FHT extends FloatProcessor {
 	}
 
 	void transposeR (float[] x, int maxN) {
-		int   r, c;
-		float  rTemp;
-
-		for (r=0; r<maxN; r++)  {
-			for (c=r; c<maxN; c++) {
-				if (r != c)  {
-					rTemp = x[r*maxN + c];
-					x[r*maxN + c] = x[c*maxN + r];
-					x[c*maxN + r] = rTemp;
+		transposeR(x, maxN, 1);
+	}
+
+	private void transposeR(final float[] x, final int maxN, int nThreads) {
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					float  rTemp;
+					for (int r=nextRow.getAndIncrement(); r<maxN; r=nextRow.getAndIncrement()) {
+						for (int c=r+1; c<maxN; c++) {
+							rTemp = x[r*maxN + c];
+							x[r*maxN + c] = x[c*maxN + r];
+							x[c*maxN + r] = rTemp;
+						}
+					}
+					return null;
 				}
-			}
+			};
 		}
+		ThreadUtil.startAndJoin(callables);
 	}
 	
 	int log2 (int x) {
@@ -377,6 +489,10 @@ public class FHT extends FloatProcessor {
 	}
 
 	void BitRevRArr (float[] x, int base, int bitlen, int maxN) {
+		BitRevRArr(x, base, bitlen, maxN, tempArr);
+	}
+
+	private void BitRevRArr (float[] x, int base, int bitlen, int maxN, float[] tempArr) {
 		for (int i=0; i<maxN; i++)
 			tempArr[i] = x[base+bitrev[i]];
 		for (int i=0; i<maxN; i++)
@@ -405,7 +521,7 @@ public class FHT extends FloatProcessor {
 		float  r, scale;
 		float min = Float.MAX_VALUE;
   		float max = Float.MIN_VALUE;
-   		float[] fps = new float[maxN*maxN];
+   		float[] fps = getBuffer(maxN*maxN);
  		byte[] ps = new byte[maxN*maxN];
 		float[] fht = (float[])getPixels();
 
@@ -438,6 +554,7 @@ public class FHT extends FloatProcessor {
 				ps[base+col] = (byte)(r+1f); // 1 is min value
 			}
 		}
+		releaseBuffer(fps);
 		//long t1 = System.currentTimeMillis();
 		//IJ.log(""+(t1-t0));
 		ImageProcessor ip = new ByteProcessor(maxN, maxN, ps);
@@ -595,9 +712,7 @@ public class FHT extends FloatProcessor {
 					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e + h1[rowMod * maxN + colMod] * h2o);
 			}
 		}
-		FHT fht2 =  new FHT(new FloatProcessor(maxN, maxN, tmp, null));
-		fht2.isFrequencyDomain = true;
-		return fht2;
+		return new FHT(tmp, maxN, true);
 	}
 		
 	/** Returns the image resulting from the point by point Hartley division
@@ -623,11 +738,15 @@ public class FHT extends FloatProcessor {
 				out[r*maxN+c] = (float)(tmp/mag);
 			}
 		}
-		FHT fht2 = new FHT(new FloatProcessor(maxN, maxN, out, null));
-		fht2.isFrequencyDomain = true;
-		return fht2;
+		return new FHT(out, maxN, true);
 	}
 			
+	/** Sets the number of threads for 2D transforms of images with a size of
+		256 or more. The default is Prefs.getThreads(). */
+	public void setNThreads(int nThreads) {
+		this.nThreads = Math.max(nThreads, 1);
+	}
+
 	/** Enables/disables display of the progress bar during transforms. */
 	public void setShowProgress(boolean showProgress) {
 		this.showProgress = showProgress;
@@ -654,6 +773,285 @@ public class FHT extends FloatProcessor {
 		return i==n;
 	}
 
+	/** Returns true if 'n' is even and has no prime factors other than 2, 3, 5 and 7. */
+	public static boolean isFastSize(int n) {
+		return isFastSize(n, 7);
+	}
+
+	private static boolean isFastSize(int n, int maxFactor) {
+		if (n<2 || (n&1)!=0)
+			return false;
+		for (int p=2; p<=maxFactor; p++) {
+			while (n%p==0)
+				n /= p;
+		}
+		return n==1;
+	}
+
+	/** Returns the size for padding an image of size 'n' before transforming it:
+		the smallest even size with prime factors 2, 3 and 5 that is not less
+		than 'n', or the next power of 2 if it is only slightly larger
+		(power-of-2 transforms are faster). */
+	public static int getFastSize(int n) {
+		int powerOf2 = 2;
+		while (powerOf2<n)
+			powerOf2 *= 2;
+		int size = Math.max(n, 2);
+		while (!isFastSize(size, 5))
+			size++;
+		return powerOf2<=size*POWER_OF_2_ADVANTAGE ? powerOf2 : size;
+	}
+
+	private static final double POWER_OF_2_ADVANTAGE = 1.2;
+
+	/** Returns a float array with at least 'size' elements from the pool of
+		buffers that are not used any more, or a new array if there is none.
+		The contents are undefined. Thread-safe. */
+	public static float[] getBuffer(int size) {
+		synchronized(bufferPool) {
+			for (int i=bufferPool.size()-1; i>=0; i--) {
+				float[] buffer = bufferPool.get(i).get();
+				if (buffer==null)
+					bufferPool.remove(i);    // garbage collected
+				else if (buffer.length>=size && buffer.length<=2*size) {
+					bufferPool.remove(i);
+					return buffer;
+				}
+			}
+		}
+		return new float[size];
+	}
+
+	/** Puts a buffer obtained with getBuffer back into the pool, for reuse.
+		The buffer must not be used after this call. */
+	public static void releaseBuffer(float[] buffer) {
+		synchronized(bufferPool) {
+			if (bufferPool.size()>=MAX_POOLED_BUFFERS)
+				bufferPool.remove(0);
+			bufferPool.add(new SoftReference<float[]>(buffer));
+		}
+	}
+
+	/** The tables for transforms of one size */
+	private static class Plan {
+		final float[] C, S;
+		final int[] bitrev;
+		final MixedRadix mixedRadix;
+
+		Plan(float[] C, float[] S, int[] bitrev, MixedRadix mixedRadix) {
+			this.C = C;
+			this.S = S;
+			this.bitrev = bitrev;
+			this.mixedRadix = mixedRadix;
+		}
+	}
+
+	/** Mixed-radix 1D Hartley transform of any size, based on a complex FFT
+		with self-sorting (Stockham) stages. The complex FFT transforms two
+		real rows at once, as real and imaginary part. It is fast if the size
+		has only small prime factors. */
+	static class MixedRadix {
+		final int n;
+		final int[] factors;
+		final double[] cos, sin;   // exp(-2*pi*i*k/n), k=0...n-1
+
+		MixedRadix(int n) {
+			this.n = n;
+			int[] f = new int[32];
+			int nf = 0, m = n;
+			while (m%4==0) {f[nf++] = 4; m /= 4;}
+			for (int p=2; m>1; p++) {
+				if (p*p>m) p = m;      // 'm' is prime
+				while (m%p==0) {f[nf++] = p; m /= p;}
+			}
+			factors = new int[nf];
+			System.arraycopy(f, 0, factors, 0, nf);
+			cos = new double[n];
+			sin = new double[n];
+			for (int k=0; k<n; k++) {
+				double phi = -2.0*Math.PI*k/n;
+				cos[k] = Math.cos(phi);
+				sin[k] = Math.sin(phi);
+			}
+		}
+
+		/** Hartley transform of the rows of 'x' starting at 'base1' and (if not
+			negative) at 'base2'. 'work' must have a size of at least 4*n. The
+			inverse transform is normalized by 1/n, as with dfht3. */
+		void dht(float[] x, int base1, int base2, boolean inverse, double[] work) {
+			for (int i=0; i<n; i++) {
+				work[i] = x[base1+i];
+				work[n+i] = base2>=0 ? x[base2+i] : 0.0;
+			}
+			int offset = fft(work);      // start of the result in 'work'
+			double scale = inverse ? 0.5/n : 0.5;
+			for (int k=0; k<n; k++) {
+				int k2 = k==0 ? 0 : n-k;
+				double a = work[offset+k], b = work[offset+n+k];
+				double c = work[offset+k2], d = work[offset+n+k2];
+				x[base1+k] = (float)((a + c - b + d)*scale);
+				if (base2>=0)
+					x[base2+k] = (float)((a - c + b + d)*scale);
+			}
+		}
+
+		/** Complex FFT of work[0...n-1] (real) and work[n...2n-1] (imaginary),
+			using work[2n...4n-1] as buffer. Returns the offset of the result. */
+		int fft(double[] work) {
+			int in = 0, out = 2*n;
+			int s = 1;        // stride, product of the factors done
+			int nn = n;       // size of the sub-transforms
+			for (int f=0; f<factors.length; f++) {
+				int radix = factors[f];
+				int m = nn/radix;
+				switch (radix) {
+					case 2: radix2(work, in, out, s, m); break;
+					case 3: radix3(work, in, out, s, m); break;
+					case 4: radix4(work, in, out, s, m); break;
+					case 5: radix5(work, in, out, s, m); break;
+					default: radixN(work, in, out, s, m, radix);
+				}
+				int tmp = in; in = out; out = tmp;
+				s *= radix;
+				nn = m;
+			}
+			return in;
+		}
+
+		// In each stage, the inputs of a butterfly are in[q + s*(p + r*m)], r=0...radix-1,
+		// and the outputs, multiplied by the twiddle factors exp(-2*pi*i*p*t/(m*radix)),
+		// go to out[q + s*(radix*p + t)], t=0...radix-1. Imaginary parts are at +n.
+
+		private void radix2(double[] w, int in, int out, int s, int m) {
+			for (int p=0; p<m; p++) {
+				double c1 = cos[p*s], s1 = sin[p*s];
+				for (int q=0; q<s; q++) {
+					int i0 = in + q + s*p, i1 = i0 + s*m;
+					int o0 = out + q + s*2*p, o1 = o0 + s;
+					double a0r = w[i0], a0i = w[i0+n], a1r = w[i1], a1i = w[i1+n];
+					w[o0] = a0r + a1r;
+					w[o0+n] = a0i + a1i;
+					double dr = a0r - a1r, di = a0i - a1i;
+					w[o1] = dr*c1 - di*s1;
+					w[o1+n] = dr*s1 + di*c1;
+				}
+			}
+		}
+
+		private void radix3(double[] w, int in, int out, int s, int m) {
+			final double sin60 = 0.86602540378443864676;
+			for (int p=0; p<m; p++) {
+				int k = p*s;
+				double c1 = cos[k], s1 = sin[k], c2 = cos[2*k], s2 = sin[2*k];
+				for (int q=0; q<s; q++) {
+					int i0 = in + q + s*p, i1 = i0 + s*m, i2 = i1 + s*m;
+					int o0 = out + q + s*3*p, o1 = o0 + s, o2 = o1 + s;
+					double a0r = w[i0], a0i = w[i0+n];
+					double tr = w[i1] + w[i2], ti = w[i1+n] + w[i2+n];
+					double dr = (w[i1] - w[i2])*sin60, di = (w[i1+n] - w[i2+n])*sin60;
+					w[o0] = a0r + tr;
+					w[o0+n] = a0i + ti;
+					double br = a0r - 0.5*tr, bi = a0i - 0.5*ti;
+					double y1r = br + di, y1i = bi - dr;     // -i*d
+					double y2r = br - di, y2i = bi + dr;     // +i*d
+					w[o1] = y1r*c1 - y1i*s1;
+					w[o1+n] = y1r*s1 + y1i*c1;
+					w[o2] = y2r*c2 - y2i*s2;
+					w[o2+n] = y2r*s2 + y2i*c2;
+				}
+			}
+		}
+
+		private void radix4(double[] w, int in, int out, int s, int m) {
+			for (int p=0; p<m; p++) {
+				int k = p*s;
+				double c1 = cos[k], s1 = sin[k], c2 = cos[2*k], s2 = sin[2*k], c3 = cos[3*k], s3 = sin[3*k];
+				for (int q=0; q<s; q++) {
+					int i0 = in + q + s*p, i1 = i0 + s*m, i2 = i1 + s*m, i3 = i2 + s*m;
+					int o0 = out + q + s*4*p, o1 = o0 + s, o2 = o1 + s, o3 = o2 + s;
+					double t0r = w[i0] + w[i2], t0i = w[i0+n] + w[i2+n];
+					double t1r = w[i0] - w[i2], t1i = w[i0+n] - w[i2+n];
+					double t2r = w[i1] + w[i3], t2i = w[i1+n] + w[i3+n];
+					double t3r = w[i1+n] - w[i3+n], t3i = w[i3] - w[i1];   // -i*(a1-a3)
+					w[o0] = t0r + t2r;
+					w[o0+n] = t0i + t2i;
+					double yr = t1r + t3r, yi = t1i + t3i;
+					w[o1] = yr*c1 - yi*s1;
+					w[o1+n] = yr*s1 + yi*c1;
+					yr = t0r - t2r; yi = t0i - t2i;
+					w[o2] = yr*c2 - yi*s2;
+					w[o2+n] = yr*s2 + yi*c2;
+					yr = t1r - t3r; yi = t1i - t3i;
+					w[o3] = yr*c3 - yi*s3;
+					w[o3+n] = yr*s3 + yi*c3;
+				}
+			}
+		}
+
+		private void radix5(double[] w, int in, int out, int s, int m) {
+			final double cos72 = 0.30901699437494742410, cos144 = -0.80901699437494742410;
+			final double sin72 = 0.95105651629515357212, sin144 = 0.58778525229247312917;
+			double[] yr = new double[5], yi = new double[5];
+			for (int p=0; p<m; p++) {
+				int k = p*s;
+				for (int q=0; q<s; q++) {
+					int i0 = in + q + s*p, i1 = i0 + s*m, i2 = i1 + s*m, i3 = i2 + s*m, i4 = i3 + s*m;
+					double a0r = w[i0], a0i = w[i0+n];
+					double t1r = w[i1] + w[i4], t1i = w[i1+n] + w[i4+n];
+					double t2r = w[i2] + w[i3], t2i = w[i2+n] + w[i3+n];
+					double d1r = w[i1] - w[i4], d1i = w[i1+n] - w[i4+n];
+					double d2r = w[i2] - w[i3], d2i = w[i2+n] - w[i3+n];
+					yr[0] = a0r + t1r + t2r;
+					yi[0] = a0i + t1i + t2i;
+					double br = a0r + cos72*t1r + cos144*t2r, bi = a0i + cos72*t1i + cos144*t2i;
+					double er = sin72*d1r + sin144*d2r, ei = sin72*d1i + sin144*d2i;
+					yr[1] = br + ei; yi[1] = bi - er;    // -i*e
+					yr[4] = br - ei; yi[4] = bi + er;
+					br = a0r + cos144*t1r + cos72*t2r; bi = a0i + cos144*t1i + cos72*t2i;
+					er = sin144*d1r - sin72*d2r; ei = sin144*d1i - sin72*d2i;
+					yr[2] = br + ei; yi[2] = bi - er;
+					yr[3] = br - ei; yi[3] = bi + er;
+					int o = out + q + s*5*p;
+					w[o] = yr[0];
+					w[o+n] = yi[0];
+					for (int t=1; t<5; t++) {
+						o += s;
+						double c = cos[t*k], sn = sin[t*k];
+						w[o] = yr[t]*c - yi[t]*sn;
+						w[o+n] = yr[t]*sn + yi[t]*c;
+					}
+				}
+			}
+		}
+
+		/** Butterflies for any other radix, with radix*radix operations */
+		private void radixN(double[] w, int in, int out, int s, int m, int radix) {
+			double[] aRe = new double[radix], aIm = new double[radix];
+			int step = n/radix;       // exp(-2*pi*i/radix) = cos[step], sin[step]
+			for (int p=0; p<m; p++) {
+				for (int q=0; q<s; q++) {
+					for (int r=0; r<radix; r++) {
+						int i = in + q + s*(p+r*m);
+						aRe[r] = w[i];
+						aIm[r] = w[i+n];
+					}
+					for (int t=0; t<radix; t++) {
+						double sumRe = aRe[0], sumIm = aIm[0];
+						for (int r=1, rt=t; r<radix; r++, rt+=t) {
+							int k = (rt%radix)*step;
+							sumRe += aRe[r]*cos[k] - aIm[r]*sin[k];
+							sumIm += aRe[r]*sin[k] + aIm[r]*cos[k];
+						}
+						int k = p*t*s;    // twiddle factor exp(-2*pi*i*p*t/(m*radix))
+						int o = out + q + s*(radix*p + t);
+						w[o] = sumRe*cos[k] - sumIm*sin[k];
+						w[o+n] = sumRe*sin[k] + sumIm*cos[k];
+					}
+				}
+			}
+		}
+	}
+
 	/** Returns a string containing information about this FHT. */
 	public String toString() {
 		return "FHT, " + getWidth() + "x"+getHeight() + ", fd=" + isFrequencyDomain;
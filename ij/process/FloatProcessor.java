@@ -186,6 +186,40 @@ public class FloatProcessor extends ImageProcessor {
 		return createBufferedImage();
 	}
 		
+	/** Converts only the pixels of 'srcRect' needed for 'dstWidth' x 'dstHeight' output pixels. */
+	@Override
+	public Image createImage(Rectangle srcRect, int dstWidth, int dstHeight) {
+		if (!minMaxSet)
+			findMinAndMax();
+		boolean thresholding = minThreshold!=NO_THRESHOLD && lutUpdateMode<NO_LUT_UPDATE;
+		double min2 = getMin();
+		double max2 = getMax();
+		double scale = 255.0/(max2-min2);
+		int maxValue = thresholding&&lutUpdateMode==RED_LUT ? 254 : 255;
+		int[] xOffsets = getSampleOffsets(srcRect.x, srcRect.width, dstWidth);
+		int[] yOffsets = getSampleOffsets(srcRect.y, srcRect.height, dstHeight);
+		byte[] pixels8 = new byte[dstWidth*dstHeight];
+		for (int y=0, i=0; y<dstHeight; y++) {
+			int offset = yOffsets[y]*width;
+			for (int x=0; x<dstWidth; x++, i++) {
+				float rawValue = pixels[offset+xOffsets[x]];
+				double value = rawValue-min2;
+				if (value<0.0) value = 0.0;
+				int ivalue = (int)(value*scale+0.5);
+				if (ivalue>maxValue) ivalue = maxValue;
+				if (thresholding) {
+					boolean inside = rawValue>=minThreshold && rawValue<=maxThreshold;
+					if (inside)
+						ivalue = 255;
+					else if (lutUpdateMode==BLACK_AND_WHITE_LUT)
+						ivalue = 0;
+				}
+				pixels8[i] = (byte)ivalue;
+			}
+		}
+		return createImage(pixels8, dstWidth, dstHeight);
+	}
+
 	// creates 8-bit image by linearly scaling from float to 8-bits
 	private byte[] create8BitImage(boolean thresholding) {
 		int size = width*height;
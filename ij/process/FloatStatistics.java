@@ -31,53 +31,39 @@ public class FloatStatistics extends ImageStatistics {
 		}
 		if (limitToThreshold)
 			saveThreshold(minThreshold, maxThreshold, cal);
-		getStatistics(ip, minThreshold, maxThreshold);
+		boolean ellipse = (mOptions&ELLIPSE)!=0 || (mOptions&SHAPE_DESCRIPTORS)!=0;
+		boolean moments = (mOptions&(CENTER_OF_MASS|SKEWNESS|KURTOSIS))!=0;
+		StatisticsKernel kernel = new StatisticsKernel(ip, minThreshold, maxThreshold, null);
+		kernel.setCentroid(!ellipse && (mOptions&CENTROID)!=0);
+		kernel.setMoments(moments);
+		getStatistics(ip, kernel, minThreshold, maxThreshold);
 		if ((mOptions&MODE)!=0)
 			getMode();
-		if ((mOptions&ELLIPSE)!=0 || (mOptions&SHAPE_DESCRIPTORS)!=0)
+		if (ellipse)
 			fitEllipse(ip, mOptions);
 		else if ((mOptions&CENTROID)!=0)
-			getCentroid(ip, minThreshold, maxThreshold);
-		if ((mOptions&(CENTER_OF_MASS|SKEWNESS|KURTOSIS))!=0)
-			calculateMoments(ip, minThreshold, maxThreshold);
+			setCentroid(kernel);
+		if (moments)
+			setMoments(kernel);
 		if ((mOptions&MEDIAN)!=0)
 			getMedian(ip, minThreshold, maxThreshold);
 		if ((mOptions&AREA_FRACTION)!=0)
 			calculateAreaFraction(ip);
 	}
 
-	void getStatistics(ImageProcessor ip, double minThreshold, double maxThreshold) {
-		double v;
-		float[] pixels = (float[])ip.getPixels();
+	/** Runs the kernel for min and max (and centroid and moments, if set). This also
+		creates the histogram and the sums for mean and standard deviation if the
+		histogram range is given, otherwise these need a second pass. */
+	void getStatistics(ImageProcessor ip, StatisticsKernel kernel, double minThreshold, double maxThreshold) {
 		nBins = ip.getHistogramSize();
 		histMin = ip.getHistogramMin();
 		histMax = ip.getHistogramMax();
-		histogram = new int[nBins];
-		double sum = 0;
-		double sum2 = 0;
-		byte[] mask = ip.getMaskArray();
-		
-		// Find image min and max
-		double roiMin = Double.MAX_VALUE;
-		double roiMax = -Double.MAX_VALUE;
-		for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-			int i = y * width + rx;
-			int mi = my * rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
-					v = pixels[i];
-					if (v>=minThreshold && v<=maxThreshold) {
-						if (v<roiMin)
-							roiMin = v;
-						if (v>roiMax)
-							roiMax = v;
-					}
-				}
-				i++;
-			}
-		}
-		min = roiMin; max = roiMax;
-		if (histMin==0.0 && histMax==0.0) {
+		boolean fixedRange = !(histMin==0.0 && histMax==0.0);
+		if (fixedRange)
+			kernel.setHistogram(nBins, histMin, histMax);
+		kernel.run();
+		min = kernel.min; max = kernel.max;
+		if (!fixedRange) {
 			histMin = min; 
 			histMax = max;
 		} else {
@@ -87,34 +73,18 @@ public class FloatStatistics extends ImageStatistics {
 				max = histMax;
 		}
 		binSize = (histMax-histMin)/nBins;
-
-		// Generate histogram
-		double scale = nBins/(histMax-histMin);
-		int index;
-		pixelCount = 0;
-		for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-			int i = y * width + rx;
-			int mi = my * rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
-					v = pixels[i];
-					if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
-						pixelCount++;
-						sum += v;
-						sum2 += v*v;
-						index = (int)(scale*(v-histMin));
-						if (index>=nBins)
-							index = nBins-1;
-						histogram[index]++;
-					}
-				}
-				i++;
-			}
+		StatisticsKernel histogramKernel = kernel;
+		if (!fixedRange) {
+			histogramKernel = new StatisticsKernel(ip, minThreshold, maxThreshold, null);
+			histogramKernel.setHistogram(nBins, histMin, histMax);
+			histogramKernel.run();
 		}
+		histogram = histogramKernel.histogram;
+		pixelCount = (int)histogramKernel.count;
 		area = pixelCount*pw*ph;
-		mean = sum/pixelCount;
+		mean = histogramKernel.sum/pixelCount;
 		umean = mean;
-		calculateStdDev(pixelCount, sum, sum2);
+		calculateStdDev(pixelCount, histogramKernel.sum, histogramKernel.sum2);
 	}
 
 	void getMode() {
@@ -132,71 +102,6 @@ public class FloatStatistics extends ImageStatistics {
         	dmode += binSize/2.0;        	
 	}
 
-	void calculateMoments(ImageProcessor ip, double minThreshold, double maxThreshold) {
-		float[] pixels = (float[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		int i, mi;
-		double v, v2, sum1=0.0, sum2=0.0, sum3=0.0, sum4=0.0, xsum=0.0, ysum=0.0;
-		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
-					v = pixels[i]+Double.MIN_VALUE;
-					if (v>=minThreshold && v<=maxThreshold) {
-						v2 = v*v;
-						sum1 += v;
-						sum2 += v2;
-						sum3 += v*v2;
-						sum4 += v2*v2;
-						xsum += x*v;
-						ysum += y*v;
-					}
-				}
-				i++;
-			}
-		}
-	    double mean2 = mean*mean;
-	    double variance = sum2/pixelCount - mean2;
-	    double sDeviation = Math.sqrt(variance);
-	    skewness = ((sum3 - 3.0*mean*sum2)/pixelCount + 2.0*mean*mean2)/(variance*sDeviation);
-	    kurtosis = (((sum4 - 4.0*mean*sum3 + 6.0*mean2*sum2)/pixelCount - 3.0*mean2*mean2)/(variance*variance)-3.0);
-		xCenterOfMass = xsum/sum1+0.5;
-		yCenterOfMass = ysum/sum1+0.5;
-		if (cal!=null) {
-			xCenterOfMass = cal.getX(xCenterOfMass);
-			yCenterOfMass = cal.getY(yCenterOfMass, height);
-		}
-	}
-
-	void getCentroid(ImageProcessor ip, double minThreshold, double maxThreshold) {
-		float[] pixels = (float[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		double count=0.0, xsum=0.0, ysum=0.0, v;
-		int i, mi;
-		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
-					v = pixels[i];
-					if (v>=minThreshold && v<=maxThreshold) {
-						count++;
-						xsum+=x;
-						ysum+=y;
-					}
-				}
-				i++;
-			}
-		}
-		xCentroid = xsum/count+0.5;
-		yCentroid = ysum/count+0.5;
-		if (cal!=null) {
-			xCentroid = cal.getX(xCentroid);
-			yCentroid = cal.getY(yCentroid, height);
-		}
-	}
-
 	void calculateAreaFraction(ImageProcessor ip) {
 		int sum = 0;
 		int total = 0;
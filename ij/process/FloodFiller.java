@@ -2,6 +2,7 @@ package ij.process;
 import ij.*;
 import ij.gui.Toolbar;
 import java.awt.Rectangle;
+import java.util.Arrays;
 
 
 /**	This class, which does flood filling, is used by the floodFill() macro function and
@@ -17,20 +18,43 @@ public class FloodFiller {
 	ImageProcessor ip;
 	int max;
 	boolean isFloat;
+	private byte[] bpixels;      // the pixels of 'ip', accessed directly like in the Wand
+	private short[] spixels;
+	private float[] fpixels;
+	private int[] cpixels;
+	private int width, height;
   
 	public FloodFiller(ImageProcessor ip) {
 		this.ip = ip;
 		isFloat = ip instanceof FloatProcessor;
 	}
 
+	/** Gets the pixels array of 'ip', which may have been replaced since the previous call */
+	private void setup() {
+		width = ip.getWidth();
+		height = ip.getHeight();
+		bpixels = null;
+		spixels = null;
+		fpixels = null;
+		cpixels = null;
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[])
+			bpixels = (byte[])pixels;
+		else if (pixels instanceof short[])
+			spixels = (short[])pixels;
+		else if (pixels instanceof float[])
+			fpixels = (float[])pixels;
+		else if (pixels instanceof int[])
+			cpixels = (int[])pixels;
+	}
+
 	/** Does a 4-connected flood fill using the current fill/draw
 		value, which is defined by ImageProcessor.setValue(). */
 	public boolean fill(int x, int y) {
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-		int color = ip.getPixel(x, y);
+		setup();
+		int color = getPixel(x, y);
 		fillLine(ip, x, x, y);
-		int newColor = ip.getPixel(x, y);
+		int newColor = getPixel(x, y);
 		ip.putPixel(x, y, color);
 		if (color==newColor) return false;
 		stackSize = 0;
@@ -39,25 +63,25 @@ public class FloodFiller {
 			x = popx(); 
 			if (x ==-1) return true;
 			y = popy();
-			if (ip.getPixel(x,y)!=color) continue;
+			if (getPixel(x,y)!=color) continue;
 			int x1 = x; int x2 = x;
-			while (ip.getPixel(x1,y)==color && x1>=0) x1--; // find start of scan-line
+			while (getPixel(x1,y)==color && x1>=0) x1--; // find start of scan-line
 			x1++;
-			while (ip.getPixel(x2,y)==color && x2<width) x2++;  // find end of scan-line                 
+			while (getPixel(x2,y)==color && x2<width) x2++;  // find end of scan-line                 
 			x2--;
 			fillLine(ip, x1,x2,y); // fill scan-line
 			boolean inScanLine = false;
 			for (int i=x1; i<=x2; i++) { // find scan-lines above this one
-				if (!inScanLine && y>0 && ip.getPixel(i,y-1)==color)
+				if (!inScanLine && y>0 && getPixel(i,y-1)==color)
 					{push(i, y-1); inScanLine = true;}
-				else if (inScanLine && y>0 && ip.getPixel(i,y-1)!=color)
+				else if (inScanLine && y>0 && getPixel(i,y-1)!=color)
 					inScanLine = false;
 			}
 			inScanLine = false;
 			for (int i=x1; i<=x2; i++) { // find scan-lines below this one
-				if (!inScanLine && y<height-1 && ip.getPixel(i,y+1)==color)
+				if (!inScanLine && y<height-1 && getPixel(i,y+1)==color)
 					{push(i, y+1); inScanLine = true;}
-				else if (inScanLine && y<height-1 && ip.getPixel(i,y+1)!=color)
+				else if (inScanLine && y<height-1 && getPixel(i,y+1)!=color)
 					inScanLine = false;
 			}
 		}        
@@ -66,13 +90,12 @@ public class FloodFiller {
 	/** Does a 8-connected flood fill using the current fill/draw
 		value, which is defined by ImageProcessor.setValue(). */
 	public boolean fill8(int x, int y) {
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-		int color = ip.getPixel(x, y);
+		setup();
+		int color = getPixel(x, y);
 		int wm1=width-1;
 		int hm1=height-1; 
 		fillLine(ip, x, x, y);
-		int newColor = ip.getPixel(x, y);
+		int newColor = getPixel(x, y);
 		ip.putPixel(x, y, color);
 		if (color==newColor) return false;
 		stackSize = 0;
@@ -82,49 +105,49 @@ public class FloodFiller {
 			if (x==-1) return true;
 			y = popy();
 			int x1 = x; int x2 = x;
-			if(ip.getPixel(x1,y)==color){ 
-				while (ip.getPixel(x1,y)==color && x1>=0) x1--; // find start of scan-line
+			if(getPixel(x1,y)==color){ 
+				while (getPixel(x1,y)==color && x1>=0) x1--; // find start of scan-line
 				x1++;
-				while (ip.getPixel(x2,y)==color && x2<width) x2++;  // find end of scan-line
+				while (getPixel(x2,y)==color && x2<width) x2++;  // find end of scan-line
 				x2--;
 				fillLine(ip, x1,x2,y); // fill scan-line
 			} 
 			if(y>0){
 				if (x1>0){
-					if (ip.getPixel(x1-1,y-1)==color){
+					if (getPixel(x1-1,y-1)==color){
 						push(x1-1,y-1);
 					}
 				}
 				if (x2<wm1){
-					if (ip.getPixel(x2+1,y-1)==color){
+					if (getPixel(x2+1,y-1)==color){
 						push(x2+1,y-1);
 					}
 				}
 			}
 			if(y<hm1){
 				if (x1>0){
-					if (ip.getPixel(x1-1,y+1)==color){
+					if (getPixel(x1-1,y+1)==color){
 						push(x1-1,y+1);
 					}
 				}
 				if (x2<wm1){
-					if (ip.getPixel(x2+1,y+1)==color){
+					if (getPixel(x2+1,y+1)==color){
 						push(x2+1,y+1);
 					}
 				}
 			}
 			boolean inScanLine = false;
 			for (int i=x1; i<=x2; i++) { // find scan-lines above this one
-				if (!inScanLine && y>0 && ip.getPixel(i,y-1)==color)
+				if (!inScanLine && y>0 && getPixel(i,y-1)==color)
 					{push(i, y-1); inScanLine = true;}
-				else if (inScanLine && y>0 && ip.getPixel(i,y-1)!=color)
+				else if (inScanLine && y>0 && getPixel(i,y-1)!=color)
 					inScanLine = false;
 			}
 			inScanLine = false;
 			for (int i=x1; i<=x2; i++) {// find scan-lines below this one
-				if (!inScanLine && y<hm1 && ip.getPixel(i,y+1)==color)
+				if (!inScanLine && y<hm1 && getPixel(i,y+1)==color)
 					{push(i, y+1); inScanLine = true;}
-				else if (inScanLine && y<hm1 && ip.getPixel(i,y+1)!=color)
+				else if (inScanLine && y<hm1 && getPixel(i,y+1)!=color)
 					inScanLine = false;
 			}
 		}
@@ -134,11 +157,12 @@ public class FloodFiller {
 	
 	/** This method is used by the particle analyzer to remove interior holes from particle masks. */
 	public void particleAnalyzerFill(int x, int y, double level1, double level2, ImageProcessor mask, Rectangle bounds) {
-		int width = ip.getWidth();
-		int height = ip.getHeight();
+		setup();
 		//IJ.log("ff: "+x+" "+y+" "+level1+" "+level2+" "+ip+" "+mask+" "+bounds);
 		if (x==0&&y==0&&level1==0.0&&level2==255.0&&ip.getBitDepth()==8) {
 			ip.fill();
+			mask.setColor(255);   // the particle is the whole image
+			mask.fill();
 			return;
 		}
 		mask.setColor(0);
@@ -177,12 +201,29 @@ public class FloodFiller {
 	}
 	
 	final boolean inParticle(int x, int y, double level1, double level2) {
-		if (isFloat)
-			return ip.getPixelValue(x,y)>=level1 &&  ip.getPixelValue(x,y)<=level2;
-		else {
-            int v = ip.getPixel(x,y);
+		if (isFloat) {
+			float v = x>=0 && x<width && y>=0 && y<height ? fpixels[y*width+x] : Float.NaN;
 			return v>=level1 && v<=level2;
-        }
+		} else {
+			int v = getPixel(x,y);
+			return v>=level1 && v<=level2;
+		}
+	}
+
+	/** Returns the same as ip.getPixel(x,y) */
+	private int getPixel(int x, int y) {
+		if (x<0 || x>=width || y<0 || y>=height)
+			return 0;
+		if (bpixels!=null)
+			return bpixels[y*width+x]&0xff;
+		else if (spixels!=null)
+			return spixels[y*width+x]&0xffff;
+		else if (fpixels!=null)
+			return Float.floatToIntBits(fpixels[y*width+x]);
+		else if (cpixels!=null)
+			return cpixels[y*width+x];
+		else
+			return ip.getPixel(x, y);
 	}
 	
 	final void push(int x, int y) {
@@ -213,10 +254,32 @@ public class FloodFiller {
         return value;
 	}
 
+	/** Sets the pixels from x1 to x2 to the fill value, like ip.drawPixel */
 	final void fillLine(ImageProcessor ip, int x1, int x2, int y) {
 		if (x1>x2) {int t = x1; x1=x2; x2=t;}
-		for (int x=x1; x<=x2; x++)
-            ip.drawPixel(x, y);
+		if (y<ip.clipYMin || y>ip.clipYMax)
+			return;
+		if (x1<ip.clipXMin) x1 = ip.clipXMin;
+		if (x2>ip.clipXMax) x2 = ip.clipXMax;
+		if (x1>x2)
+			return;
+		Object pixels = ip.getPixels();
+		int offset = y*ip.getWidth();
+		if ((ip instanceof ByteProcessor) && (pixels instanceof byte[]))
+			Arrays.fill((byte[])pixels, offset+x1, offset+x2+1, (byte)ip.getForegroundValue());
+		else if ((ip instanceof ShortProcessor) && (pixels instanceof short[])) {
+			int value = (int)ip.getForegroundValue();
+			if (value<0) value = 0;
+			if (value>65535) value = 65535;
+			Arrays.fill((short[])pixels, offset+x1, offset+x2+1, (short)value);
+		} else if ((ip instanceof FloatProcessor) && (pixels instanceof float[]))
+			Arrays.fill((float[])pixels, offset+x1, offset+x2+1, (float)ip.getForegroundValue());
+		else if ((ip instanceof ColorProcessor) && (pixels instanceof int[]))
+			Arrays.fill((int[])pixels, offset+x1, offset+x2+1, (int)ip.getForegroundValue());
+		else {
+			for (int x=x1; x<=x2; x++)
+				ip.drawPixel(x, y);
+		}
 	}
 
 }
@@ -2121,6 +2121,34 @@ public abstract class ImageProcessor implements Cloneable {
 	/** Returns a copy of this image is the form of an AWT Image. */
 	public abstract Image createImage();
 
+	/** Returns the area 'srcRect' of this image as an AWT Image with
+		'dstWidth' x 'dstHeight' pixels (nearest neighbor), as it would be
+		displayed by createImage. Only the pixels needed are converted; this
+		is used for displaying a part of a large 16 or 32-bit image.
+		Returns null if not supported (8-bit and RGB images, where createImage
+		does not need a conversion). */
+	public Image createImage(Rectangle srcRect, int dstWidth, int dstHeight) {
+		return null;
+	}
+
+	/** Returns, for each of 'dstLength' output pixels, the input pixel
+		(nearest neighbor) of a line with 'srcLength' pixels starting at 'start' */
+	static int[] getSampleOffsets(int start, int srcLength, int dstLength) {
+		int[] offsets = new int[dstLength];
+		for (int i=0; i<dstLength; i++)
+			offsets[i] = start + Math.min((int)((i+0.5)*srcLength/dstLength), srcLength-1);
+		return offsets;
+	}
+
+	/** Creates an AWT image with the LUT of this image from 8-bit pixels */
+	Image createImage(byte[] pixels8, int width, int height) {
+		if (cm==null)
+			makeDefaultColorModel();
+		SampleModel sm = getIndexSampleModel().createCompatibleSampleModel(width, height);
+		WritableRaster raster = Raster.createWritableRaster(sm, new DataBufferByte(pixels8, width*height, 0), null);
+		return new BufferedImage(cm, raster, false, null);
+	}
+
 	/** Returns this image as a BufferedImage. */
 	public BufferedImage getBufferedImage() {
 		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
@@ -206,6 +206,33 @@ public class ImageStatistics implements Measurements {
 		}
 	}
 	
+	/** Sets the centroid from the sums of a StatisticsKernel */
+	void setCentroid(StatisticsKernel kernel) {
+		xCentroid = kernel.xSum/kernel.centroidCount+0.5;
+		yCentroid = kernel.ySum/kernel.centroidCount+0.5;
+		if (cal!=null) {
+			xCentroid = cal.getX(xCentroid);
+			yCentroid = cal.getY(yCentroid, height);
+		}
+	}
+
+	/** Sets skewness, kurtosis and center of mass from the sums of a
+		StatisticsKernel; requires mean and pixelCount. */
+	void setMoments(StatisticsKernel kernel) {
+		double sum2 = kernel.moment2, sum3 = kernel.moment3, sum4 = kernel.moment4;
+	    double mean2 = mean*mean;
+	    double variance = sum2/pixelCount - mean2;
+	    double sDeviation = Math.sqrt(variance);
+	    skewness = ((sum3 - 3.0*mean*sum2)/pixelCount + 2.0*mean*mean2)/(variance*sDeviation);
+	    kurtosis = (((sum4 - 4.0*mean*sum3 + 6.0*mean2*sum2)/pixelCount - 3.0*mean2*mean2)/(variance*variance)-3.0);
+		xCenterOfMass = kernel.xMoment/kernel.moment1+0.5;
+		yCenterOfMass = kernel.yMoment/kernel.moment1+0.5;
+		if (cal!=null) {
+			xCenterOfMass = cal.getX(xCenterOfMass);
+			yCenterOfMass = cal.getY(yCenterOfMass, height);
+		}
+	}
+
 	void fitEllipse(ImageProcessor ip, int mOptions) {
 		ImageProcessor originalMask = null;
 		boolean limitToThreshold = (mOptions&LIMIT)!=0 && ip.getMinThreshold()!=ImageProcessor.NO_THRESHOLD;
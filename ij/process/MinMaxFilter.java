@@ -0,0 +1,276 @@
+package ij.process;
+import ij.*;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This class implements minimum, maximum, open and close filters with
+	structuring elements that can be decomposed into straight lines:
+	rectangles, horizontal and vertical lines and octagons, which
+	approximate disks. Each line is filtered with the van Herk/Gil-Werman
+	algorithm, which needs about three comparisons per pixel, independent
+	of the line length. The computing time therefore does not increase
+	with the kernel size, in contrast to the circular kernels of
+	ij.plugin.filter.RankFilters.
+	Only the pixels inside the rectangle of the roi are modified;
+	pixels outside of the roi, but inside the image, are used as input.
+	Out-of-image pixels are ignored, unless an outside value is set.
+*/
+public class MinMaxFilter {
+	public static final int MIN=0, MAX=1, OPEN=2, CLOSE=3;
+	/** Kernel shapes */
+	public static final int SQUARE=1, OCTAGON=2, HORIZONTAL_LINE=3, VERTICAL_LINE=4;
+	private int xRadius, yRadius, diagonalRadius;
+	private double outsideValue = Double.NaN;
+	private int nThreads = Prefs.getThreads();
+
+	/** Creates a filter with the specified kernel shape, where the kernel
+		extends by 'radius' pixels to each side of the center pixel. For
+		OCTAGON, the four diagonal edges have a length of about 0.4*radius,
+		so that the kernel approximates a circle. */
+	public MinMaxFilter(int shape, int radius) {
+		switch (shape) {
+			case SQUARE: xRadius=radius; yRadius=radius; break;
+			case HORIZONTAL_LINE: xRadius=radius; break;
+			case VERTICAL_LINE: yRadius=radius; break;
+			case OCTAGON:
+				int b = (int)Math.round(radius*(1.0-Math.sqrt(0.5)));
+				b = Math.min(b, (radius-1)/2);  //the square part must not be empty (otherwise the diagonals leave holes)
+				xRadius = yRadius = radius - 2*b;
+				diagonalRadius = b;
+				break;
+			default: throw new IllegalArgumentException("Invalid shape: "+shape);
+		}
+	}
+
+	/** Creates a filter with a kernel that is the combination (Minkowski sum)
+		of a (2*xRadius+1)*(2*yRadius+1) rectangle and two diagonal lines
+		with 2*diagonalRadius+1 pixels each. 'diagonalRadius'=0 results in a
+		rectangle. With diagonal lines, both 'xRadius' and 'yRadius' should be
+		1 or more, otherwise the kernel has holes. */
+	public MinMaxFilter(int xRadius, int yRadius, int diagonalRadius) {
+		if (xRadius<0 || yRadius<0 || diagonalRadius<0)
+			throw new IllegalArgumentException("Negative radius");
+		this.xRadius = xRadius;
+		this.yRadius = yRadius;
+		this.diagonalRadius = diagonalRadius;
+	}
+
+	/** Sets the value assumed for pixels outside of the image, e.g. the
+		background for binary erosion. With the default, NaN,
+		out-of-image pixels are ignored. */
+	public void setOutsideValue(double value) {
+		outsideValue = value;
+	}
+
+	/** Sets the number of threads; the default is Prefs.getThreads(). */
+	public void setNThreads(int nThreads) {
+		this.nThreads = Math.max(nThreads, 1);
+	}
+
+	/** Applies the MIN, MAX, OPEN or CLOSE filter to all channels of 'ip'. */
+	public void filter(ImageProcessor ip, int type) {
+		for (int ch=0; ch<ip.getNChannels(); ch++)
+			filter(ip, ch, type);
+	}
+
+	/** Applies the MIN, MAX, OPEN or CLOSE filter to one channel of 'ip'
+		(the channel number is ignored unless 'ip' is a ColorProcessor). */
+	public void filter(ImageProcessor ip, int channel, int type) {
+		boolean twoSteps = type==OPEN || type==CLOSE;
+		int steps = twoSteps?2:1;
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle roi = ip.getRoi();
+		int xExtent = xRadius + 2*diagonalRadius;
+		int yExtent = yRadius + 2*diagonalRadius;
+		// The kernel covers the same pixels of the image with a smaller diagonal radius
+		// if the rectangle part leaves less than that to cover. Out-of-image pixels are
+		// only needed as intermediate results of the diagonal lines.
+		int needed = Math.max(width-1-xRadius, 0) + Math.max(height-1-yRadius, 0);
+		int diagonal = Math.min(diagonalRadius, needed/2+1);
+		int margin = 2*diagonal;
+		// the buffer contains all pixels that can influence the roi, except for the outside value
+		long x1 = Math.max((long)roi.x-(long)steps*xExtent, -margin);
+		long y1 = Math.max((long)roi.y-(long)steps*yExtent, -margin);
+		long x2 = Math.min((long)roi.x+roi.width+(long)steps*xExtent, width+margin);
+		long y2 = Math.min((long)roi.y+roi.height+(long)steps*yExtent, height+margin);
+		Rectangle rect = new Rectangle((int)x1, (int)y1, (int)(x2-x1), (int)(y2-y1));
+		FloatProcessor fp = ip.toFloat(channel, null);
+		float[] pixels = (float[])fp.getPixels();
+		float[] buffer = new float[rect.width*rect.height];
+		Rectangle inside = rect.intersection(new Rectangle(width, height));
+		boolean max = type==MAX || type==CLOSE;
+		fillOutside(buffer, rect, inside, max);
+		for (int y=inside.y; y<inside.y+inside.height; y++)
+			System.arraycopy(pixels, inside.x+y*width, buffer, inside.x-rect.x+(y-rect.y)*rect.width, inside.width);
+		filter(buffer, rect.width, rect.height, diagonal, max);
+		applyOutsideValue(buffer, rect, inside, width, height, xExtent, yExtent, max);
+		if (twoSteps) {
+			fillOutside(buffer, rect, inside, !max);
+			filter(buffer, rect.width, rect.height, diagonal, !max);
+			applyOutsideValue(buffer, rect, inside, width, height, xExtent, yExtent, !max);
+		}
+		for (int y=roi.y; y<roi.y+roi.height; y++)
+			System.arraycopy(buffer, roi.x-rect.x+(y-rect.y)*rect.width, pixels, roi.x+y*width, roi.width);
+		ip.setPixels(channel, fp);
+	}
+
+	/** Sets the buffer pixels outside of the image to a value that does not
+		affect the filter result; the outside value is applied afterwards. */
+	private void fillOutside(float[] buffer, Rectangle rect, Rectangle inside, boolean max) {
+		if (inside.equals(rect))
+			return;
+		float value = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+		int x1 = inside.x-rect.x, x2 = x1+inside.width;
+		for (int y=0, p=0; y<rect.height; y++, p+=rect.width) {
+			if (y<inside.y-rect.y || y>=inside.y+inside.height-rect.y || inside.isEmpty())
+				Arrays.fill(buffer, p, p+rect.width, value);
+			else {
+				Arrays.fill(buffer, p, p+x1, value);
+				Arrays.fill(buffer, p+x2, p+rect.width, value);
+			}
+		}
+	}
+
+	/** Sets the pixels of the image in the buffer whose kernel extends beyond the
+		image edge to the minimum (or maximum) of their value and the outside value. */
+	private void applyOutsideValue(float[] buffer, Rectangle rect, Rectangle inside, int width, int height,
+			int xExtent, int yExtent, boolean max) {
+		if (Double.isNaN(outsideValue))
+			return;
+		float value = (float)outsideValue;
+		int xEnd = inside.x+inside.width;
+		for (int y=inside.y; y<inside.y+inside.height; y++) {
+			int offset = (y-rect.y)*rect.width - rect.x;
+			if (y<yExtent || y>=height-yExtent)
+				setOutsideValue(buffer, offset+inside.x, offset+xEnd, value, max);
+			else {
+				int left = Math.max(Math.min(xExtent, xEnd), inside.x);   // end of the left edge
+				setOutsideValue(buffer, offset+inside.x, offset+left, value, max);
+				setOutsideValue(buffer, offset+Math.max(width-xExtent, left), offset+xEnd, value, max);
+			}
+		}
+	}
+
+	private static void setOutsideValue(float[] buffer, int from, int to, float value, boolean max) {
+		for (int p=from; p<to; p++) {
+			if (max ? buffer[p]<value : buffer[p]>value)
+				buffer[p] = value;
+		}
+	}
+
+	/** Filters the whole buffer, using all line directions of the kernel,
+		with 'diagonal' as the radius of the diagonal lines. The maximum is
+		calculated as the negative minimum of the negative values. */
+	private void filter(float[] buffer, int width, int height, int diagonal, boolean max) {
+		if (max)
+			negate(buffer);
+		if (diagonal>0) {
+			filterLines(buffer, width, height, 1, 1, diagonal);
+			filterLines(buffer, width, height, -1, 1, diagonal);
+		}
+		if (xRadius>0)
+			filterLines(buffer, width, height, 1, 0, xRadius);
+		if (yRadius>0)
+			filterLines(buffer, width, height, 0, 1, yRadius);
+		if (max)
+			negate(buffer);
+	}
+
+	private static void negate(float[] buffer) {
+		for (int i=0; i<buffer.length; i++)
+			buffer[i] = -buffer[i];
+	}
+
+	/** Applies the 1D minimum with a window of 2*radius+1 pixels along all
+		lines with direction (dx, dy), where dy=1 for all but horizontal lines.
+		The lines are distributed among the threads. */
+	private void filterLines(final float[] buffer, final int width, final int height,
+			final int dx, final int dy, final int radius) {
+		final int nLines = dy==0 ? height : (dx==0 ? width : width+height-1);
+		int nThreads = Math.min(this.nThreads, (int)Math.max(1L, (long)width*height/10000));
+		final AtomicInteger nextLine = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					int maxLength = Math.max(width, height);
+					float[] line = new float[maxLength];
+					float[] g = new float[maxLength];
+					float[] h = new float[maxLength];
+					for (int i=nextLine.getAndIncrement(); i<nLines; i=nextLine.getAndIncrement()) {
+						int x0, y0, length;      // start point and number of pixels of the line
+						if (dy==0) {
+							x0 = 0; y0 = i; length = width;
+						} else if (dx==0) {
+							x0 = i; y0 = 0; length = height;
+						} else if (i<width) {    // diagonal lines starting at the top
+							x0 = i; y0 = 0;
+							length = dx>0 ? Math.min(width-x0, height) : Math.min(x0+1, height);
+						} else {                 // diagonal lines starting at the left or right edge
+							x0 = dx>0 ? 0 : width-1; y0 = i-width+1;
+							length = Math.min(height-y0, width);
+						}
+						int p0 = x0 + y0*width;
+						int stride = dx + dy*width;
+						for (int j=0, p=p0; j<length; j++, p+=stride)
+							line[j] = buffer[p];
+						lineMin(line, length, radius, g, h);
+						for (int j=0, p=p0; j<length; j++, p+=stride)
+							buffer[p] = line[j];
+					}
+					return null;
+				}
+			};
+		}
+		if (nThreads==1)
+			try {callables[0].call();} catch (Exception e) {IJ.handleException(e);}
+		else
+			ThreadUtil.startAndJoin(callables);
+	}
+
+	/** The van Herk/Gil-Werman algorithm: replaces each value of 'line' by the
+		minimum of the values within +/- radius. With blocks of 2*radius+1 pixels,
+		'g' holds the running minimum from the start of the block and 'h' the
+		running minimum towards the end of the block. Each window then covers
+		the end of one block and the start of the next one, so its minimum
+		is that of one 'h' and one 'g' value. */
+	static void lineMin(float[] line, int length, int radius, float[] g, float[] h) {
+		int k = 2*radius + 1;
+		for (int start=0; start<length; start+=k) {
+			int end = Math.min(start+k, length) - 1;
+			float min = line[start];
+			g[start] = min;
+			for (int i=start+1; i<=end; i++) {
+				float v = line[i];
+				if (v<min) min = v;
+				g[i] = min;
+			}
+			min = line[end];
+			h[end] = min;
+			for (int i=end-1; i>=start; i--) {
+				float v = line[i];
+				if (v<min) min = v;
+				h[i] = min;
+			}
+		}
+		for (int i=0; i<length; i++) {
+			int lo = Math.max(i-radius, 0);
+			int hi = Math.min(i+radius, length-1);
+			float min;
+			if (lo%k==0)                // window starts at a block boundary
+				min = g[hi];
+			else if (lo/k==hi/k)        // window ends at the end of the (last) block
+				min = h[lo];
+			else {
+				float vg = g[hi], vh = h[lo];
+				min = vg<vh ? vg : vh;
+			}
+			line[i] = min;
+		}
+	}
+
+}
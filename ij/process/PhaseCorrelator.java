@@ -0,0 +1,193 @@
+package ij.process;
+import ij.*;
+
+/** This class determines the translation between images by phase correlation.
+	The images are multiplied with a Hann window (to suppress the edges),
+	zero-padded to a square with a size suitable for the FHT and transformed.
+	The normalized cross-power spectrum of an image and the reference is
+	transformed back; its maximum is at the shift of the image relative to
+	the reference. The position of the maximum is refined by fitting a
+	parabola through the maximum and its neighbors.
+	<p>
+	By default, the cross-power spectrum is divided by the square root of its
+	magnitude, not by the magnitude as in pure phase correlation. Pure phase
+	correlation gives a sharper peak, but all frequencies have the same weight,
+	which makes it sensitive to noise, and the high frequencies of most
+	microscopy images are mainly noise. See setNormalization.
+	<p>
+	The spectrum of the reference is calculated only once. After setting
+	the reference, the getShift methods may be called from several threads
+	in parallel. Shifts of more than half the (padded) image size are not
+	detected; they appear as shifts in the opposite direction.
+*/
+public class PhaseCorrelator {
+	private int width, height, size;
+	private float[] xWindow, yWindow;
+	private float[] reference;        // Hartley spectrum of the reference
+	private boolean subpixel = true;
+	private double normalization = 0.5;
+	private int nThreads = Prefs.getThreads();
+
+	/** Creates a PhaseCorrelator for images with the given size. */
+	public PhaseCorrelator(int width, int height) {
+		this.width = width;
+		this.height = height;
+		size = FHT.getFastSize(Math.max(width, height));
+		xWindow = makeWindow(width);
+		yWindow = makeWindow(height);
+	}
+
+	/** Sets the reference image. */
+	public void setReference(ImageProcessor ip) {
+		reference = getSpectrum(ip);
+	}
+
+	/** Sets the reference as a spectrum obtained with getSpectrum. Use this
+		if the same images serve as reference and as images to register. */
+	public void setReferenceSpectrum(float[] spectrum) {
+		reference = spectrum;
+	}
+
+	/** Whether the shift should be determined with subpixel accuracy (default true).
+		Otherwise, the shifts are integers. */
+	public void setSubpixel(boolean subpixel) {
+		this.subpixel = subpixel;
+	}
+
+	/** Sets the exponent of the magnitude that the cross-power spectrum is
+		divided by: 1 for pure phase correlation, 0 for cross-correlation.
+		The default is 0.5. */
+	public void setNormalization(double exponent) {
+		normalization = exponent;
+	}
+
+	/** Sets the number of threads for the transforms; the default is
+		Prefs.getThreads(). Use 1 when calling from parallel threads. */
+	public void setNThreads(int nThreads) {
+		this.nThreads = Math.max(nThreads, 1);
+	}
+
+	/** Returns the size of the (square) transforms. */
+	public int getTransformSize() {
+		return size;
+	}
+
+	/** Returns the Hartley transform of the windowed image. For RGB images,
+		the brightness is used. */
+	public float[] getSpectrum(ImageProcessor ip) {
+		if (ip.getWidth()!=width || ip.getHeight()!=height)
+			throw new IllegalArgumentException("Image size must be "+width+"x"+height);
+		if (ip instanceof ColorProcessor)
+			ip = ip.convertToByte(false);
+		double sum=0, sumWeights=0;
+		for (int y=0; y<height; y++) {
+			for (int x=0; x<width; x++) {
+				double w = xWindow[x]*yWindow[y];
+				sum += ip.getf(x, y)*w;
+				sumWeights += w;
+			}
+		}
+		float mean = (float)(sum/sumWeights);   // weighted, so that the windowed image has no DC component
+		float[] h = new float[size*size];
+		for (int y=0; y<height; y++) {
+			for (int x=0, p=y*size; x<width; x++, p++)
+				h[p] = (ip.getf(x, y)-mean)*xWindow[x]*yWindow[y];
+		}
+		FHT fht = new FHT();
+		fht.setNThreads(nThreads);
+		fht.rc2DFHT(h, false, size);
+		return h;
+	}
+
+	/** Returns the shift of 'ip' relative to the reference as {dx, dy, peak}.
+		Translating 'ip' by (-dx, -dy) aligns it with the reference. 'peak' is the
+		height of the correlation peak, between 0 and 1; low values indicate that
+		the result is not reliable. */
+	public double[] getShift(ImageProcessor ip) {
+		return getShift(getSpectrum(ip));
+	}
+
+	/** Returns the shift of the image with the given spectrum relative to the
+		reference, as {dx, dy, peak}. See getShift(ImageProcessor). */
+	public double[] getShift(float[] spectrum) {
+		if (reference==null)
+			throw new IllegalStateException("No reference");
+		return getShift(spectrum, reference);
+	}
+
+	/** Returns the shift of the image with the given spectrum relative to the
+		image with the spectrum 'referenceSpectrum', as {dx, dy, peak}.
+		The reference set with setReference is not used. */
+	public double[] getShift(float[] spectrum, float[] referenceSpectrum) {
+		int n = size;
+		float[] h = FHT.getBuffer(n*n);
+		double maxPeak = crossPowerSpectrum(spectrum, referenceSpectrum, h, n, normalization);
+		FHT fht = new FHT();
+		fht.setNThreads(nThreads);
+		fht.rc2DFHT(h, true, n);
+		int pMax = 0;
+		for (int p=1; p<n*n; p++)
+			if (h[p]>h[pMax]) pMax = p;
+		int x = pMax%n, y = pMax/n;
+		double peak = h[pMax];
+		double dx = x, dy = y;
+		if (subpixel) {
+			dx += parabolaMax(h[(x+n-1)%n+y*n], peak, h[(x+1)%n+y*n]);
+			dy += parabolaMax(h[x+((y+n-1)%n)*n], peak, h[x+((y+1)%n)*n]);
+		}
+		FHT.releaseBuffer(h);
+		if (dx>n/2) dx -= n;       // the correlation is periodic
+		if (dy>n/2) dy -= n;
+		return new double[] {dx, dy, maxPeak>0 ? peak/maxPeak : 0};
+	}
+
+	/** The Hartley transform of the cross-power spectrum of h1 and h2, i.e., the
+		product of the Fourier transform of h1 and the complex conjugate of the
+		Fourier transform of h2, divided by its magnitude to the power of 'exponent'.
+		Since the magnitude is the same for k and -k, the normalization does not mix
+		the even and odd parts and can be done on the Hartley product directly.
+		Returns the highest possible value of the inverse transform, which would be
+		reached if the images were identical up to a shift. */
+	private static double crossPowerSpectrum(float[] h1, float[] h2, float[] out, int n, double exponent) {
+		double sum = 0;
+		for (int r=0; r<n; r++) {
+			int rowMod = (n - r) % n;
+			for (int c=0; c<n; c++) {
+				int colMod = (n - c) % n;
+				int p = r*n + c, pMod = rowMod*n + colMod;
+				float h2e = (h2[p] + h2[pMod]) * 0.5f;
+				float h2o = (h2[p] - h2[pMod]) * 0.5f;
+				float product = h1[p]*h2e - h1[pMod]*h2o;
+				double power1 = 0.5*((double)h1[p]*h1[p] + (double)h1[pMod]*h1[pMod]);
+				double power2 = 0.5*((double)h2[p]*h2[p] + (double)h2[pMod]*h2[pMod]);
+				double magnitude = Math.sqrt(power1*power2);
+				if (magnitude>0) {
+					double divisor = exponent==0.5 ? Math.sqrt(magnitude) : Math.pow(magnitude, exponent);
+					out[p] = (float)(product/divisor);
+					sum += magnitude/divisor;
+				} else
+					out[p] = 0f;
+			}
+		}
+		return sum/((double)n*n);
+	}
+
+	/** Returns the offset of the maximum of a parabola through three equidistant
+		points, relative to the center point, or 0 if there is no maximum. */
+	private static double parabolaMax(double left, double center, double right) {
+		double curvature = left + right - 2*center;
+		if (curvature>=0)
+			return 0;
+		double offset = 0.5*(left - right)/curvature;
+		return Math.max(-0.5, Math.min(0.5, offset));
+	}
+
+	/** A Hann window: 0 at the edges, 1 in the center */
+	private static float[] makeWindow(int length) {
+		float[] window = new float[length];
+		for (int i=0; i<length; i++)
+			window[i] = length<3 ? 1f : (float)(0.5 - 0.5*Math.cos(2*Math.PI*(i+0.5)/length));
+		return window;
+	}
+
+}
@@ -0,0 +1,419 @@
+package ij.process;
+import ij.*;
+import ij.util.ThreadUtil;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This class implements the 3D mean, median, minimum, maximum, variance
+	and local maximum filters of the Process/Filters submenu. The ellipsoid
+	kernel is decomposed into x-runs, one for each (y,z) offset, so that
+	moving the kernel by one pixel only removes the first voxel and adds
+	the voxel after the end of each run. The kernel statistics are updated
+	incrementally: running sums for mean and variance, with NaN and
+	infinite voxels counted separately so that they only affect the result
+	while they are in the kernel, a histogram for
+	8-bit and 16-bit stacks and, for the 32-bit median, a sorted list that
+	is updated with one merge pass per pixel. The 32-bit minimum and
+	maximum are found by scanning the runs. Voxels
+	outside of the stack are not part of the neighborhood.
+	The filter() method processes the planes of the stack in parallel.
+*/
+public class RankFilters3D {
+	private int[] dy, dz, rx;   // the kernel runs
+	private int nRuns;
+
+	/** Creates a filter with an ellipsoid kernel with the specified radii. */
+	public RankFilters3D(float radx, float rady, float radz) {
+		int vx = (int)Math.ceil(radx);
+		int vy = (int)Math.ceil(rady);
+		int vz = (int)Math.ceil(radz);
+		double rx2 = radx*radx;
+		double ry2 = rady*rady;
+		double rz2 = radz*radz;
+		rx2 = rx2!=0?1.0/rx2:0;
+		ry2 = ry2!=0?1.0/ry2:0;
+		rz2 = rz2!=0?1.0/rz2:0;
+		int n = (2*vy+1)*(2*vz+1);
+		dy = new int[n]; dz = new int[n]; rx = new int[n];
+		for (int k=-vz; k<=vz; k++) {
+			for (int j=-vy; j<=vy; j++) {
+				int extent = -1;
+				for (int i=0; i<=vx; i++) {
+					double dist = ((double)(i*i))*rx2 + ((double)(j*j))*ry2 + ((double)(k*k))*rz2;
+					if (dist<=1.0) extent = i;
+				}
+				if (extent>=0) {
+					dy[nRuns]=j; dz[nRuns]=k; rx[nRuns]=extent;
+					nRuns++;
+				}
+			}
+		}
+	}
+
+	/** Filters 'stack' and returns the result, a stack with the same
+		bit depth (32 bits for StackProcessor.FILTER_VAR). 'filter' is
+		one of the StackProcessor.FILTER_ constants. RGB stacks are
+		not supported. */
+	public ImageStack filter(final ImageStack stack, final int filter) {
+		if (stack.getBitDepth()==24)
+			throw new IllegalArgumentException("RGB stacks are not supported");
+		final int depth = stack.size();
+		int bitDepth = filter==StackProcessor.FILTER_VAR?32:stack.getBitDepth();
+		final ImageStack out = ImageStack.create(stack.getWidth(), stack.getHeight(), depth, bitDepth);
+		final AtomicInteger nextZ = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), depth);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					Kernel kernel = new Kernel(stack, filter);
+					for (int z=nextZ.getAndIncrement(); z<depth; z=nextZ.getAndIncrement()) {
+						filterPlane(stack, out, z, filter, kernel);
+						IJ.showProgress(done.incrementAndGet(), depth);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		return out;
+	}
+
+	/** Filters the planes 'zmin' to 'zmax'-1 of 'stack' using the current
+		thread and writes the result to the same planes of 'out'. */
+	public void filter(ImageStack stack, ImageStack out, int filter, int zmin, int zmax) {
+		Kernel kernel = new Kernel(stack, filter);
+		zmin = Math.max(zmin, 0);
+		zmax = Math.min(zmax, stack.size());
+		for (int z=zmin; z<zmax; z++)
+			filterPlane(stack, out, z, filter, kernel);
+	}
+
+	private void filterPlane(ImageStack stack, ImageStack out, int z, int filter, Kernel kernel) {
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int depth = stack.size();
+		Object[] planes = stack.getImageArray();
+		Object outPixels = out.getPixels(z+1);
+		Object centerPlane = planes[z];
+		Object[] runPlanes = new Object[nRuns];
+		int[] runOffset = new int[nRuns];
+		int[] runExtent = new int[nRuns];
+		boolean scan = kernel.mode==Kernel.SCAN;
+		for (int y=0; y<height; y++) {
+			int n = 0;
+			for (int r=0; r<nRuns; r++) {
+				int zz=z+dz[r], yy=y+dy[r];
+				if (zz<0 || zz>=depth || yy<0 || yy>=height)
+					continue;
+				runPlanes[n] = planes[zz];
+				runOffset[n] = yy*width;
+				runExtent[n] = rx[r];
+				n++;
+			}
+			for (int r=0; r<n; r++) {
+				int x2 = Math.min(runExtent[r], width-1);
+				for (int x=0; x<=x2; x++)
+					kernel.add(runPlanes[r], runOffset[r]+x);
+			}
+			int offset = y*width;
+			for (int x=0; x<width; x++) {
+				if (x>0) {
+					for (int r=0; r<n; r++) {
+						int xOut = x-1-runExtent[r];
+						if (xOut>=0)
+							kernel.remove(runPlanes[r], runOffset[r]+xOut);
+						int xIn = x+runExtent[r];
+						if (xIn<width)
+							kernel.add(runPlanes[r], runOffset[r]+xIn);
+					}
+				}
+				double value;
+				switch (filter) {
+					case StackProcessor.FILTER_MEAN: value = kernel.getMean(); break;
+					case StackProcessor.FILTER_MEDIAN: value = kernel.getMedian(); break;
+					case StackProcessor.FILTER_MIN:
+						value = scan?scan(runPlanes, runOffset, runExtent, n, x, width, false):kernel.getMin();
+						break;
+					case StackProcessor.FILTER_MAX:
+						value = scan?scan(runPlanes, runOffset, runExtent, n, x, width, true):kernel.getMax();
+						break;
+					case StackProcessor.FILTER_VAR: value = kernel.getVariance(); break;
+					case StackProcessor.FILTER_MAXLOCAL:
+						value = kernel.getValue(centerPlane, offset+x);
+						if (scan?!isMaximum(runPlanes, runOffset, runExtent, n, x, width, (float)value):kernel.getMax()>value)
+							value = 0;
+						break;
+					default: value = 0;
+				}
+				putValue(outPixels, offset+x, value);
+			}
+			for (int r=0; r<n; r++) {
+				for (int x=Math.max(width-1-runExtent[r], 0); x<width; x++)
+					kernel.remove(runPlanes[r], runOffset[r]+x);
+			}
+			kernel.clear();  // remove rounding errors of the running sums
+		}
+	}
+
+	/** Returns the minimum or maximum of the 32-bit voxels of the kernel at 'x'. */
+	private static float scan(Object[] runPlanes, int[] runOffset, int[] runExtent, int n, int x, int width, boolean max) {
+		float result = max?-Float.MAX_VALUE:Float.MAX_VALUE;
+		boolean first = true;
+		for (int r=0; r<n; r++) {
+			float[] pixels = (float[])runPlanes[r];
+			int x1 = Math.max(x-runExtent[r], 0);
+			int x2 = Math.min(x+runExtent[r], width-1);
+			for (int i=runOffset[r]+x1, end=runOffset[r]+x2; i<=end; i++) {
+				float v = pixels[i];
+				if (first)
+					{result=v; first=false;}
+				else if (max?v>result:v<result)
+					result = v;
+			}
+		}
+		return result;
+	}
+
+	/** Returns whether no 32-bit voxel of the kernel at 'x' is larger than
+		'value' or NaN, as in ArrayUtil.isMaximum(). */
+	private static boolean isMaximum(Object[] runPlanes, int[] runOffset, int[] runExtent, int n, int x, int width, float value) {
+		for (int r=0; r<n; r++) {
+			float[] pixels = (float[])runPlanes[r];
+			int x1 = Math.max(x-runExtent[r], 0);
+			int x2 = Math.min(x+runExtent[r], width-1);
+			for (int i=runOffset[r]+x1, end=runOffset[r]+x2; i<=end; i++) {
+				if (!(pixels[i]<=value))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/** Sets a voxel, with rounding and clipping as in ImageStack.setVoxel(). */
+	private static void putValue(Object pixels, int i, double value) {
+		if (pixels instanceof float[])
+			((float[])pixels)[i] = (float)value;
+		else if (pixels instanceof byte[]) {
+			if (value>255.0) value = 255.0;
+			else if (value<0.0) value = 0.0;
+			((byte[])pixels)[i] = (byte)(value+0.5);
+		} else {
+			if (value>65535.0) value = 65535.0;
+			else if (value<0.0) value = 0.0;
+			((short[])pixels)[i] = (short)(value+0.5);
+		}
+	}
+
+	/** The voxels currently covered by the kernel. */
+	private static class Kernel {
+		static final int BYTE=0, SHORT=1, FLOAT=2;
+		static final int SUMS=0, HISTOGRAM=1, SORTED=2, SCAN=3;
+		int type, mode;
+		int n;
+		double sum, sum2;  // of the finite voxels
+		int nNaN, nPosInf, nNegInf;
+		int[] histogram;  // 8 and 16-bit
+		int[] coarse;     // 16-bit, counts of 256-value blocks
+		float[] sorted, merged;  // 32-bit median
+		float[] added, removed;  // changes not yet merged into 'sorted'
+		int nSorted, nAdded, nRemoved;
+
+		Kernel(ImageStack stack, int filter) {
+			int bitDepth = stack.getBitDepth();
+			type = bitDepth==8?BYTE:(bitDepth==16?SHORT:FLOAT);
+			if (filter==StackProcessor.FILTER_MEAN || filter==StackProcessor.FILTER_VAR)
+				mode = SUMS;
+			else if (type!=FLOAT)
+				mode = HISTOGRAM;
+			else if (filter==StackProcessor.FILTER_MEDIAN)
+				mode = SORTED;
+			else
+				mode = SCAN;  // 32-bit min and max are found by scanning the kernel runs
+			if (mode==HISTOGRAM) {
+				histogram = new int[type==BYTE?256:65536];
+				if (type==SHORT)
+					coarse = new int[256];
+			} else if (mode==SORTED) {
+				sorted = new float[64]; merged = new float[64];
+				added = new float[64]; removed = new float[64];
+			}
+		}
+
+		void clear() {
+			sum = sum2 = 0.0;
+			nNaN = nPosInf = nNegInf = 0;
+		}
+
+		/** Counts a NaN or infinite voxel that is added ('count'=1)
+			or removed ('count'=-1); these are not in the running sums. */
+		void countNonFinite(double v, int count) {
+			if (v!=v)
+				nNaN += count;
+			else if (v>0)
+				nPosInf += count;
+			else
+				nNegInf += count;
+		}
+
+		float getValue(Object pixels, int i) {
+			switch (type) {
+				case BYTE: return ((byte[])pixels)[i]&255;
+				case SHORT: return ((short[])pixels)[i]&0xffff;
+				default: return ((float[])pixels)[i];
+			}
+		}
+
+		void add(Object pixels, int i) {
+			switch (mode) {
+				case SUMS:
+					double v = getValue(pixels, i);
+					if (Double.isNaN(v) || Double.isInfinite(v))
+						countNonFinite(v, 1);
+					else {
+						sum += v;
+						sum2 += v*v;
+					}
+					break;
+				case HISTOGRAM:
+					if (type==BYTE)
+						histogram[((byte[])pixels)[i]&255]++;
+					else {
+						int iv = ((short[])pixels)[i]&0xffff;
+						histogram[iv]++;
+						coarse[iv>>8]++;
+					}
+					break;
+				case SORTED:
+					if (nAdded==added.length)
+						added = Arrays.copyOf(added, 2*nAdded);
+					added[nAdded++] = ((float[])pixels)[i];
+					break;
+			}
+			n++;
+		}
+
+		void remove(Object pixels, int i) {
+			switch (mode) {
+				case SUMS:
+					double v = getValue(pixels, i);
+					if (Double.isNaN(v) || Double.isInfinite(v))
+						countNonFinite(v, -1);
+					else {
+						sum -= v;
+						sum2 -= v*v;
+					}
+					break;
+				case HISTOGRAM:
+					if (type==BYTE)
+						histogram[((byte[])pixels)[i]&255]--;
+					else {
+						int iv = ((short[])pixels)[i]&0xffff;
+						histogram[iv]--;
+						coarse[iv>>8]--;
+					}
+					break;
+				case SORTED:
+					if (nRemoved==removed.length)
+						removed = Arrays.copyOf(removed, 2*nRemoved);
+					removed[nRemoved++] = ((float[])pixels)[i];
+					break;
+			}
+			n--;
+		}
+
+		/** Updates the sorted list in a single merge pass: the removed
+			values, which are in the list, are skipped and the added
+			values are inserted. */
+		void merge() {
+			if (nAdded==0 && nRemoved==0)
+				return;
+			Arrays.sort(added, 0, nAdded);
+			Arrays.sort(removed, 0, nRemoved);
+			if (merged.length<n)
+				merged = new float[Math.max(n, 2*merged.length)];
+			int j=0, k=0, len=0;
+			for (int i=0; i<nSorted; i++) {
+				float v = sorted[i];
+				if (j<nRemoved && Float.compare(v, removed[j])==0)
+					{j++; continue;}
+				while (k<nAdded && Float.compare(added[k], v)<0)
+					merged[len++] = added[k++];
+				merged[len++] = v;
+			}
+			while (k<nAdded)
+				merged[len++] = added[k++];
+			float[] tmp = sorted;
+			sorted = merged;
+			merged = tmp;
+			nSorted = len;
+			nAdded = nRemoved = 0;
+		}
+
+		double getMean() {
+			if (nNaN>0 || (nPosInf>0 && nNegInf>0))
+				return Double.NaN;
+			else if (nPosInf>0)
+				return Double.POSITIVE_INFINITY;
+			else if (nNegInf>0)
+				return Double.NEGATIVE_INFINITY;
+			return sum/n;
+		}
+
+		double getVariance() {
+			if (n==1)
+				return 0;
+			if (nNaN>0 || nPosInf>0 || nNegInf>0)
+				return Double.NaN;
+			return (sum2-sum*sum/n)/(n-1);
+		}
+
+		/** Returns the value with rank 'k' (0 = minimum). */
+		float get(int k) {
+			if (mode==SORTED) {
+				merge();
+				return sorted[k];
+			}
+			int v = 0;
+			if (coarse!=null) {
+				while (k>=coarse[v>>8]) {
+					k -= coarse[v>>8];
+					v += 256;
+				}
+			}
+			while (k>=histogram[v]) {
+				k -= histogram[v];
+				v++;
+			}
+			return v;
+		}
+
+		double getMin() {
+			return get(0);
+		}
+
+		double getMax() {
+			if (mode==SORTED)
+				return get(n-1);
+			int v = histogram.length-1;
+			if (coarse!=null) {
+				while (coarse[v>>8]==0)
+					v -= 256;
+			}
+			while (histogram[v]==0)
+				v--;
+			return v;
+		}
+
+		/** Returns the median, the mean of the two middle values if 'n' is even. */
+		double getMedian() {
+			if (n%2==1)
+				return get(n/2);
+			else
+				return 0.5f*(get(n/2-1)+get(n/2));
+		}
+	}
+
+}
@@ -121,6 +121,45 @@ public class ShortProcessor extends ImageProcessor {
 		return createBufferedImage();
 	}
 	
+	/** Converts only the pixels of 'srcRect' needed for 'dstWidth' x 'dstHeight' output pixels. */
+	@Override
+	public Image createImage(Rectangle srcRect, int dstWidth, int dstHeight) {
+		if (!minMaxSet)
+			findMinAndMax();
+		boolean thresholding = minThreshold!=NO_THRESHOLD && lutUpdateMode<NO_LUT_UPDATE;
+		int min2=(int)getMin(), max2=(int)getMax();
+		int maxValue = 255;
+		double scale = 256.0/(max2-min2+1);
+		if (thresholding && lutUpdateMode==RED_LUT) {
+			maxValue = 254;
+			scale = 255.0/(max2-min2+1);
+		}
+		int t1 = (int)minThreshold;
+		int t2 = (int)maxThreshold;
+		int[] xOffsets = getSampleOffsets(srcRect.x, srcRect.width, dstWidth);
+		int[] yOffsets = getSampleOffsets(srcRect.y, srcRect.height, dstHeight);
+		byte[] pixels8 = new byte[dstWidth*dstHeight];
+		for (int y=0, i=0; y<dstHeight; y++) {
+			int offset = yOffsets[y]*width;
+			for (int x=0; x<dstWidth; x++, i++) {
+				int rawValue = pixels[offset+xOffsets[x]]&0xffff;
+				int value = rawValue-min2;
+				if (value<0) value = 0;
+				value = (int)(value*scale+0.5);
+				if (value>maxValue) value = maxValue;
+				if (thresholding) {
+					boolean inside = rawValue>=t1 && rawValue<=t2;
+					if (inside)
+						value = 255;
+					else if (lutUpdateMode==BLACK_AND_WHITE_LUT)
+						value = 0;
+				}
+				pixels8[i] = (byte)value;
+			}
+		}
+		return createImage(pixels8, dstWidth, dstHeight);
+	}
+
 	// create 8-bit image by linearly scaling from 16-bits to 8-bits
 	private byte[] create8BitImage(boolean thresholding) {
 		int size = width*height;
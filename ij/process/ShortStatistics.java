@@ -34,23 +34,30 @@ public class ShortStatistics extends ImageStatistics {
 			saveThreshold(minThreshold, maxThreshold, cal);
 		Rectangle r = ip.getRoi();
 		boolean smallRoi = r.width*r.height<250000;		
-		int[] hist = smallRoi&&(ip instanceof ShortProcessor)?((ShortProcessor)ip).getHistogram2():ip.getHistogram();
+		float[] cTable = cal!=null?cal.getCTable():null;
+		boolean ellipse = (mOptions&ELLIPSE)!=0 || (mOptions&SHAPE_DESCRIPTORS)!=0;
+		boolean moments = (mOptions&(CENTER_OF_MASS|SKEWNESS|KURTOSIS))!=0;
+		StatisticsKernel kernel = new StatisticsKernel(ip, minThreshold, maxThreshold, cTable);
+		kernel.setShortHistogram2(smallRoi);
+		kernel.setCentroid(!ellipse && (mOptions&CENTROID)!=0);
+		kernel.setMoments(moments);
+		kernel.run();           // histogram, centroid and moments in one pass
+		int[] hist = kernel.histogram;
 		if (maxThreshold>hist.length-1)
 			maxThreshold = hist.length-1;
 		histogram16 = hist;
-		float[] cTable = cal!=null?cal.getCTable():null;
 		getRawMinAndMax(hist, minThreshold, maxThreshold);
 		histMin = min;
 		histMax = max;
 		getStatistics(ip, hist, (int)min, (int)max, cTable);
 		if ((mOptions&MODE)!=0)
 			getMode();
-		if ((mOptions&ELLIPSE)!=0 || (mOptions&SHAPE_DESCRIPTORS)!=0)
+		if (ellipse)
 			fitEllipse(ip, mOptions);
 		else if ((mOptions&CENTROID)!=0)
-			getCentroid(ip, minThreshold, maxThreshold);
-		if ((mOptions&(CENTER_OF_MASS|SKEWNESS|KURTOSIS))!=0)
-			calculateMoments(ip, minThreshold, maxThreshold, cTable);
+			setCentroid(kernel);
+		if (moments)
+			setMoments(kernel);
 		if ((mOptions&MIN_MAX)!=0 && cTable!=null)
 			getCalibratedMinAndMax(hist, (int)min, (int)max, cTable);
 		if ((mOptions&MEDIAN)!=0) {
@@ -133,79 +140,6 @@ public class ShortStatistics extends ImageStatistics {
         }
 	}
 
-	void getCentroid(ImageProcessor ip, int minThreshold, int maxThreshold) {
-		short[] pixels = (short[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		boolean limit = minThreshold>0 || maxThreshold<65535;
-		int count=0, i, mi, v;
-		double xsum=0.0, ysum=0.0;
-		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
-					if (limit) {
-						v = pixels[i]&0xffff;
-						if (v>=minThreshold&&v<=maxThreshold) {
-							count++;
-							xsum+=x;
-							ysum+=y;
-						}
-					} else {
-						count++;
-						xsum+=x;
-						ysum+=y;
-					}
-				}
-				i++;
-			}
-		}
-		xCentroid = xsum/count+0.5;
-		yCentroid = ysum/count+0.5;
-		if (cal!=null) {
-			xCentroid = cal.getX(xCentroid);
-			yCentroid = cal.getY(yCentroid, height);
-		}
-	}
-
-	void calculateMoments(ImageProcessor ip,  int minThreshold, int maxThreshold, float[] cTable) {
-		short[] pixels = (short[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		int i, mi, iv;
-		double v, v2, sum1=0.0, sum2=0.0, sum3=0.0, sum4=0.0, xsum=0.0, ysum=0.0;
-		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
-					iv = pixels[i]&0xffff;
-					if (iv>=minThreshold&&iv<=maxThreshold) {
-						v = cTable!=null?cTable[iv]:iv;
-						v2 = v*v;
-						sum1 += v;
-						sum2 += v2;
-						sum3 += v*v2;
-						sum4 += v2*v2;
-						xsum += x*v;
-						ysum += y*v;
-					}
-				}
-				i++;
-			}
-		}
-	    double mean2 = mean*mean;
-	    double variance = sum2/pixelCount - mean2;
-	    double sDeviation = Math.sqrt(variance);
-	    skewness = ((sum3 - 3.0*mean*sum2)/pixelCount + 2.0*mean*mean2)/(variance*sDeviation);
-	    kurtosis = (((sum4 - 4.0*mean*sum3 + 6.0*mean2*sum2)/pixelCount - 3.0*mean2*mean2)/(variance*variance)-3.0);
-		xCenterOfMass = xsum/sum1+0.5;
-		yCenterOfMass = ysum/sum1+0.5;
-		if (cal!=null) {
-			xCenterOfMass = cal.getX(xCenterOfMass);
-			yCenterOfMass = cal.getY(yCenterOfMass, height);
-		}
-	}
-
 	void getCalibratedMinAndMax(int[] hist, int minValue, int maxValue, float[] cTable) {
 		min = Double.MAX_VALUE;
 		max = -Double.MAX_VALUE;
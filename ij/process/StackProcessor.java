@@ -3,7 +3,6 @@ import java.awt.*;
 import ij.*;
 import ij.process.*;
 import ij.macro.Interpreter;
-import ij.util.ArrayUtil;
 import ij.plugin.Filters3D;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -19,7 +18,6 @@ public class StackProcessor {
 	double xScale, yScale;
 	int[] table;
 	double fillValue;
-	float[] voxels;
 	    
     /** Constructs a StackProcessor from a stack. */
     public StackProcessor(ImageStack stack) {
@@ -210,60 +208,7 @@ public class StackProcessor {
  	}	
  	
     /**
-     * Thomas Boudier Create a kernel neighorhood as an ellipsoid
-     *
-     * @param radx Radius x of the ellipsoid
-     * @param rady Radius x of the ellipsoid
-     * @param radz Radius x of the ellipsoid
-     * @return The kernel as an array
-     */
-    private int[] createKernelEllipsoid(float radx, float rady, float radz) {
-        int vx = (int) Math.ceil(radx);
-        int vy = (int) Math.ceil(rady);
-        int vz = (int) Math.ceil(radz);
-        int[] ker = new int[(2 * vx + 1) * (2 * vy + 1) * (2 * vz + 1)];
-        double dist;
-
-        double rx2 = radx * radx;
-        double ry2 = rady * rady;
-        double rz2 = radz * radz;
-
-        if (rx2 != 0) {
-            rx2 = 1.0 / rx2;
-        } else {
-            rx2 = 0;
-        }
-        if (ry2 != 0) {
-            ry2 = 1.0 / ry2;
-        } else {
-            ry2 = 0;
-        }
-        if (rz2 != 0) {
-            rz2 = 1.0 / rz2;
-        } else {
-            rz2 = 0;
-        }
-
-        int idx = 0;
-        for (int k = -vz; k <= vz; k++) {
-            for (int j = -vy; j <= vy; j++) {
-                for (int i = -vx; i <= vx; i++) {
-                    dist = ((double) (i * i)) * rx2 + ((double) (j * j)) * ry2 + ((double) (k * k)) * rz2;
-                    if (dist <= 1.0) {
-                        ker[idx] = 1;
-                    } else {
-                        ker[idx] = 0;
-                    }
-                    idx++;
-                }
-            }
-        }
-
-        return ker;
-    }
-
-    /**
-     * 3D filter using threads
+     * 3D filter of the planes zmin to zmax-1, using the current thread
      *
      * @param out
      * @param radx Radius of mean filter in x
@@ -272,98 +217,10 @@ public class StackProcessor {
      * @param zmin
      * @param zmax
      * @param filter
+     * @see RankFilters3D
      */
     public void filter3D(ImageStack out, float radx, float rady, float radz, int zmin, int zmax, int filter) {
-        int[] ker = this.createKernelEllipsoid(radx, rady, radz);
-        int nb = 0;
-        for (int i=0; i<ker.length; i++)
-            nb += ker[i];
-        if (zmin<0)
-            zmin = 0;
-        if (zmax>stack.size())
-            zmax = stack.size();
-        int sizex = stack.getWidth();
-        int sizey = stack.getHeight();
-        double value;
-        for (int z=zmin; z<zmax; z++) {
-            if (zmin==0) IJ.showProgress(z+1, zmax);
-            for (int y=0; y<sizey; y++) {
-                for (int x=0; x<sizex; x++) {
-                    ArrayUtil tab = getNeighborhood(ker, nb, x, y, z, radx, rady, radz);
-                    switch (filter) {
-						case FILTER_MEAN:
-							out.setVoxel(x, y, z, tab.getMean()); break;
-						case FILTER_MEDIAN:
-							out.setVoxel(x, y, z, tab.medianSort()); break;
-						case FILTER_MIN:
-							out.setVoxel(x, y, z, tab.getMinimum()); break;
-						case FILTER_MAX:
-							out.setVoxel(x, y, z, tab.getMaximum()); break;
-						case FILTER_VAR:
-							out.setVoxel(x, y, z, tab.getVariance()); break;
-						case FILTER_MAXLOCAL:
-							value = stack.getVoxel(x, y, z);
-							if (tab.isMaximum(value))
-								out.setVoxel(x, y, z, value);
-							else
-								out.setVoxel(x, y, z, 0);
-							break;
-                    } //switch
-                }  //x
-            } //y
-        } //z
-    }
-
-    /*
-    private ArrayUtil getNeighborhood(int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        int vx = (int)Math.ceil(radx);
-        int vy = (int)Math.ceil(rady);
-        int vz = (int)Math.ceil(radz);
-        int x0=x-vx, y0=y-vy, z0=z-vz;
-        int w=vx*2, h=vy*2, d=vz*2;
-		if (x0<0 || x0+w>stack.getWidth() || y0<0 || y0+h>stack.getHeight() || z0<0 || z0+d>stack.size())
-			return getEdgeNeighborhood(ker, nbval, x, y, z, radx, rady, radz);
-        voxels = stack.getVoxels(x0, y0, z0, w, h, d, voxels);
-		return new ArrayUtil(voxels);
+        new RankFilters3D(radx, rady, radz).filter(stack, out, filter, zmin, zmax);
     }
-    */
 
-    /**
-     * Gets the neighboring attribute of the Image3D with a kernel as a array
-     *
-     * @param ker The kernel array (>0 ok)
-     * @param nbval The number of non-zero values
-     * @param x Coordinate x of the pixel
-     * @param y Coordinate y of the pixel
-     * @param z Coordinate z of the pixel
-     * @param radx Radius x of the neighboring
-     * @param radz Radius y of the neighboring
-     * @param rady Radius z of the neighboring
-     * @return The values of the nieghbor pixels inside an array
-     */
-    private ArrayUtil getNeighborhood(int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        ArrayUtil pix = new ArrayUtil(nbval);
-        int vx = (int) Math.ceil(radx);
-        int vy = (int) Math.ceil(rady);
-        int vz = (int) Math.ceil(radz);
-        int index = 0;
-        int c = 0;
-        int sizex = stack.getWidth();
-        int sizey = stack.getHeight();
-        int sizez = stack.size();
-        for (int k = z - vz; k <= z + vz; k++) {
-            for (int j = y - vy; j <= y + vy; j++) {
-                for (int i = x - vx; i <= x + vx; i++) {
-					if (ker[c]>0 && i>=0 && j>=0 && k>=0 && i<sizex && j<sizey && k<sizez) {
-						pix.putValue(index, (float)stack.getVoxel(i, j, k));
-						index++;
-					}
-                    c++;
-                }
-            }
-        }
-        pix.setSize(index);
-        return pix;
-    }
-    
  }
@@ -3,9 +3,20 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.plugin.filter.Analyzer;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Statistics, including the histogram, of a stack. */
+/** Statistics, including the histogram, of a stack.
+	The slices are distributed among threads; each thread accumulates
+	min, max, moments and histogram of its slices, and these are merged
+	at the end. For 8-bit and 16-bit stacks, the full-resolution histogram
+	of each slice is determined in a single pass and all statistics are
+	derived from it; float and RGB stacks need a second pass unless the
+	histogram range is given. Slices of virtual stacks are read by one
+	thread at a time, while the others process the slices already read,
+	so at most one slice per thread is held in memory. */
 public class StackStatistics extends ImageStatistics {
 	
 	/** Creates a StackStatistics object from a stack, using 256 
@@ -28,7 +39,7 @@ public class StackStatistics extends ImageStatistics {
 	}
 
     void doCalculations(ImagePlus imp,  int bins, double histogramMin, double histogramMax) {
-       ImageProcessor ip = imp.getProcessor();
+        ImageProcessor ip = imp.getProcessor();
 		boolean limitToThreshold = (Analyzer.getMeasurements()&LIMIT)!=0;
 		double minThreshold = -Float.MAX_VALUE;
 		double maxThreshold = Float.MAX_VALUE;
@@ -41,14 +52,9 @@ public class StackStatistics extends ImageStatistics {
     	histMin = histogramMin;
     	histMax = histogramMax;
         ImageStack stack = imp.getStack();
-        int size = stack.size();
         ip.setRoi(imp.getRoi());
         byte[] mask = ip.getMaskArray();
-        float[] cTable = imp.getCalibration().getCTable();
-        longHistogram = new long[nBins];
-        double v;
-        double sum = 0;
-        double sum2 = 0;
+        float[] cTable = cal.getCTable();
         int width, height;
         int rx, ry, rw, rh;
         double pw, ph;
@@ -75,79 +81,45 @@ public class StackStatistics extends ImageStatistics {
         roiWidth = rw*pw;
         roiHeight = rh*ph;
         boolean fixedRange = histMin!=0 || histMax!=0.0;
-        
-        // calculate min and max
-		double roiMin = Double.MAX_VALUE;
-		double roiMax = -Double.MAX_VALUE;
-		for (int slice=1; slice<=size; slice++) {
-			IJ.showStatus("Calculating stack histogram...");
-			IJ.showProgress(slice/2, size);
-			ip = stack.getProcessor(slice);
-			//ip.setCalibrationTable(cTable);
-			for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-				int i = y * width + rx;
-				int mi = my * rw;
-				for (int x=rx; x<(rx+rw); x++) {
-					if (mask==null || mask[mi++]!=0) {
-						v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold) {
-							if (v<roiMin)
-								roiMin = v;
-							if (v>roiMax)
-								roiMax = v;
-						}
-					}
-					i++;
-				}
-			}
-		 }
-		min = roiMin;
-		max = roiMax;
-		if (fixedRange) {
-			if (min<histMin) min = histMin;
-			if (max>histMax) max = histMax;
-		} else {
-			histMin = min; 
-			histMax =  max;
-		}
-       
-        // Generate histogram
-        double scale = nBins/( histMax-histMin);
-        pixelCount = 0;
-        int index;
-        boolean first = true;
-        for (int slice=1; slice<=size; slice++) {
-            IJ.showProgress(size/2+slice/2, size);
-            ip = stack.getProcessor(slice);
-            ip.setCalibrationTable(cTable);
-            for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-                int i = y * width + rx;
-                int mi = my * rw;
-                for (int x=rx; x<(rx+rw); x++) {
-                    if (mask==null || mask[mi++]!=0) {
-                        v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
-							longPixelCount++;
-							sum += v;
-							sum2 += v*v;
-							index = (int)(scale*(v-histMin));
-							if (index>=nBins)
-								index = nBins-1;
-							longHistogram[index]++;
-						}
-                    }
-                    i++;
-                }
+        int bits = imp.getBitDepth();
+        IJ.showStatus("Calculating stack histogram...");
+
+        Accumulator acc;
+        if (bits==8 || bits==16) {
+            // single pass: full-resolution histogram of the raw values, then min, max and binning
+            long[] rawHistogram = sumHistograms(imp, bits==8 ? 256 : 65536);
+            acc = new Accumulator(0);
+            for (int i=0; i<rawHistogram.length; i++)
+                if (rawHistogram[i]>0)
+                    acc.addMinMax(cTable!=null ? cTable[i] : i, minThreshold, maxThreshold);
+            setRange(acc, fixedRange);
+            acc.histogram = new long[nBins];
+            double scale = nBins/(histMax-histMin);
+            for (int i=0; i<rawHistogram.length; i++)
+                if (rawHistogram[i]>0)
+                    acc.addToHistogram(cTable!=null ? cTable[i] : i, rawHistogram[i],
+                            minThreshold, maxThreshold, histMin, histMax, scale);
+        } else {
+            // float and RGB: min and max first, unless the range is given, then the histogram
+            Rectangle r = new Rectangle(rx, ry, rw, rh);
+            if (!fixedRange) {
+                acc = accumulate(stack, r, mask, cTable, minThreshold, maxThreshold, 0, 0, 0, 0.0, 0.5);
+                setRange(acc, false);
             }
+            acc = accumulate(stack, r, mask, cTable, minThreshold, maxThreshold, nBins, histMin, histMax,
+                    fixedRange ? 0.0 : 0.5, 1.0);
+            if (fixedRange)
+                setRange(acc, true);
         }
+        longHistogram = acc.histogram;
+        longPixelCount = acc.count;
         pixelCount = (int)longPixelCount;
         area = longPixelCount*pw*ph;
-        mean = sum/longPixelCount;
-        calculateStdDev(longPixelCount, sum, sum2);
+        mean = acc.sum/longPixelCount;
+        calculateStdDev(longPixelCount, acc.sum, acc.sum2);
         histMin = cal.getRawValue(histMin); 
         histMax =  cal.getRawValue(histMax);
         binSize = (histMax-histMin)/nBins;
-        int bits = imp.getBitDepth();
         if (histMin==0.0 && histMax==256.0 && (bits==8||bits==24))
         	histMax = 255.0;
         dmode = getMode(cal);
@@ -156,6 +128,178 @@ public class StackStatistics extends ImageStatistics {
         IJ.showStatus("");
         IJ.showProgress(1.0);
     }
+
+	/** Sets min and max from the accumulated values; without a fixed
+		range, these also become the histogram range. */
+	private void setRange(Accumulator acc, boolean fixedRange) {
+		min = acc.min;
+		max = acc.max;
+		if (fixedRange) {
+			if (min<histMin) min = histMin;
+			if (max>histMax) max = histMax;
+		} else {
+			histMin = min; 
+			histMax =  max;
+		}
+	}
+
+	/** Min, max, moments and histogram of the values in the threshold range. */
+	private static class Accumulator {
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		double sum, sum2;
+		long count;
+		long[] histogram;
+
+		Accumulator(int nBins) {
+			if (nBins>0)
+				histogram = new long[nBins];
+		}
+
+		final void addMinMax(double v, double minThreshold, double maxThreshold) {
+			if (v>=minThreshold && v<=maxThreshold) {
+				if (v<min) min = v;
+				if (v>max) max = v;
+			}
+		}
+
+		final void addToHistogram(double v, long n, double minThreshold, double maxThreshold,
+				double histMin, double histMax, double scale) {
+			if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
+				count += n;
+				sum += v*n;
+				sum2 += v*v*n;
+				int index = (int)(scale*(v-histMin));
+				if (index>=histogram.length)
+					index = histogram.length-1;
+				histogram[index] += n;
+			}
+		}
+
+		void add(Accumulator acc) {
+			if (acc.min<min) min = acc.min;
+			if (acc.max>max) max = acc.max;
+			sum += acc.sum;
+			sum2 += acc.sum2;
+			count += acc.count;
+			if (histogram!=null)
+				for (int i=0; i<histogram.length; i++)
+					histogram[i] += acc.histogram[i];
+		}
+	}
+
+	/** Accumulates min and max and, unless nBins=0, the histogram and moments of the values
+		in the rectangle 'r' and 'mask' of all slices, with the slices distributed among
+		threads. The progress bar goes from 'progressStart' to 'progressEnd'. */
+	private Accumulator accumulate(final ImageStack stack, final Rectangle r, final byte[] mask,
+			final float[] cTable, final double minThreshold, final double maxThreshold,
+			final int nBins, final double histMin, final double histMax,
+			final double progressStart, final double progressEnd) {
+		final int n = stack.size();
+		final boolean virtual = stack.isVirtual();
+		final double scale = nBins/(histMax-histMin);
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger slicesDone = new AtomicInteger(0);
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), n));
+		final Accumulator[] accumulators = new Accumulator[nThreads];
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final Accumulator acc = new Accumulator(nBins);
+			accumulators[t] = acc;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int slice=nextSlice.getAndIncrement(); slice<=n; slice=nextSlice.getAndIncrement()) {
+						ImageProcessor ip = getProcessor(stack, slice, virtual);
+						ip.setCalibrationTable(cTable);
+						for (int y=r.y, my=0; y<(r.y+r.height); y++, my++) {
+							int mi = my*r.width;
+							for (int x=r.x; x<(r.x+r.width); x++, mi++) {
+								if (mask==null || mask[mi]!=0) {
+									double v = ip.getPixelValue(x,y);
+									acc.addMinMax(v, minThreshold, maxThreshold);
+									if (nBins>0)
+										acc.addToHistogram(v, 1, minThreshold, maxThreshold, histMin, histMax, scale);
+								}
+							}
+						}
+						int done = slicesDone.incrementAndGet();
+						IJ.showProgress(progressStart + (progressEnd-progressStart)*done/n);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		for (int t=1; t<nThreads; t++)
+			accumulators[0].add(accumulators[t]);
+		return accumulators[0];
+	}
+
+	/** Returns the sum of the histograms of all slices, restricted to the roi of 'imp'
+		(if any); the slices are distributed among threads. */
+	private long[] sumHistograms(ImagePlus imp, final int nBins) {
+		final ImageStack stack = imp.getStack();
+		Roi roi = imp.getRoi();
+		final boolean virtual = stack.isVirtual();
+		final int n = stack.size();
+		ImageProcessor maskIp = null;
+		Rectangle bounds = null;
+		if (roi!=null) {
+			if ((roi instanceof PointRoi) && roi.size()==1) {
+				FloatPolygon p = roi.getFloatPolygon();
+				bounds = new Rectangle((int)p.xpoints[0], (int)p.ypoints[0], 1, 1);
+			} else {
+				maskIp = roi.getMask();     // only once, not in each thread
+				bounds = roi.getBounds();
+			}
+		}
+		final ImageProcessor mask = maskIp;
+		final Rectangle rect = bounds;
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger slicesDone = new AtomicInteger(0);
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), n));
+		final long[][] histograms = new long[nThreads][];
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final long[] sum = new long[nBins];
+			histograms[t] = sum;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int slice=nextSlice.getAndIncrement(); slice<=n; slice=nextSlice.getAndIncrement()) {
+						ImageProcessor ip = getProcessor(stack, slice, virtual);
+						if (rect!=null) {
+							ip.setMask(mask);
+							ip.setRoi(rect);
+						}
+						int[] hist = ip.getHistogram();
+						for (int i=0; i<nBins; i++)
+							sum[i] += hist[i];
+						int done = slicesDone.incrementAndGet();
+						IJ.showProgress(done, n);
+						if (nBins>256)
+							IJ.showStatus(done+"/"+n);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		for (int t=1; t<nThreads; t++)
+			for (int i=0; i<nBins; i++)
+				histograms[0][i] += histograms[t][i];
+		return histograms[0];
+	}
+
+	/** Virtual stacks read the slices from disk (or create them) and are usually
+		not thread-safe, thus only one thread at a time may read. */
+	private static ImageProcessor getProcessor(ImageStack stack, int slice, boolean virtual) {
+		if (virtual) {
+			synchronized(stack) {
+				return stack.getProcessor(slice);
+			}
+		} else
+			return stack.getProcessor(slice);
+	}
     
 	void sum8BitHistograms(ImagePlus imp) {
 		Calibration cal = imp.getCalibration();
@@ -167,18 +311,7 @@ public class StackStatistics extends ImageStatistics {
 			minThreshold = (int)ip.getMinThreshold();
 			maxThreshold = (int)ip.getMaxThreshold();
 		}
-		ImageStack stack = imp.getStack();
-		Roi roi = imp.getRoi();
-		longHistogram = new long[256];
-		int n = stack.size();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<256; i++)
-				longHistogram[i] += hist[i];
-		}
+		longHistogram = sumHistograms(imp, 256);
 		pw=1.0; ph=1.0;
 		getRawStatistics(longHistogram, minThreshold, maxThreshold);
 		getRawMinAndMax(longHistogram, minThreshold, maxThreshold);
@@ -249,19 +382,7 @@ public class StackStatistics extends ImageStatistics {
 			minThreshold = (int)ip.getMinThreshold();
 			maxThreshold = (int)ip.getMaxThreshold();
 		}
-		ImageStack stack = imp.getStack();
-		Roi roi = imp.getRoi();
-		long[] hist16 = new long[65536];
-		int n = stack.size();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			IJ.showStatus(slice+"/"+n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<65536; i++)
-				hist16[i] += hist[i];
-		}
+		long[] hist16 = sumHistograms(imp, 65536);
 		pw=1.0; ph=1.0;
 		getRaw16BitMinAndMax(hist16, minThreshold, maxThreshold);
 		get16BitStatistics(hist16, (int)min, (int)max);
@@ -0,0 +1,363 @@
+package ij.process;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Calculates the pixel sums needed by ByteStatistics, ShortStatistics
+	and FloatStatistics in one pass over the roi: the histogram, min and max,
+	count, sum and sum of squares (32-bit only; for 8 and 16 bits these are
+	derived from the histogram), the sums for the centroid and the moments
+	(center of mass, skewness and kurtosis).
+	Large rois are divided into blocks of rows, which are distributed among
+	threads. The sums of the blocks are added in a fixed sequence, thus the
+	result does not depend on the number of threads.
+*/
+class StatisticsKernel {
+	/** Minimum number of pixels (of the roi rectangle) per thread */
+	static final int MIN_PIXELS_PER_THREAD = 250000;
+	/** Approximate number of pixels of a block of rows */
+	private static final int BLOCK_PIXELS = 65536;
+	/** 16-bit histogram buffer of each thread, for small rois */
+	private static final ThreadLocal<int[]> histogramBuffer = new ThreadLocal<int[]>();
+
+	private Object pixels;
+	private byte[] mask;
+	private int width, rx, ry, rw, rh;
+	private double minThreshold, maxThreshold;
+	private float[] cTable;
+	private boolean doCentroid, doMoments;
+	private int nBins;
+	private double rangeMin=-Double.MAX_VALUE, rangeMax=Double.MAX_VALUE;
+	private boolean shortHistogram2;
+
+	/** The histogram. For 8 and 16-bit images, this is the histogram of all pixels
+		in the roi (including those outside of the threshold range), with 256 or
+		65536 entries; for 16-bit images and setShortHistogram2, with
+		max(256, highest value in the roi rectangle+1) entries. For 32-bit images,
+		there is a histogram only after setHistogram. */
+	int[] histogram;
+	/** Min and max of the values within the threshold range (32-bit only) */
+	double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+	/** Number, sum and sum of squares of the values within the threshold range
+		and the histogram range (32-bit only, see setHistogram) */
+	long count;
+	double sum, sum2;
+	/** Number of pixels within the threshold range and sum of their x and y
+		coordinates (see setCentroid) */
+	long centroidCount;
+	double xSum, ySum;
+	/** Sums of v, v^2, v^3, v^4, x*v and y*v for the pixels within the
+		threshold range (see setMoments); v is the calibrated value */
+	double moment1, moment2, moment3, moment4, xMoment, yMoment;
+
+	/** Prepares for calculations on the roi of 'ip', which must be a ByteProcessor,
+		ShortProcessor or FloatProcessor. Pixels with values between 'minThreshold'
+		and 'maxThreshold' (inclusive; raw values for 8 and 16-bit images) contribute
+		to centroid, moments and sums. 'cTable' may be null. */
+	StatisticsKernel(ImageProcessor ip, double minThreshold, double maxThreshold, float[] cTable) {
+		pixels = ip.getPixels();
+		mask = ip.getMaskArray();
+		width = ip.getWidth();
+		Rectangle r = ip.getRoi();
+		rx = r.x; ry = r.y; rw = r.width; rh = r.height;
+		this.minThreshold = minThreshold;
+		this.maxThreshold = maxThreshold;
+		this.cTable = cTable;
+		if (!(pixels instanceof float[]))
+			nBins = pixels instanceof byte[] ? 256 : 65536;
+	}
+
+	/** Calculates the sums for the centroid */
+	void setCentroid(boolean b) {
+		doCentroid = b;
+	}
+
+	/** Calculates the sums for center of mass, skewness and kurtosis */
+	void setMoments(boolean b) {
+		doMoments = b;
+	}
+
+	/** 32-bit only: calculates a histogram with 'nBins' bins from 'histMin' to
+		'histMax', and count, sum and sum of squares of the values in this range.
+		(Min and max are always calculated for 32-bit images.) */
+	void setHistogram(int nBins, double histMin, double histMax) {
+		this.nBins = nBins;
+		rangeMin = histMin;
+		rangeMax = histMax;
+	}
+
+	/** 16-bit only: creates a histogram like ShortProcessor.getHistogram2 */
+	void setShortHistogram2(boolean b) {
+		shortHistogram2 = b;
+	}
+
+	/** The sums of one block of rows */
+	private static class Block {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		long count, centroidCount, xSum, ySum;
+		double sum, sum2;
+		double moment1, moment2, moment3, moment4, xMoment, yMoment;
+		int rawMax;
+	}
+
+	/** Processes blocks until all are done, with the histogram of the given thread */
+	private void processBlocks(Block[] blocks, int blockHeight, int[][] histograms, int thread, AtomicInteger nextBlock) {
+		int[] hist = histograms[thread];
+		if (hist==null && nBins>0)
+			histograms[thread] = hist = new int[nBins];
+		for (int b=nextBlock.getAndIncrement(); b<blocks.length; b=nextBlock.getAndIncrement()) {
+			Block block = new Block();
+			int y0 = ry + b*blockHeight;
+			int y1 = Math.min(y0+blockHeight, ry+rh);
+			if (pixels instanceof byte[])
+				processByte(block, hist, y0, y1);
+			else if (pixels instanceof short[])
+				processShort(block, hist, y0, y1);
+			else
+				processFloat(block, hist, y0, y1);
+			blocks[b] = block;
+		}
+	}
+
+	/** Does the calculations */
+	void run() {
+		final int blockHeight = Math.max(1, BLOCK_PIXELS/Math.max(rw, 1));
+		final int nBlocks = (rh+blockHeight-1)/blockHeight;
+		final Block[] blocks = new Block[nBlocks];
+		int nThreads = (int)Math.min(Prefs.getThreads(), (long)rw*rh/MIN_PIXELS_PER_THREAD);
+		nThreads = Math.max(1, Math.min(nThreads, nBlocks));
+		final int[][] histograms = new int[nThreads][];
+		boolean useBuffer = shortHistogram2 && nThreads==1;
+		if (useBuffer) {
+			histograms[0] = histogramBuffer.get();
+			if (histograms[0]==null) {
+				histograms[0] = new int[65536];
+				histogramBuffer.set(histograms[0]);
+			}
+		}
+		final AtomicInteger nextBlock = new AtomicInteger(0);
+		if (nThreads==1)
+			processBlocks(blocks, blockHeight, histograms, 0, nextBlock);
+		else {
+			Callable[] callables = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int thread = t;
+				callables[t] = new Callable<Void>() {
+					final public Void call() {
+						processBlocks(blocks, blockHeight, histograms, thread, nextBlock);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(callables);
+		}
+		for (int b=0; b<nBlocks; b++) {
+			if (blocks[b]==null) {      // exception in a thread (ThreadUtil only logs it)
+				if (useBuffer)
+					histogramBuffer.remove(); // the buffer is not cleared
+				throw new RuntimeException("Statistics calculation failed");
+			}
+		}
+		int rawMax = 0;
+		for (int b=0; b<nBlocks; b++) {
+			Block block = blocks[b];
+			if (block.min<min) min = block.min;
+			if (block.max>max) max = block.max;
+			count += block.count;
+			sum += block.sum;
+			sum2 += block.sum2;
+			centroidCount += block.centroidCount;
+			xSum += block.xSum;
+			ySum += block.ySum;
+			moment1 += block.moment1;
+			moment2 += block.moment2;
+			moment3 += block.moment3;
+			moment4 += block.moment4;
+			xMoment += block.xMoment;
+			yMoment += block.yMoment;
+			if (block.rawMax>rawMax) rawMax = block.rawMax;
+		}
+		if (nBins>0) {
+			histogram = histograms[0];
+			for (int t=1; t<nThreads; t++)
+				for (int i=0; i<nBins; i++)
+					histogram[i] += histograms[t][i];
+		}
+		if (shortHistogram2) {
+			int size = Math.max(rawMax+1, 256);
+			int[] hist = new int[size];
+			System.arraycopy(histogram, 0, hist, 0, size);
+			if (useBuffer)
+				for (int i=0; i<size; i++)
+					histogram[i] = 0;      // clear the buffer for the next time
+			histogram = hist;
+		}
+	}
+
+	// The process methods use local variables for the sums (not the fields of the
+	// Block), which is considerably faster. Centroid sums are integers, thus exact.
+
+	private void processByte(Block b, int[] hist, int y0, int y1) {
+		byte[] pixels = (byte[])this.pixels;
+		int minT = (int)minThreshold, maxT = (int)maxThreshold;
+		boolean doCentroid = this.doCentroid, doMoments = this.doMoments;
+		long centroidCount = 0, xSum = 0, ySum = 0;
+		double m1=0, m2=0, m3=0, m4=0, xm=0, ym=0;
+		for (int y=y0; y<y1; y++) {
+			int i = y*width + rx;
+			int mi = (y-ry)*rw;
+			long rowCount = 0;
+			for (int x=rx; x<(rx+rw); x++, i++, mi++) {
+				if (mask==null || mask[mi]!=0) {
+					int v = pixels[i]&255;
+					hist[v]++;
+					if (v>=minT && v<=maxT) {
+						if (doCentroid) {
+							rowCount++;
+							xSum += x;
+						}
+						if (doMoments) {
+							double dv = (cTable!=null ? cTable[v] : v) + Double.MIN_VALUE;
+							double dv2 = dv*dv;
+							m1 += dv; m2 += dv2; m3 += dv*dv2; m4 += dv2*dv2;
+							xm += x*dv; ym += y*dv;
+						}
+					}
+				}
+			}
+			centroidCount += rowCount;
+			ySum += y*rowCount;
+		}
+		b.centroidCount = centroidCount; b.xSum = xSum; b.ySum = ySum;
+		b.moment1 = m1; b.moment2 = m2; b.moment3 = m3; b.moment4 = m4; b.xMoment = xm; b.yMoment = ym;
+	}
+
+	private void processShort(Block b, int[] hist, int y0, int y1) {
+		short[] pixels = (short[])this.pixels;
+		int minT = (int)minThreshold, maxT = (int)maxThreshold;
+		boolean doCentroid = this.doCentroid, doMoments = this.doMoments;
+		long centroidCount = 0, xSum = 0, ySum = 0;
+		double m1=0, m2=0, m3=0, m4=0, xm=0, ym=0;
+		int rawMax = 0;
+		for (int y=y0; y<y1; y++) {
+			int i = y*width + rx;
+			int mi = (y-ry)*rw;
+			long rowCount = 0;
+			for (int x=rx; x<(rx+rw); x++, i++, mi++) {
+				int v = pixels[i]&0xffff;
+				if (v>rawMax) rawMax = v;  // getHistogram2 uses the maximum of the rectangle
+				if (mask==null || mask[mi]!=0) {
+					hist[v]++;
+					if (v>=minT && v<=maxT) {
+						if (doCentroid) {
+							rowCount++;
+							xSum += x;
+						}
+						if (doMoments) {
+							double dv = (cTable!=null ? cTable[v] : v) + Double.MIN_VALUE;
+							double dv2 = dv*dv;
+							m1 += dv; m2 += dv2; m3 += dv*dv2; m4 += dv2*dv2;
+							xm += x*dv; ym += y*dv;
+						}
+					}
+				}
+			}
+			centroidCount += rowCount;
+			ySum += y*rowCount;
+		}
+		b.centroidCount = centroidCount; b.xSum = xSum; b.ySum = ySum;
+		b.moment1 = m1; b.moment2 = m2; b.moment3 = m3; b.moment4 = m4; b.xMoment = xm; b.yMoment = ym;
+		b.rawMax = rawMax;
+	}
+
+	private void processFloat(Block b, int[] hist, int y0, int y1) {
+		if (nBins>0 && !doCentroid && !doMoments) {
+			processFloatHistogram(b, hist, y0, y1);
+			return;
+		}
+		float[] pixels = (float[])this.pixels;
+		boolean doCentroid = this.doCentroid, doMoments = this.doMoments;
+		int nBins = this.nBins;
+		double minThreshold = this.minThreshold, maxThreshold = this.maxThreshold;
+		double rangeMin = this.rangeMin, rangeMax = this.rangeMax;
+		double scale = nBins/(rangeMax-rangeMin);
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0, sum2 = 0;
+		long count = 0, centroidCount = 0, xSum = 0, ySum = 0;
+		double m1=0, m2=0, m3=0, m4=0, xm=0, ym=0;
+		for (int y=y0; y<y1; y++) {
+			int i = y*width + rx;
+			int mi = (y-ry)*rw;
+			long rowCount = 0;
+			for (int x=rx; x<(rx+rw); x++, i++, mi++) {
+				if (mask==null || mask[mi]!=0) {
+					double v = pixels[i];
+					if (v>=minThreshold && v<=maxThreshold) {
+						if (v<min) min = v;
+						if (v>max) max = v;
+						if (nBins>0 && v>=rangeMin && v<=rangeMax) {
+							count++;
+							sum += v;
+							sum2 += v*v;
+							int index = (int)(scale*(v-rangeMin));
+							if (index>=nBins)
+								index = nBins-1;
+							hist[index]++;
+						}
+						if (doCentroid) {
+							rowCount++;
+							xSum += x;
+						}
+						if (doMoments) {
+							double dv = v + Double.MIN_VALUE;
+							double dv2 = dv*dv;
+							m1 += dv; m2 += dv2; m3 += dv*dv2; m4 += dv2*dv2;
+							xm += x*dv; ym += y*dv;
+						}
+					}
+				}
+			}
+			centroidCount += rowCount;
+			ySum += y*rowCount;
+		}
+		b.min = min; b.max = max; b.count = count; b.sum = sum; b.sum2 = sum2;
+		b.centroidCount = centroidCount; b.xSum = xSum; b.ySum = ySum;
+		b.moment1 = m1; b.moment2 = m2; b.moment3 = m3; b.moment4 = m4; b.xMoment = xm; b.yMoment = ym;
+	}
+
+	/** Only min, max, the histogram and the sums; a simpler loop is faster */
+	private void processFloatHistogram(Block b, int[] hist, int y0, int y1) {
+		float[] pixels = (float[])this.pixels;
+		int nBins = this.nBins;
+		double minThreshold = this.minThreshold, maxThreshold = this.maxThreshold;
+		double rangeMin = this.rangeMin, rangeMax = this.rangeMax;
+		double scale = nBins/(rangeMax-rangeMin);
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0, sum2 = 0;
+		long count = 0;
+		for (int y=y0; y<y1; y++) {
+			int i = y*width + rx;
+			int mi = (y-ry)*rw;
+			for (int x=rx; x<(rx+rw); x++, i++, mi++) {
+				if (mask==null || mask[mi]!=0) {
+					double v = pixels[i];
+					if (v>=minThreshold && v<=maxThreshold) {
+						if (v<min) min = v;
+						if (v>max) max = v;
+						if (v>=rangeMin && v<=rangeMax) {
+							count++;
+							sum += v;
+							sum2 += v*v;
+							int index = (int)(scale*(v-rangeMin));
+							if (index>=nBins)
+								index = nBins-1;
+							hist[index]++;
+						}
+					}
+				}
+			}
+		}
+		b.min = min; b.max = max; b.count = count; b.sum = sum; b.sum2 = sum2;
+	}
+
+}